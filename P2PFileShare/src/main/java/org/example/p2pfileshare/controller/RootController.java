@@ -114,6 +114,8 @@ public class RootController {
         });
 
         controlServer.setFileShareService(fileShareService);
+        // swarm download: hỏi thêm các peer mình đang kết nối
+        fileShareService.setSwarmPeerSupplier(() -> peerService.getPeersByIds(controlClient.getPeerIdList()));
 
         // SEARCH_REQ
         controlServer.setOnSearchRequestReceived((senderId, keyword) -> {
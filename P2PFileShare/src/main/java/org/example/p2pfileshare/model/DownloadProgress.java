@@ -5,6 +5,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.BitSet;
 
+// Các thao tác trên bitmap đều synchronized: nhiều worker tải song song cùng cập nhật
 public class DownloadProgress {
     private final String fileName;
     private final long fileSize;
@@ -23,33 +24,38 @@ public class DownloadProgress {
         this.completedChunks = new BitSet(totalChunks);
     }
 
-    public void markChunkComplete(int chunkIndex) {
+    public synchronized void markChunkComplete(int chunkIndex) {
         completedChunks.set(chunkIndex);
     }
 
-    public boolean isChunkComplete(int chunkIndex) {
+    public synchronized boolean isChunkComplete(int chunkIndex) {
         return completedChunks.get(chunkIndex);
     }
 
-    public boolean isComplete() {
+    public synchronized boolean isComplete() {
         return completedChunks.cardinality() == totalChunks;
     }
 
-    public double getProgressPercent() {
+    public synchronized double getProgressPercent() {
         return (completedChunks.cardinality() * 100.0) / totalChunks;
     }
 
-    public int getCompletedChunks() {
+    public synchronized int getCompletedChunks() {
         return completedChunks.cardinality();
     }
 
+    /** Bản sao bitmap (an toàn để đọc từ thread khác) */
+    public synchronized BitSet snapshot() {
+        return (BitSet) completedChunks.clone();
+    }
+
     public BitSet getCompletedChunksBitSet() {
         return completedChunks;
     }
 
     // --- Persist bitmap (resume thật sự) ---
 
-    public void loadBitmap(Path bitmapFile) throws IOException {
+    public synchronized void loadBitmap(Path bitmapFile) throws IOException {
         if (!Files.exists(bitmapFile)) return;
         byte[] data = Files.readAllBytes(bitmapFile);
         BitSet loaded = BitSet.valueOf(data);
@@ -60,12 +66,12 @@ public class DownloadProgress {
         }
     }
 
-    public void saveBitmap(Path bitmapFile) throws IOException {
+    public synchronized void saveBitmap(Path bitmapFile) throws IOException {
         byte[] data = completedChunks.toByteArray();
         Files.write(bitmapFile, data);
     }
 
-    public void clearAll() {
+    public synchronized void clearAll() {
         completedChunks.clear();
     }
 
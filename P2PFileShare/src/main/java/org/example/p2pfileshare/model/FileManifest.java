@@ -0,0 +1,90 @@
+package org.example.p2pfileshare.model;
+
+import org.example.p2pfileshare.util.BlockSignatures;
+import org.example.p2pfileshare.util.ChunkLayout;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Manifest của 1 file đang chia sẻ: hash toàn file + hash từng chunk.
+ *
+ * Được cache (RAM + đĩa) theo (relativePath, size, mtime, fileKey) để
+ * FILE_META_REQUEST không phải đọc lại cả file mỗi lần.
+ */
+public class FileManifest {
+    private final String relativePath;
+    private final long fileSize;
+    private final long lastModified;   // millis
+    private final String fileKey;      // inode/file id nếu OS hỗ trợ, có thể null
+    private final int chunkSize;
+    private final String fileSha256;
+    private final List<String> chunkHashes;
+    // dựng khi cần (FILE_META_REQUEST kiểu MERKLE / GET_HASHES), không lưu JSON
+    private transient volatile MerkleTree merkleTree;
+    // chữ ký block cho delta sync (GET_SIGNATURES), tính lần đầu có client xin
+    private transient volatile BlockSignatures blockSignatures;
+    // chunk toàn 0 + nhóm chunk trùng hash (GET_LAYOUT), suy ra từ chunkHashes
+    private transient volatile ChunkLayout chunkLayout;
+
+    public FileManifest(String relativePath, long fileSize, long lastModified, String fileKey,
+                        int chunkSize, String fileSha256, List<String> chunkHashes) {
+        this.relativePath = relativePath;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
+        this.chunkSize = chunkSize;
+        this.fileSha256 = fileSha256;
+        this.chunkHashes = chunkHashes;
+    }
+
+    /** Manifest còn đúng với file trên đĩa không (file chưa bị sửa) */
+    public boolean matches(long size, long mtime, String key, int chunkSize) {
+        return this.fileSize == size
+                && this.lastModified == mtime
+                && this.chunkSize == chunkSize
+                && Objects.equals(this.fileKey, key);
+    }
+
+    public FileMetadata toMetadata(String fileName) {
+        return new FileMetadata(fileName, fileSize, chunkSize, getTotalChunks(), fileSha256, chunkHashes);
+    }
+
+    public MerkleTree getMerkleTree() {
+        MerkleTree t = merkleTree;
+        if (t == null) {
+            t = MerkleTree.build(chunkHashes);
+            merkleTree = t;
+        }
+        return t;
+    }
+
+    public ChunkLayout getChunkLayout() {
+        ChunkLayout l = chunkLayout;
+        if (l == null) {
+            l = ChunkLayout.of(chunkHashes, fileSize, chunkSize);
+            chunkLayout = l;
+        }
+        return l;
+    }
+
+    /** Chữ ký đã tính với đúng blockSize này, không có thì null */
+    public BlockSignatures getBlockSignatures(int blockSize) {
+        BlockSignatures s = blockSignatures;
+        return s != null && s.getBlockSize() == blockSize ? s : null;
+    }
+
+    public void setBlockSignatures(BlockSignatures signatures) {
+        this.blockSignatures = signatures;
+    }
+
+    public String getRelativePath() { return relativePath; }
+    public long getFileSize() { return fileSize; }
+    public long getLastModified() { return lastModified; }
+    public String getFileKey() { return fileKey; }
+    public int getChunkSize() { return chunkSize; }
+    public int getTotalChunks() { return chunkHashes == null ? 0 : chunkHashes.size(); }
+    public String getFileSha256() { return fileSha256; }
+    public List<String> getChunkHashes() { return chunkHashes; }
+}
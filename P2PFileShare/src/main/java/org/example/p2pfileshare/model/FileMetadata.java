@@ -8,16 +8,23 @@ public class FileMetadata {
     private final int chunkSize;
     private final int totalChunks;
     private final String fileSha256;
-    private final List<String> chunkHashes; // SHA-256 của từng chunk
+    private final List<String> chunkHashes; // SHA-256 của từng chunk (rỗng nếu dùng Merkle root)
+    private final String merkleRoot;        // null nếu server gửi đủ danh sách hash
 
     public FileMetadata(String fileName, long fileSize, int chunkSize,
                        int totalChunks, String fileSha256, List<String> chunkHashes) {
+        this(fileName, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes, null);
+    }
+
+    public FileMetadata(String fileName, long fileSize, int chunkSize,
+                       int totalChunks, String fileSha256, List<String> chunkHashes, String merkleRoot) {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.chunkSize = chunkSize;
         this.totalChunks = totalChunks;
         this.fileSha256 = fileSha256;
         this.chunkHashes = chunkHashes;
+        this.merkleRoot = merkleRoot;
     }
 
     public String getFileName() { return fileName; }
@@ -26,5 +33,7 @@ public class FileMetadata {
     public int getTotalChunks() { return totalChunks; }
     public String getFileSha256() { return fileSha256; }
     public List<String> getChunkHashes() { return chunkHashes; }
+    public String getMerkleRoot() { return merkleRoot; }
+    public boolean isMerkle() { return merkleRoot != null; }
 }
 
@@ -3,6 +3,7 @@ package org.example.p2pfileshare.network.control;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import org.example.p2pfileshare.model.PeerInfo;
+import org.example.p2pfileshare.network.transfer.BandwidthLimiter;
 
 import java.io.*;
 import java.net.Socket;
@@ -84,6 +85,7 @@ public class ControlClient {
 
     public List<RemoteFile> listFiles(String host, int controlPort, String toPeer) {
         System.out.println("[ControlClient] Request LIST_FILES → " + toPeer);
+        BandwidthLimiter.noteInteractive();
         List<RemoteFile> files = new ArrayList<>();
 
         try (Socket socket = new Socket(host, controlPort);
@@ -171,6 +173,7 @@ public class ControlClient {
         // Gửi lệnh SEARCH_REQ|keyword
         // ControlServer bên kia phải xử lý cmd.startsWith("SEARCH_REQ")
         String command = "SEARCH_REQ|" + keyword;
+        BandwidthLimiter.noteInteractive();
         // sendSystemCommand sẽ tự nối thêm myPeerId vào (xem logic bên dưới)
         sendSystemCommand(peer, command);
     }
@@ -1,7 +1,9 @@
 package org.example.p2pfileshare.network.control;
 
 import org.example.p2pfileshare.model.PeerInfo;
+import org.example.p2pfileshare.network.transfer.BandwidthLimiter;
 import org.example.p2pfileshare.service.FileShareService;
+import org.example.p2pfileshare.util.ConnectionExecutor;
 
 import java.io.*;
 import java.net.ServerSocket;
@@ -23,6 +25,9 @@ public class ControlServer {
     private final Set<String> acceptedPeers = ConcurrentHashMap.newKeySet();
     private final Function<String, Boolean> onIncomingConnect;
 
+    // handler mỗi kết nối: virtual thread (JDK 21+) hoặc cached pool, có đếm số đang chạy
+    private final ConnectionExecutor handlers = ConnectionExecutor.create("control-handler", 0);
+
     // Để trả danh sách file local
     private FileShareService fileShareService;
     private Runnable onPeerAccepted;
@@ -89,14 +94,21 @@ public class ControlServer {
         // có thể mở 1 socket ảo vào chính mình để giải phóng accept()
     }
 
+    /** Số kết nối control đang được xử lý */
+    public int getActiveHandlers() {
+        return handlers.getInFlight();
+    }
+
     private void handleClient(Socket socket) {
-        Thread t = new Thread(() -> {
+        handlers.execute(() -> {
             try (Socket s = socket;
                  BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
                  PrintWriter writer = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true)) {
 
                 String raw = reader.readLine();
                 if (raw == null || raw.isEmpty()) return;
+                // lưu lượng tương tác -> seeding chế độ nền nhường băng thông
+                BandwidthLimiter.noteInteractive();
 
                 if (raw.startsWith("SEARCH_REQ|") || raw.startsWith("SEARCH_RES|")) {
                     System.out.println("[ControlServer] Received Search CMD: " + raw);
@@ -242,10 +254,7 @@ public class ControlServer {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }, "control-handler");
-
-        t.setDaemon(true);
-        t.start();
+        });
     }
 
     // XỬ LÝ LỆNH TÌM KIẾM
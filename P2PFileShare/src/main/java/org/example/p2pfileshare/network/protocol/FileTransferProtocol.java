@@ -8,17 +8,144 @@ public class FileTransferProtocol {
     public static final String GET_CHUNK = "GET_CHUNK";
     public static final String CHUNK_DATA = "CHUNK_DATA";
     public static final String CHUNK_ERROR = "CHUNK_ERROR";
+    public static final String ERROR = "ERROR";
+    // lý do ERROR khi server tạm hết tài nguyên (slot upload, buffer, disk pool) -> client thử lại sau,
+    // không phải lỗi chunk. Kèm thời gian nên chờ: ERROR + "Server busy|RETRY=<ms>" (xem busyReason)
+    public static final String ERR_BUSY = "Server busy";
+    public static final String OPT_RETRY = "RETRY=";
+    // lý do ERROR khi server đang dừng (drain): kết nối này không được phục vụ nữa -> client chuyển nguồn khác,
+    // không phải lỗi chunk. Server có thể gửi sẵn trước cả khi nhận request (kết nối đang rảnh) rồi đóng
+    public static final String ERR_GOING_AWAY = "Going away";
+
+    // Session: 1 kết nối dùng cho nhiều request (GET_CHUNK pipeline hoặc GET_RANGE).
+    // GET_RANGE|file|start|count -> server stream liên tiếp count frame CHUNK_DATA
+    public static final String GET_RANGE = "GET_RANGE";
+    public static final int MAX_RANGE_CHUNKS = 64;
+
+    // Swarm: FILE_META_BY_HASH|fileSha256 -> FILE_META_RESPONSE (name = đường dẫn phía server) hoặc ERROR
+    public static final String FILE_META_BY_HASH = "FILE_META_BY_HASH";
+    // FILE_META_BY_HASH|fileSha256|RANGES -> sau chunk hash thêm rangeCount (int) + (start, count) * rangeCount:
+    // các chunk peer đang có (peer đang tải dở chỉ có 1 phần)
+    public static final String OPT_RANGES = "RANGES";
+
+    // Merkle: FILE_META_REQUEST|file|MERKLE (hoặc FILE_META_BY_HASH|sha|MERKLE) -> FILE_META_MERKLE:
+    //   name, fileSize, chunkSize, totalChunks, fileSha256, merkleRoot (không gửi danh sách hash chunk)
+    // GET_HASHES|file|batch -> HASHES: batch (int), leafCount (int), leaf[32] * leafCount,
+    //   proofLen (int), sibling[32] * proofLen  (xem MerkleTree)
+    public static final String OPT_MERKLE = "MERKLE";
+    public static final String FILE_META_MERKLE = "FILE_META_MERKLE";
+    public static final String GET_HASHES = "GET_HASHES";
+    public static final String HASHES = "HASHES";
+
+    // Delta sync (client đã có bản cũ của file):
+    // GET_SIGNATURES|file|blockSize -> SIGNATURES: fileSize (long), blockSize (int), count (int),
+    //   (weak (int), strong[16]) * count  (xem BlockSignatures)
+    // GET_BYTES|file|offset|length -> BYTES: offset (long), length (int), bytes[length]
+    public static final String GET_SIGNATURES = "GET_SIGNATURES";
+    public static final String SIGNATURES = "SIGNATURES";
+    public static final String GET_BYTES = "GET_BYTES";
+    public static final String BYTES = "BYTES";
+    public static final int MAX_BYTES_REQUEST = 4 * 1024 * 1024;
+
+    // Chunk toàn 0 / trùng nhau (client bỏ qua khi tải):
+    // GET_LAYOUT|file -> LAYOUT: zeroRangeCount (int), (start, count) * zeroRangeCount,
+    //   groupCount (int), (size (int), chunkIndex * size) * groupCount  (xem ChunkLayout)
+    public static final String GET_LAYOUT = "GET_LAYOUT";
+    public static final String LAYOUT = "LAYOUT";
+
+    // Chunk size (thêm vào cuối request, server cũ bỏ qua -> 1 MB):
+    //   FILE_META_REQUEST|file|...|CHUNK=min-max : khoảng client chấp nhận, server chọn size cho file
+    //   các request khác ...|CHUNK=size           : size đã chọn (trong metadata) -> đúng manifest đó
+    // Không có option = 1 MB (client cũ).
+    public static final String OPT_CHUNK = "CHUNK=";
+
+    // Nén (thêm vào cuối GET_CHUNK / GET_RANGE, server cũ bỏ qua -> CHUNK_DATA như thường):
+    //   ...|DEFLATE -> chunk nén được gửi bằng CHUNK_DATA_Z: chunkIndex (int), dataLen (int),
+    //   chunkSha256 (UTF, của bản gốc), compressedLen (int), bytes zlib[compressedLen];
+    //   chunk không nén được vẫn là CHUNK_DATA
+    public static final String OPT_DEFLATE = "DEFLATE";
+    public static final String CHUNK_DATA_Z = "CHUNK_DATA_Z";
+
+    public static String busyReason(long retryAfterMs) {
+        return ERR_BUSY + "|" + OPT_RETRY + retryAfterMs;
+    }
+
+    // reason của ERROR là "Server busy" (có hoặc không kèm RETRY)
+    public static boolean isBusy(String reason) {
+        return reason != null && (reason.equals(ERR_BUSY) || reason.startsWith(ERR_BUSY + "|"));
+    }
+
+    public static boolean isGoingAway(String reason) {
+        return ERR_GOING_AWAY.equals(reason);
+    }
+
+    // RETRY=<ms> trong reason busy; -1 nếu không có (server cũ)
+    public static long retryAfterMs(String reason) {
+        int at = reason == null ? -1 : reason.indexOf(OPT_RETRY);
+        if (at < 0) return -1;
+        try {
+            return Math.max(0, Long.parseLong(reason.substring(at + OPT_RETRY.length()).trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String withChunkSize(String request, int chunkSize) {
+        return request + "|" + OPT_CHUNK + chunkSize;
+    }
+
+    public static String withChunkRange(String request, int minChunkSize, int maxChunkSize) {
+        return request + "|" + OPT_CHUNK + minChunkSize + "-" + maxChunkSize;
+    }
 
     // Build request for file metadata
     public static String buildMetaRequest(String fileName) {
         return FILE_META_REQUEST + "|" + fileName;
     }
 
+    // Build request for metadata of whichever shared file has this SHA-256
+    public static String buildMetaByHashRequest(String fileSha256) {
+        return FILE_META_BY_HASH + "|" + fileSha256;
+    }
+
+    public static String buildMetaByHashRequest(String fileSha256, boolean withRanges, boolean merkle) {
+        String request = buildMetaByHashRequest(fileSha256);
+        if (withRanges) request += "|" + OPT_RANGES;
+        if (merkle) request += "|" + OPT_MERKLE;
+        return request;
+    }
+
+    // Metadata chỉ kèm Merkle root (server cũ bỏ qua option, trả danh sách hash như thường)
+    public static String buildMerkleMetaRequest(String fileName) {
+        return buildMetaRequest(fileName) + "|" + OPT_MERKLE;
+    }
+
+    public static String buildHashesRequest(String fileName, int batch) {
+        return GET_HASHES + "|" + fileName + "|" + batch;
+    }
+
+    public static String buildSignaturesRequest(String fileName, int blockSize) {
+        return GET_SIGNATURES + "|" + fileName + "|" + blockSize;
+    }
+
+    public static String buildBytesRequest(String fileName, long offset, int length) {
+        return GET_BYTES + "|" + fileName + "|" + offset + "|" + length;
+    }
+
+    public static String buildLayoutRequest(String fileName) {
+        return GET_LAYOUT + "|" + fileName;
+    }
+
     // Build request for specific chunk
     public static String buildChunkRequest(String fileName, int chunkIndex) {
         return GET_CHUNK + "|" + fileName + "|" + chunkIndex;
     }
 
+    // Build request for consecutive chunks [start, start + count)
+    public static String buildRangeRequest(String fileName, int start, int count) {
+        return GET_RANGE + "|" + fileName + "|" + start + "|" + count;
+    }
+
     // Parse command
     public static ParsedCommand parse(String line) {
         if (line == null || line.isEmpty()) return null;
@@ -39,6 +166,22 @@ public class FileTransferProtocol {
         public String get(int index) {
             return index < parts.length ? parts[index] : null;
         }
+
+        // option dạng cờ ở cuối request (RANGES, MERKLE...)
+        public boolean hasOption(int from, String option) {
+            for (int i = from; i < parts.length; i++) {
+                if (option.equals(parts[i])) return true;
+            }
+            return false;
+        }
+
+        // option dạng prefix=value (CHUNK=...), null nếu không có
+        public String optionValue(int from, String prefix) {
+            for (int i = from; i < parts.length; i++) {
+                if (parts[i].startsWith(prefix)) return parts[i].substring(prefix.length());
+            }
+            return null;
+        }
     }
 }
 
@@ -0,0 +1,320 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.AppConfig;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Giới hạn băng thông 1 chiều bằng token bucket: 1 bucket chung + 1 bucket / peer (theo IP).
+ *
+ * - upload(): phía file server, chỉ áp cho response chunk (metadata, hash... không bị chặn)
+ * - download(): phía client, đọc socket chậm lại -> TCP tự hạ tốc độ bên gửi
+ * - Giới hạn đổi được lúc đang chạy (setLimits), áp ngay cho cả kết nối đang mở; 0 = không giới hạn
+ * - Chế độ nền (upload, KEY_BACKGROUND_SEEDING): khi máy này đang tải file hoặc có lưu lượng tương tác
+ *   (control: kết nối, tìm kiếm, duyệt file) thì upload tự hạ xuống KEY_BACKGROUND_KBPS (không vượt giới hạn thường),
+ *   hết INTERACTIVE_HOLD_MS không có gì thì trả lại giới hạn thường
+ */
+public final class BandwidthLimiter {
+
+    /** Key AppConfig: giới hạn upload / download (KB/s), tổng và mỗi peer; trống hoặc "0" = không giới hạn */
+    public static final String KEY_UPLOAD_KBPS = "upload_limit_kbps";
+    public static final String KEY_UPLOAD_PEER_KBPS = "upload_peer_limit_kbps";
+    public static final String KEY_DOWNLOAD_KBPS = "download_limit_kbps";
+    public static final String KEY_DOWNLOAD_PEER_KBPS = "download_peer_limit_kbps";
+
+    /** Key AppConfig: "true" = seeding ở chế độ nền; tốc độ upload khi nhường (KB/s) */
+    public static final String KEY_BACKGROUND_SEEDING = "background_seeding";
+    public static final String KEY_BACKGROUND_KBPS = "background_upload_kbps";
+    public static final int DEFAULT_BACKGROUND_KBPS = 512;
+
+    // bucket chứa tối đa bấy nhiêu ms lưu lượng (tối thiểu MIN_BURST) -> rate đều, không dồn cục
+    private static final long BURST_MS = 100;
+    private static final long MIN_BURST = 64 * 1024;
+    // chờ tới khi đủ ít nhất bấy nhiêu byte rồi mới gửi / đọc tiếp (tránh ghi từng mẩu nhỏ)
+    static final int QUANTUM = 16 * 1024;
+    // lưu lượng tương tác gần nhất còn tính là "đang dùng" trong bấy lâu
+    private static final long INTERACTIVE_HOLD_MS = 2000;
+    private static final int MAX_PEERS = 256;
+
+    private static final BandwidthLimiter UPLOAD = new BandwidthLimiter("upload",
+            kbpsFromConfig(KEY_UPLOAD_KBPS), kbpsFromConfig(KEY_UPLOAD_PEER_KBPS));
+    private static final BandwidthLimiter DOWNLOAD = new BandwidthLimiter("download",
+            kbpsFromConfig(KEY_DOWNLOAD_KBPS), kbpsFromConfig(KEY_DOWNLOAD_PEER_KBPS));
+
+    // download đang chạy trên máy này, lần cuối có lưu lượng tương tác
+    private static final AtomicInteger foregroundDownloads = new AtomicInteger();
+    private static volatile long lastInteractive = 0;
+
+    static {
+        UPLOAD.setBackground("true".equalsIgnoreCase(AppConfig.load(KEY_BACKGROUND_SEEDING)),
+                kbpsFromConfig(KEY_BACKGROUND_KBPS, DEFAULT_BACKGROUND_KBPS));
+    }
+
+    /** 1 token bucket; rate = 0 -> không giới hạn */
+    static final class TokenBucket {
+        private volatile long rate;
+        private double tokens;   // guarded by this; âm = nợ (lấy quá tay), trả dần khi refill
+        private long last = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = Math.max(0, rate);
+            this.tokens = burst(this.rate);
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = Math.max(0, rate);
+            tokens = Math.min(tokens, burst(this.rate));
+        }
+
+        /** Lấy tối đa want byte, không chờ; trả về số lấy được (có thể 0) */
+        long take(long want) {
+            if (rate <= 0) return want;
+            synchronized (this) {
+                refill();
+                long n = (long) Math.min(want, Math.max(0, tokens));
+                tokens -= n;
+                return n;
+            }
+        }
+
+        /** Trả lại phần đã lấy mà không dùng */
+        void refund(long n) {
+            if (n <= 0 || rate <= 0) return;
+            synchronized (this) {
+                tokens = Math.min(burst(rate), tokens + n);
+            }
+        }
+
+        /** Thời gian tới khi có đủ min(want, QUANTUM) byte */
+        long waitNanos(long want) {
+            long r = rate;
+            if (r <= 0) return 0;
+            synchronized (this) {
+                refill();
+                double need = Math.min(want, QUANTUM) - tokens;
+                return need <= 0 ? 0 : (long) (need * 1e9 / r);
+            }
+        }
+
+        // guarded by this
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) tokens = Math.min(burst(rate), tokens + (now - last) * rate / 1e9);
+            last = now;
+        }
+
+        private static long burst(long rate) {
+            return Math.max(MIN_BURST, rate * BURST_MS / 1000);
+        }
+    }
+
+    /** Bucket chung + bucket của 1 peer: mọi lượt ghi / đọc lấy token ở cả 2 */
+    final class Shaper {
+        private final TokenBucket peer;
+
+        private Shaper(TokenBucket peer) {
+            this.peer = peer;
+        }
+
+        /** Số byte được gửi / đọc ngay (tối đa want, có thể 0), không chờ */
+        long grant(long want) {
+            refreshMode();
+            long n = global.take(want);
+            if (n == 0) return 0;
+            long p = peer.take(n);
+            if (p < n) global.refund(n - p);
+            return p;
+        }
+
+        /** Như grant() nhưng chờ tới khi được ít nhất 1 byte */
+        long acquire(long want) throws InterruptedIOException {
+            while (true) {
+                long n = grant(want);
+                if (n > 0) return n;
+                LockSupport.parkNanos(Math.max(TimeUnit.MILLISECONDS.toNanos(1), waitNanos(want)));
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+
+        void refund(long n) {
+            peer.refund(n);
+            global.refund(n);
+        }
+
+        /** Thời gian nên chờ trước lần grant() sau */
+        long waitNanos(long want) {
+            return Math.max(global.waitNanos(want), peer.waitNanos(want));
+        }
+    }
+
+    private final String name;
+    private final TokenBucket global;
+    private volatile long globalRate;
+    private volatile long perPeerRate;
+    private volatile boolean background;
+    private volatile long backgroundRate;
+    private volatile boolean yielding;
+
+    // ip -> bucket, accessOrder = true (LRU), guarded by peers
+    private final LinkedHashMap<String, TokenBucket> peers = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+
+    private BandwidthLimiter(String name, long globalRate, long perPeerRate) {
+        this.name = name;
+        this.globalRate = globalRate;
+        this.perPeerRate = perPeerRate;
+        this.global = new TokenBucket(globalRate);
+    }
+
+    /** Chiều upload (file server gửi chunk) */
+    public static BandwidthLimiter upload() {
+        return UPLOAD;
+    }
+
+    /** Chiều download (client nhận chunk) */
+    public static BandwidthLimiter download() {
+        return DOWNLOAD;
+    }
+
+    /**
+     * Đổi giới hạn, áp ngay cho mọi kết nối đang mở.
+     * @param globalBytesPerSec tổng, 0 = không giới hạn
+     * @param perPeerBytesPerSec mỗi peer, 0 = không giới hạn
+     */
+    public void setLimits(long globalBytesPerSec, long perPeerBytesPerSec) {
+        this.globalRate = Math.max(0, globalBytesPerSec);
+        this.perPeerRate = Math.max(0, perPeerBytesPerSec);
+        global.setRate(effectiveGlobalRate());
+        synchronized (peers) {
+            for (TokenBucket b : peers.values()) b.setRate(perPeerRate);
+        }
+        System.out.println("[BandwidthLimiter] " + this);
+    }
+
+    /**
+     * Chế độ nền: khi có download / lưu lượng tương tác thì tổng chỉ còn backgroundBytesPerSec.
+     * @param backgroundBytesPerSec tốc độ khi nhường, <= 0 = DEFAULT_BACKGROUND_KBPS
+     */
+    public void setBackground(boolean enabled, long backgroundBytesPerSec) {
+        this.backgroundRate = backgroundBytesPerSec > 0 ? backgroundBytesPerSec : DEFAULT_BACKGROUND_KBPS * 1024L;
+        this.background = enabled;
+        refreshMode();
+        global.setRate(effectiveGlobalRate());
+    }
+
+    /** Download của máy này bắt đầu / kết thúc (upload chế độ nền nhường băng thông) */
+    static void foregroundStarted() {
+        foregroundDownloads.incrementAndGet();
+        UPLOAD.refreshMode();
+    }
+
+    static void foregroundFinished() {
+        foregroundDownloads.decrementAndGet();
+    }
+
+    /** Có lưu lượng cần độ trễ thấp (control: kết nối, tìm kiếm, duyệt file...) */
+    public static void noteInteractive() {
+        lastInteractive = System.currentTimeMillis();
+        UPLOAD.refreshMode();
+    }
+
+    Shaper forPeer(String address) {
+        TokenBucket b;
+        synchronized (peers) {
+            b = peers.computeIfAbsent(address, a -> new TokenBucket(perPeerRate));
+        }
+        return new Shaper(b);
+    }
+
+    /** Stream đọc socket của peer, đọc không nhanh hơn giới hạn */
+    InputStream wrap(InputStream in, String address) {
+        return new ShapedInputStream(in, forPeer(address));
+    }
+
+    /** Đang nhường băng thông cho lưu lượng foreground */
+    boolean isYielding() {
+        refreshMode();
+        return yielding;
+    }
+
+    @Override
+    public String toString() {
+        return name + " limit " + kbps(globalRate) + " total, " + kbps(perPeerRate) + " per peer"
+                + (background ? ", background " + kbps(backgroundRate) + (yielding ? " (yielding)" : "") : "");
+    }
+
+    // chế độ nền: bật / tắt nhường khi foreground thay đổi (gọi thường xuyên, đổi rate chỉ khi chuyển trạng thái)
+    private void refreshMode() {
+        boolean yield = background && (foregroundDownloads.get() > 0
+                || System.currentTimeMillis() - lastInteractive < INTERACTIVE_HOLD_MS);
+        if (yield == yielding) return;
+        yielding = yield;
+        global.setRate(effectiveGlobalRate());
+    }
+
+    private long effectiveGlobalRate() {
+        if (!yielding) return globalRate;
+        return globalRate > 0 ? Math.min(globalRate, backgroundRate) : backgroundRate;
+    }
+
+    private static String kbps(long bytesPerSec) {
+        return bytesPerSec <= 0 ? "unlimited" : (bytesPerSec / 1024) + " KB/s";
+    }
+
+    private static long kbpsFromConfig(String key) {
+        return kbpsFromConfig(key, 0);
+    }
+
+    private static long kbpsFromConfig(String key, int fallbackKbps) {
+        String value = AppConfig.load(key);
+        if (value == null || value.isBlank()) return fallbackKbps * 1024L;
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1024L;
+        } catch (NumberFormatException e) {
+            return fallbackKbps * 1024L;
+        }
+    }
+
+    // mỗi lần read chỉ đọc tối đa số byte được cấp (tối đa QUANTUM); dư thì trả lại
+    private static final class ShapedInputStream extends FilterInputStream {
+        private final Shaper shaper;
+
+        ShapedInputStream(InputStream in, Shaper shaper) {
+            super(in);
+            this.shaper = shaper;
+        }
+
+        @Override
+        public int read() throws IOException {
+            shaper.acquire(1);
+            int b = in.read();
+            if (b < 0) shaper.refund(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int allowed = (int) shaper.acquire(Math.min(len, QUANTUM));
+            int n = in.read(b, off, allowed);
+            shaper.refund(allowed - Math.max(n, 0));
+            return n;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.AppConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool ByteBuffer direct dùng chung cho client và server (chunk nhận về, chunk đọc ra để nén,
+ * buffer hash manifest...) thay cho cấp byte[] mới mỗi chunk.
+ *
+ * - Size class lũy thừa 2 từ MIN_CLASS tới MAX_CLASS (= chunk size lớn nhất); buffer trả về
+ *   có limit = size xin, capacity = class
+ * - Tổng bộ nhớ (đang cho mượn + đang rảnh) không vượt budget (KEY_BUFFER_POOL_MB)
+ * - Hết budget: acquire() chờ tối đa timeout rồi ném BusyException ("Server busy"),
+ *   tryAcquire() trả null ngay -> caller không bao giờ tự cấp buffer ngoài pool
+ * - Cần class khác mà budget đầy vì buffer rảnh: bỏ bớt buffer rảnh (GC thu hồi bộ nhớ direct)
+ * - stats(): đang dùng / đang rảnh / số lần phải chờ / tổng thời gian chờ / số lần BUSY
+ */
+public final class BufferPool {
+
+    /** Key AppConfig: tổng bộ nhớ pool (MB) */
+    public static final String KEY_BUFFER_POOL_MB = "buffer_pool_mb";
+    public static final int DEFAULT_BUDGET_MB = 128;
+
+    static final int MIN_CLASS = 64 * 1024;
+    static final int MAX_CLASS = ChunkSizePolicy.MAX;
+    // budget tối thiểu: đủ 2 buffer lớn nhất
+    private static final long MIN_BUDGET = 2L * MAX_CLASS;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS) - Integer.numberOfTrailingZeros(MIN_CLASS) + 1;
+
+    /** Hết buffer trong thời gian chờ */
+    public static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException() {
+            super(FileTransferProtocol.ERR_BUSY);
+        }
+    }
+
+    /** Ảnh chụp trạng thái pool */
+    public static final class Stats {
+        public final long budgetBytes;
+        public final long inUseBytes;
+        public final long idleBytes;
+        public final long acquired;
+        public final long waits;
+        public final long waitMillis;
+        public final long busy;
+
+        private Stats(long budgetBytes, long inUseBytes, long idleBytes, long acquired, long waits, long waitMillis,
+                      long busy) {
+            this.budgetBytes = budgetBytes;
+            this.inUseBytes = inUseBytes;
+            this.idleBytes = idleBytes;
+            this.acquired = acquired;
+            this.waits = waits;
+            this.waitMillis = waitMillis;
+            this.busy = busy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("in use %.1f MB, idle %.1f MB of %.0f MB; %d acquired, %d waited (%d ms), %d busy",
+                    inUseBytes / (1024.0 * 1024.0), idleBytes / (1024.0 * 1024.0), budgetBytes / (1024.0 * 1024.0),
+                    acquired, waits, waitMillis, busy);
+        }
+    }
+
+    private static volatile BufferPool shared;
+
+    private final long budget;
+
+    // guarded by this
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<ByteBuffer>[] idle = new ArrayDeque[CLASSES];
+    private long inUseBytes = 0;
+    private long idleBytes = 0;
+    private long acquired = 0;
+    private long waits = 0;
+    private long waitNanos = 0;
+    private long busy = 0;
+
+    BufferPool(long budgetBytes) {
+        this.budget = Math.max(MIN_BUDGET, budgetBytes);
+        for (int i = 0; i < CLASSES; i++) idle[i] = new ArrayDeque<>();
+    }
+
+    public static BufferPool shared() {
+        BufferPool p = shared;
+        if (p == null) {
+            synchronized (BufferPool.class) {
+                p = shared;
+                if (p == null) {
+                    p = new BufferPool(budgetFromConfig());
+                    shared = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    static long budgetFromConfig() {
+        String value = AppConfig.load(KEY_BUFFER_POOL_MB);
+        long mb = DEFAULT_BUDGET_MB;
+        if (value != null && !value.isBlank()) {
+            try {
+                mb = Long.parseLong(value.trim());
+            } catch (NumberFormatException ignored) {
+                // giữ mặc định
+            }
+        }
+        return mb * 1024 * 1024;
+    }
+
+    /**
+     * Mượn buffer size byte (position 0, limit size), chờ tối đa timeoutMs khi pool đầy.
+     * @throws BusyException hết thời gian chờ hoặc thread bị interrupt (cờ interrupt giữ nguyên)
+     */
+    ByteBuffer acquire(int size, long timeoutMs) throws BusyException {
+        int cls = classOf(size);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (this) {
+            ByteBuffer buf = take(cls);
+            if (buf != null) return prepare(buf, size);
+
+            waits++;
+            long start = System.nanoTime();
+            try {
+                while (buf == null) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        busy++;
+                        throw new BusyException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                    buf = take(cls);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                busy++;
+                throw new BusyException();
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+            return prepare(buf, size);
+        }
+    }
+
+    /** Mượn buffer nếu có ngay, không thì null */
+    synchronized ByteBuffer tryAcquire(int size) {
+        ByteBuffer buf = take(classOf(size));
+        return buf == null ? null : prepare(buf, size);
+    }
+
+    /** Trả buffer đã mượn (null bỏ qua) */
+    void release(ByteBuffer buf) {
+        if (buf == null) return;
+        int cls = classOf(buf.capacity());
+        synchronized (this) {
+            inUseBytes -= buf.capacity();
+            buf.clear();
+            idle[cls].push(buf);
+            idleBytes += buf.capacity();
+            notifyAll();
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(budget, inUseBytes, idleBytes, acquired, waits, TimeUnit.NANOSECONDS.toMillis(waitNanos), busy);
+    }
+
+    // guarded by this: buffer rảnh đúng class, không có thì cấp mới nếu còn budget (bỏ bớt buffer rảnh class khác)
+    private ByteBuffer take(int cls) {
+        ByteBuffer buf = idle[cls].poll();
+        if (buf != null) {
+            idleBytes -= buf.capacity();
+        } else {
+            long need = (long) MIN_CLASS << cls;
+            if (inUseBytes + need > budget) return null;
+            for (int c = CLASSES - 1; c >= 0 && inUseBytes + idleBytes + need > budget; c--) {
+                while (!idle[c].isEmpty() && inUseBytes + idleBytes + need > budget) {
+                    idleBytes -= idle[c].pop().capacity();
+                }
+            }
+            buf = ByteBuffer.allocateDirect((int) need);
+        }
+        inUseBytes += buf.capacity();
+        acquired++;
+        return buf;
+    }
+
+    private static ByteBuffer prepare(ByteBuffer buf, int size) {
+        buf.clear().limit(size);
+        return buf;
+    }
+
+    private static int classOf(int size) {
+        if (size < 0 || size > MAX_CLASS) throw new IllegalArgumentException("Buffer size out of range: " + size);
+        int cls = Math.max(MIN_CLASS, Integer.highestOneBit(Math.max(1, size)));
+        if (cls < size) cls <<= 1;
+        return Integer.numberOfTrailingZeros(cls) - Integer.numberOfTrailingZeros(MIN_CLASS);
+    }
+}
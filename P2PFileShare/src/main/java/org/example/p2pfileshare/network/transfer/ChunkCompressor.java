@@ -0,0 +1,125 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Nén chunk cho client xin DEFLATE (CHUNK_DATA_Z), phía file server.
+ *
+ * - Deflater BEST_SPEED; chỉ gửi bản nén khi nhỏ đi ít nhất MIN_SAVING
+ * - Thử nén PROBE byte đầu trước: không nhỏ đi thì coi cả chunk không nén được (video, zip...)
+ * - Kết quả cache trong RAM theo hash chunk (cạnh manifest cache, cùng nội dung = cùng key),
+ *   kể cả "không nén được" -> chunk đó lần sau gửi thẳng bằng sendfile, không nén lại
+ * - LRU giới hạn theo tổng byte; buffer đọc / nén mượn BufferPool
+ * - Nhiều request cùng nén 1 chunk cùng lúc (SingleFlight): nén 1 lần, dùng chung kết quả
+ */
+final class ChunkCompressor {
+
+    static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int PROBE = 64 * 1024;
+    private static final double MIN_SAVING = 0.1;
+    private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+    // entry "không nén được": tính như bấy nhiêu byte cho LRU
+    private static final int MARKER_COST = 64;
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+
+    // chunkSha256 -> bản nén (INCOMPRESSIBLE nếu không đáng nén), accessOrder = true, guarded by cache
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private final SingleFlight<String, byte[]> compressing = new SingleFlight<>();
+
+    /**
+     * Bản nén của chunk [offset, offset + len) trong fc; null nếu không đáng nén (gửi bản gốc).
+     * @param chunkHash SHA-256 của chunk (key cache)
+     */
+    byte[] compress(String chunkHash, FileChannel fc, long offset, int len) throws IOException {
+        byte[] hit = cached(chunkHash);
+        if (hit != null) return hit == INCOMPRESSIBLE ? null : hit;
+        return compressing.run(chunkHash, () -> {
+            byte[] again = cached(chunkHash); // lần nén vừa xong
+            if (again != null) return again == INCOMPRESSIBLE ? null : again;
+            return compressNow(chunkHash, fc, offset, len);
+        });
+    }
+
+    /** Số lần nén được gộp vào lần nén đang chạy */
+    long sharedCompressions() {
+        return compressing.shared();
+    }
+
+    private byte[] cached(String chunkHash) {
+        synchronized (cache) {
+            return cache.get(chunkHash);
+        }
+    }
+
+    private byte[] compressNow(String chunkHash, FileChannel fc, long offset, int len) throws IOException {
+        // buffer lấy từ pool; pool đầy -> lần này gửi bản gốc (không cache kết quả)
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer raw = pool.tryAcquire(len);
+        ByteBuffer out = raw == null ? null : pool.tryAcquire((int) (len * (1 - MIN_SAVING)));
+        if (out == null) {
+            pool.release(raw);
+            return null;
+        }
+        try {
+            while (raw.hasRemaining()) {
+                if (fc.read(raw, offset + raw.position()) < 0) throw new IOException("File truncated while compressing");
+            }
+            raw.flip();
+
+            byte[] packed = len > PROBE && deflate(raw.duplicate().limit(PROBE), out) == null ? null : deflate(raw, out);
+            remember(chunkHash, packed == null ? INCOMPRESSIBLE : packed);
+            return packed;
+        } finally {
+            pool.release(raw);
+            pool.release(out);
+        }
+    }
+
+    // nén phần còn lại của raw; null nếu kết quả không nhỏ hơn raw.remaining() * (1 - MIN_SAVING)
+    private static byte[] deflate(ByteBuffer raw, ByteBuffer out) {
+        int limit = (int) (raw.remaining() * (1 - MIN_SAVING));
+        out.clear().limit(limit);
+        Deflater d = DEFLATER.get();
+        d.reset();
+        d.setInput(raw);
+        d.finish();
+        while (!d.finished() && out.hasRemaining()) {
+            d.deflate(out);
+        }
+        if (!d.finished()) return null;
+        out.flip();
+        byte[] result = new byte[out.remaining()];
+        out.get(result);
+        return result;
+    }
+
+    private void remember(String chunkHash, byte[] value) {
+        synchronized (cache) {
+            byte[] old = cache.put(chunkHash, value);
+            if (old != null) cachedBytes -= cost(old);
+            cachedBytes += cost(value);
+
+            Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+            while (cachedBytes > MAX_CACHE_BYTES && it.hasNext()) {
+                Map.Entry<String, byte[]> eldest = it.next();
+                if (eldest.getKey().equals(chunkHash)) continue;
+                cachedBytes -= cost(eldest.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private static long cost(byte[] value) {
+        return value == INCOMPRESSIBLE ? MARKER_COST : value.length;
+    }
+}
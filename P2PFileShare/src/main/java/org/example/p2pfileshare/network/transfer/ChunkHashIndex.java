@@ -0,0 +1,132 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Hash từng chunk phía client, lưu dạng byte (32 byte / chunk) thay cho List<String> hex.
+ *
+ * - Server gửi đủ danh sách (server cũ): nạp hết ngay
+ * - Server gửi Merkle root: hash tải dần theo batch (GET_HASHES) khi sắp tải tới chunk đó,
+ *   mỗi batch được kiểm tra với root trước khi dùng -> chunk khớp hash = khớp root
+ */
+final class ChunkHashIndex {
+
+    private final int totalChunks;
+    private final byte[] merkleRoot;   // null nếu nạp từ danh sách đầy đủ
+    private final int batchWidth;
+    private final byte[] hashes;       // totalChunks * 32
+    private final BitSet loadedBatches = new BitSet();
+    private volatile String rootHex;
+
+    private ChunkHashIndex(int totalChunks, byte[] merkleRoot) {
+        this.totalChunks = totalChunks;
+        this.merkleRoot = merkleRoot;
+        this.batchWidth = MerkleTree.batchWidth(totalChunks);
+        this.hashes = new byte[totalChunks * MerkleTree.HASH_LEN];
+    }
+
+    static ChunkHashIndex of(FileMetadata meta) {
+        if (meta.isMerkle()) {
+            ChunkHashIndex index = new ChunkHashIndex(meta.getTotalChunks(), FileHashUtil.fromHex(meta.getMerkleRoot()));
+            index.rootHex = meta.getMerkleRoot();
+            return index;
+        }
+
+        ChunkHashIndex index = new ChunkHashIndex(meta.getTotalChunks(), null);
+        List<String> list = meta.getChunkHashes();
+        for (int i = 0; i < list.size(); i++) {
+            System.arraycopy(FileHashUtil.fromHex(list.get(i)), 0, index.hashes, i * MerkleTree.HASH_LEN, MerkleTree.HASH_LEN);
+        }
+        index.loadedBatches.set(0, MerkleTree.batchCount(meta.getTotalChunks()));
+        return index;
+    }
+
+    boolean isMerkle() {
+        return merkleRoot != null;
+    }
+
+    /** Root (hex) để so với peer khác; danh sách đầy đủ thì tự dựng cây */
+    String rootHex() {
+        String r = rootHex;
+        if (r == null) {
+            r = MerkleTree.build(asHexList()).rootHex();
+            rootHex = r;
+        }
+        return r;
+    }
+
+    synchronized boolean isLoaded(int chunkIndex) {
+        return loadedBatches.get(chunkIndex / batchWidth);
+    }
+
+    synchronized boolean isFullyLoaded() {
+        // batchCount() tính cả batch chỉ gồm lá đệm (cây đệm lên lũy thừa 2), batch đó không bao giờ được tải
+        return loadedBatches.cardinality() >= (totalChunks + batchWidth - 1) / batchWidth;
+    }
+
+    /**
+     * Đảm bảo đã có hash cho [start, start + count): batch nào thiếu thì tải qua session
+     * (nguồn có file hoàn chỉnh) và kiểm tra với root.
+     */
+    void ensure(TransferSession session, String remoteName, int start, int count) throws IOException {
+        if (merkleRoot == null) return;
+        for (int b = start / batchWidth; b <= (start + count - 1) / batchWidth; b++) {
+            synchronized (this) {
+                if (loadedBatches.get(b)) continue;
+            }
+
+            TransferSession.HashBatch batch = session.requestHashes(remoteName, b);
+            if (batch.batch != b || !MerkleTree.verifyBatch(merkleRoot, totalChunks, b, batch.leaves, batch.proof)) {
+                throw new IOException("Hash batch " + b + " does not match Merkle root");
+            }
+
+            synchronized (this) {
+                int first = b * batchWidth;
+                for (int i = 0; i < batch.leaves.length; i++) {
+                    System.arraycopy(batch.leaves[i], 0, hashes, (first + i) * MerkleTree.HASH_LEN, MerkleTree.HASH_LEN);
+                }
+                loadedBatches.set(b);
+            }
+        }
+    }
+
+    /** So SHA-256 của dữ liệu chunk (raw digest) với hash đã xác minh */
+    synchronized boolean matches(int chunkIndex, byte[] digest) {
+        if (!loadedBatches.get(chunkIndex / batchWidth)) return false;
+        int off = chunkIndex * MerkleTree.HASH_LEN;
+        return MessageDigest.isEqual(digest, Arrays.copyOfRange(hashes, off, off + MerkleTree.HASH_LEN));
+    }
+
+    synchronized byte[] bytes(int chunkIndex) {
+        int off = chunkIndex * MerkleTree.HASH_LEN;
+        return Arrays.copyOfRange(hashes, off, off + MerkleTree.HASH_LEN);
+    }
+
+    String hex(int chunkIndex) {
+        return FileHashUtil.toHex(bytes(chunkIndex));
+    }
+
+    /** View dạng List<String> hex (cho code server dùng FileManifest) - chỉ đọc chunk đã nạp */
+    List<String> asHexList() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return hex(index);
+            }
+
+            @Override
+            public int size() {
+                return totalChunks;
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.AppConfig;
+
+/**
+ * Chọn chunk size cho từng file (thay cho 1 MB cố định).
+ *
+ * - Client gửi khoảng chấp nhận được (option CHUNK=min-max trong FILE_META_REQUEST)
+ * - Server chọn: manifest đã cache với size nằm trong khoảng (không phải hash lại file),
+ *   không có thì auto(fileSize) kẹp vào khoảng; size được ghi trong manifest / metadata
+ * - Các request sau (GET_RANGE, GET_HASHES...) gửi lại CHUNK=size đã chọn
+ * - Request không có option (client cũ) -> LEGACY (1 MB) như trước
+ *
+ * Size luôn là lũy thừa 2 trong [MIN, MAX] (giới hạn số manifest 1 file có thể có).
+ */
+final class ChunkSizePolicy {
+
+    static final int LEGACY = 1024 * 1024;
+    static final int MIN = 64 * 1024;
+    static final int MAX = 16 * 1024 * 1024;
+    // auto: ~ số chunk / file (đủ để chia cho nhiều kết nối, hash list nhỏ); file nhỏ không xuống dưới AUTO_MIN
+    private static final int TARGET_CHUNKS = 256;
+    private static final int AUTO_MIN = 256 * 1024;
+
+    /** ManifestStore.watch(): tính manifest theo auto(size) của từng file */
+    static final int AUTO = 0;
+
+    private ChunkSizePolicy() {}
+
+    /** Size mặc định cho file: ~fileSize / TARGET_CHUNKS, lũy thừa 2 trong [AUTO_MIN, MAX] */
+    static int auto(long fileSize) {
+        long target = Math.max(1, fileSize / TARGET_CHUNKS);
+        long pow2 = Long.highestOneBit(target);
+        if (pow2 < target) pow2 <<= 1;
+        return (int) Math.max(AUTO_MIN, Math.min(MAX, pow2));
+    }
+
+    static boolean isValid(int size) {
+        return size >= MIN && size <= MAX && Integer.bitCount(size) == 1;
+    }
+
+    /** size kẹp vào [min, max] (min, max đã hợp lệ) */
+    static int clamp(int size, int min, int max) {
+        return Math.max(min, Math.min(max, size));
+    }
+
+    /**
+     * Khoảng client chấp nhận, từ AppConfig (ChunkedFileClient.KEY_CHUNK_SIZE):
+     * "auto"/trống -> [MIN, MAX]; "<N>" (KB) -> đúng 1 size (làm tròn lên lũy thừa 2)
+     */
+    static int[] preferenceFromConfig() {
+        String value = AppConfig.load(ChunkedFileClient.KEY_CHUNK_SIZE);
+        if (value == null || value.isBlank() || "auto".equalsIgnoreCase(value.trim())) {
+            return new int[]{MIN, MAX};
+        }
+        try {
+            long kb = Long.parseLong(value.trim());
+            long bytes = Math.max(MIN, Math.min(MAX, kb * 1024));
+            int size = Integer.highestOneBit((int) bytes);
+            if (size < bytes) size <<= 1;
+            return new int[]{size, size};
+        } catch (NumberFormatException e) {
+            return new int[]{MIN, MAX};
+        }
+    }
+}
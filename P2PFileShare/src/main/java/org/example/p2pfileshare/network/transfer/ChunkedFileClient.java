@@ -3,18 +3,47 @@ package org.example.p2pfileshare.network.transfer;
 import org.example.p2pfileshare.model.DownloadProgress;
 import org.example.p2pfileshare.model.FileMetadata;
 import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.AppConfig;
+import org.example.p2pfileshare.util.ChunkLayout;
 import org.example.p2pfileshare.util.FileHashUtil;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.function.Consumer;
 
 public class ChunkedFileClient {
 
-    private static final int SOCKET_TIMEOUT_MS = 8000;
-    private static final int MAX_RETRIES = 3;
+    static final int SOCKET_TIMEOUT_MS = 8000;
+    static final int MAX_RETRIES = 3;
+    // server trả "Server busy": chờ theo retry-after rồi thử lại, không tính vào MAX_RETRIES (tối đa bấy nhiêu lần liên tiếp)
+    static final int MAX_BUSY_WAITS = 20;
+
+    /** Key AppConfig: số kết nối song song cho 1 file */
+    public static final String KEY_DOWNLOAD_CONNECTIONS = "download_connections";
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    /** Key AppConfig: fsync file .part - "never", "complete" (mặc định) hoặc số MB giữa 2 lần fsync */
+    public static final String KEY_DOWNLOAD_FSYNC = "download_fsync";
+
+    /** Key AppConfig: "false" = tắt delta sync khi đã có bản cũ ở chỗ lưu */
+    public static final String KEY_DELTA_SYNC = "delta_sync";
+
+    /** Key AppConfig: chunk size muốn dùng - "auto" (mặc định, server chọn theo file) hoặc số KB */
+    public static final String KEY_CHUNK_SIZE = "chunk_size";
+
+    /** Key AppConfig: "false" = không lấy file/chunk trùng hash từ những file đã tải (LocalChunkStore) */
+    public static final String KEY_LOCAL_STORE = "local_store";
+
+    /** Key AppConfig: "false" = không xin server nén chunk (DEFLATE) */
+    public static final String KEY_COMPRESSION = "transfer_compression";
 
     /**
      * Bước 1: Request metadata từ server (binary protocol)
@@ -33,138 +62,229 @@ public class ChunkedFileClient {
      *   - reason (UTF)
      */
     public static FileMetadata requestMetadata(String host, int port, String fileName) throws IOException {
-        try (Socket socket = new Socket(host, port)) {
-            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
-
-            try (DataInputStream in = new DataInputStream(socket.getInputStream());
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-
-                // Send request
-                String request = FileTransferProtocol.buildMetaRequest(fileName);
-                out.writeUTF(request);
-                // đảm bảo gửi ngay bầy giờ
-                out.flush();
-
-                // Read type
-                String type = in.readUTF();
-                if (type == null) throw new IOException("No response from server");
-
-                if ("ERROR".equals(type)) {
-                    String reason = in.readUTF();
-                    throw new IOException("Server error: " + reason);
-                }
-
-                if (!FileTransferProtocol.FILE_META_RESPONSE.equals(type)) {
-                    throw new IOException("Unexpected response type: " + type);
-                }
-
-                // Read fields
-                String name = in.readUTF();
-                long fileSize = in.readLong();
-                int chunkSize = in.readInt();
-                int totalChunks = in.readInt();
-                String fileSha256 = in.readUTF();
-
-                // Read chunk hashes
-                List<String> chunkHashes = new ArrayList<>(totalChunks);
-                for (int i = 0; i < totalChunks; i++) {
-                    chunkHashes.add(in.readUTF());
-                }
-
-                return new FileMetadata(name, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes);
-            }
+        try (TransferSession session = TransferSession.open(host, port, SOCKET_TIMEOUT_MS)) {
+            return session.requestMetadata(fileName);
         }
     }
 
     /**
-     * Download: Chunk + Resume + Integrity (resume thật sự)
+     * Download: Chunk + Resume + Integrity (resume thật sự).
+     * Số kết nối song song lấy từ AppConfig (download_connections), mặc định 4.
      */
     public static boolean downloadFile(String host, int port, String fileName, Path saveTo,
                                        Consumer<Double> progressCallback, DownloadControl control) throws IOException {
+        return downloadFile(host, port, fileName, saveTo, progressCallback, control, connectionsFromConfig());
+    }
+
+    /**
+     * @param connections số chunk tải song song (mỗi chunk-range 1 kết nối riêng), 1 = tuần tự như cũ
+     */
+    public static boolean downloadFile(String host, int port, String fileName, Path saveTo,
+                                       Consumer<Double> progressCallback, DownloadControl control,
+                                       int connections) throws IOException {
+        return downloadFile(host, port, fileName, saveTo, progressCallback, control, connections, List.of());
+    }
+
+    /**
+     * Swarm download: metadata lấy từ host:port, chunk tải đồng thời từ host:port và mọi peer trong
+     * swarmPeers đang giữ file cùng SHA-256 (hỏi bằng FILE_META_BY_HASH, peer không có thì bỏ qua).
+     */
+    public static boolean downloadFile(String host, int port, String fileName, Path saveTo,
+                                       Consumer<Double> progressCallback, DownloadControl control,
+                                       List<InetSocketAddress> swarmPeers) throws IOException {
+        return downloadFile(host, port, fileName, saveTo, progressCallback, control, connectionsFromConfig(), swarmPeers);
+    }
+
+    public static boolean downloadFile(String host, int port, String fileName, Path saveTo,
+                                       Consumer<Double> progressCallback, DownloadControl control,
+                                       int connections, List<InetSocketAddress> swarmPeers) throws IOException {
+        // đang tải: upload chế độ nền nhường băng thông
+        BandwidthLimiter.foregroundStarted();
+        try {
+            return download(host, port, fileName, saveTo, progressCallback, control, connections, swarmPeers);
+        } finally {
+            BandwidthLimiter.foregroundFinished();
+        }
+    }
+
+    private static boolean download(String host, int port, String fileName, Path saveTo,
+                                    Consumer<Double> progressCallback, DownloadControl control,
+                                    int connections, List<InetSocketAddress> swarmPeers) throws IOException {
 
         // Paths for resume
         // địa chỉ file tạm khi đang tải
         Path partFile = Path.of(saveTo.toString() + ".part");
-        // địa chỉ lưu thông tin metadata
-        Path metaFile = Path.of(saveTo.toString() + ".meta.properties");
-        // địa chỉ lưu bitmap tiến độ, đánh dấu chunk đã tải xong
-        Path bitmapFile = Path.of(saveTo.toString() + ".bitmap");
-
-        // 1) Request metadata
-        FileMetadata meta = requestMetadata(host, port, fileName);
-        System.out.println("[ChunkedFileClient] Metadata: chunks=" + meta.getTotalChunks()
-                + ", size=" + meta.getFileSize() + ", chunkSize=" + meta.getChunkSize());
-
-        // 2) Nếu có meta cũ mà mismatch -> reset (tránh resume nhầm file)
-        if (Files.exists(metaFile)) {
-            if (!isSameMeta(metaFile, meta)) {
-                System.out.println("[ChunkedFileClient] Meta mismatch -> reset resume files");
-                safeDelete(partFile);
-                safeDelete(bitmapFile);
-                safeDelete(metaFile);
+        // journal resume: header (định danh file) + 1 record / chunk đã tải xong
+        Path journalFile = Path.of(saveTo.toString() + ".resume");
+
+        // 1 session cho cả metadata lẫn chunk (không phải mở socket mới cho mỗi chunk)
+        FileMetadata meta;
+        TransferSession session = null;
+        String seedingHash = null;
+        IncrementalFileDigest digest = null;
+        String actualHash = null;
+        ChunkHashIndex hashes;
+        boolean useStore = !"false".equalsIgnoreCase(AppConfig.load(KEY_LOCAL_STORE));
+        try {
+            // 1) Request metadata; server quá tải (BUSY) -> chờ theo retry-after rồi nối lại
+            //    (kết nối vượt quota bị server đóng sau BUSY)
+            int previousChunkSize = ResumeJournal.chunkSizeOf(journalFile);
+            for (int attempt = 0; ; attempt++) {
+                session = TransferSession.open(host, port, SOCKET_TIMEOUT_MS);
+                // lần tải dở trước dùng chunk size nào thì xin lại đúng size đó (journal còn dùng được)
+                if (ChunkSizePolicy.isValid(previousChunkSize)) {
+                    session.preferChunkSizes(previousChunkSize, previousChunkSize);
+                }
+                try {
+                    meta = session.requestMerkleMetadata(fileName);
+                    break;
+                } catch (TransferSession.ServerBusyException e) {
+                    session.close();
+                    session = null;
+                    if (attempt >= MAX_BUSY_WAITS) throw e;
+                    try {
+                        Thread.sleep(e.backoffMs(attempt));
+                    } catch (InterruptedException ie) {
+                        return false; // cancel trong lúc chờ
+                    }
+                }
+            }
+            if (meta.getChunkSize() <= 0) throw new IOException("Invalid chunk size " + meta.getChunkSize());
+            session.useChunkSize(meta.getChunkSize());
+            System.out.println("[ChunkedFileClient] Metadata: chunks=" + meta.getTotalChunks()
+                    + ", size=" + meta.getFileSize() + ", chunkSize=" + meta.getChunkSize());
+
+            // Đã từng tải file cùng SHA-256 (khác tên / khác peer) -> copy local, không qua mạng
+            if (useStore && copyFromLocalStore(meta, saveTo)) {
+                System.out.println("[ChunkedFileClient] Download complete (local copy): " + saveTo);
+                return true;
             }
-        }
 
-        // 3) Lưu meta (để lần sau resume)
-        saveMeta(metaFile, meta);
+            // Đã có bản cũ ở chỗ lưu (và không có lần tải dở) -> delta sync: chỉ tải phần khác
+            if (Files.isRegularFile(saveTo) && !Files.exists(journalFile)
+                    && !"false".equalsIgnoreCase(AppConfig.load(KEY_DELTA_SYNC))) {
+                try {
+                    if (DeltaSync.run(session, fileName, meta, saveTo, progressCallback, control)) {
+                        if (useStore) indexDownloaded(saveTo, meta, null);
+                        System.out.println("[ChunkedFileClient] Download complete: " + saveTo);
+                        return true;
+                    }
+                    // delta hỏng giữa chừng có thể để lại byte chưa đọc trên session -> mở session mới
+                    session.close();
+                    session = TransferSession.open(host, port, SOCKET_TIMEOUT_MS);
+                    session.useChunkSize(meta.getChunkSize());
+                } catch (InterruptedException e) {
+                    return false; // cancel: bản cũ giữ nguyên, DeltaSync đã xoá file tạm
+                }
+            }
 
-        // 4) Tạo .part đúng size (pre-allocate) hoặc fix size nếu lệch
-        ensurePartFileSized(partFile, meta.getFileSize());
+            // File resume kiểu cũ (.meta.properties + .bitmap) không dùng nữa
+            safeDelete(Path.of(saveTo.toString() + ".meta.properties"));
+            safeDelete(Path.of(saveTo.toString() + ".bitmap"));
+
+            // Hash chunk: đủ danh sách (server cũ) hoặc tải dần theo Merkle root
+            hashes = ChunkHashIndex.of(meta);
+
+            // Download missing chunks: nhiều kết nối song song, mỗi kết nối GET_RANGE từng dải chunk
+            // còn thiếu và ghi positional vào .part. Server cũ không hiểu GET_RANGE -> 1 kết nối / chunk.
+            // Có swarmPeers -> mỗi peer giữ cùng file là 1 nguồn nữa.
+            List<ParallelChunkDownloader.Source> sources = new ArrayList<>();
+            sources.add(new ParallelChunkDownloader.Source(host, port, fileName));
+            for (InetSocketAddress peer : swarmPeers) {
+                if (peer.getHostString().equals(host) && peer.getPort() == port) continue;
+                sources.add(new ParallelChunkDownloader.Source(peer.getHostString(), peer.getPort(), null));
+            }
 
-        // 5) Load bitmap (resume)
-        DownloadProgress progress = new DownloadProgress(
-                fileName, meta.getFileSize(), meta.getChunkSize(), meta.getTotalChunks(), meta.getFileSha256()
-        );
-        progress.loadBitmap(bitmapFile);
+            // 2) .part: 1 channel cho cả job (tạo đúng size / đổi size nếu lệch), fsync theo cấu hình
+            // 3) Journal resume: cùng file -> resume; file bên kia đã đổi -> giữ chunk có hash không đổi
+            //    (Merkle: chỉ tải batch hash chứa chunk cũ qua session metadata)
+            TransferSession metaSession = session;
+            ResumeJournal.HashLookup newHashes = i -> {
+                hashes.ensure(metaSession, fileName, i, 1);
+                return hashes.bytes(i);
+            };
+            try (PartFileWriter part = PartFileWriter.open(partFile, meta.getFileSize());
+                 ResumeJournal journal = ResumeJournal.open(journalFile, meta, part, newHashes)) {
+
+                // 4) Tiến độ từ journal (resume)
+                DownloadProgress progress = new DownloadProgress(
+                        fileName, meta.getFileSize(), meta.getChunkSize(), meta.getTotalChunks(), meta.getFileSha256()
+                );
+                BitSet done = journal.completed();
+                for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) progress.markChunkComplete(i);
+
+                // Chunk toàn 0 -> để lỗ trong .part; nhóm chunk trùng nhau -> chỉ tải 1 lần
+                ChunkLayout layout = requestLayout(metaSession, fileName, meta);
+                if (layout == null) {
+                    // server cũ đóng kết nối sau metadata -> worker tự mở kết nối (và nhận ra server cũ)
+                    layout = ChunkLayout.NONE;
+                    session.close();
+                    session = null;
+                }
+                if (!layout.isEmpty()) elideChunks(metaSession, fileName, meta, layout, hashes, part, journal, progress);
 
-        // Update initial progress
-        if (progressCallback != null) {
-            progressCallback.accept(progress.getProgressPercent() / 100.0);
-        }
+                // Chunk trùng hash với chunk của file đã tải -> đọc từ đĩa thay vì tải
+                // (Merkle: ở đây chỉ tra batch hash đã nạp, batch còn lại downloader tra khi tải tới)
+                boolean storeHasChunks = useStore && LocalChunkStore.shared().hasChunks();
+                if (storeHasChunks) {
+                    prefillFromLocalStore(meta, hashes, part, journal, progress, control);
+                }
 
-        // 6) Download missing chunks
-        for (int i = 0; i < meta.getTotalChunks(); i++) {
-            try {
-                if (control != null) control.checkpoint();
+                // Update initial progress
+                if (progressCallback != null) {
+                    progressCallback.accept(progress.getProgressPercent() / 100.0);
+                }
+
+                // Partial seeding: trong lúc tải, chunk đã verify được phục vụ cho peer khác
+                PartialSeedRegistry.register(meta, partFile, progress, hashes);
+                seedingHash = meta.getFileSha256();
+
+                // 5) Tải các chunk còn thiếu
+                ParallelChunkDownloader downloader = new ParallelChunkDownloader(sources, meta, hashes, part,
+                        progress, journal, progressCallback, control, connections);
+                downloader.reuseSession(session);
+                downloader.useLayout(layout);
+                if (storeHasChunks && meta.isMerkle()) downloader.useLocalStore(LocalChunkStore.shared());
+                // SHA-256 toàn file tính dần khi tải, resume thì đọc phần đầu đã có 1 lần
+                digest = IncrementalFileDigest.resume(part, meta, progress);
+                downloader.trackDigest(digest);
+                session = null; // downloader nhận quyền đóng
+
+                if (!downloader.run()) return false;
+                part.complete();
+                // lấy kết quả khi .part còn mở: chunk chưa kịp đưa vào digest (pool hết buffer) còn đọc lại được
+                actualHash = digest.resultHex();
             } catch (InterruptedException e) {
                 //  CANCEL: dọn file tạm
-                cleanupOnCancel(partFile, bitmapFile, metaFile);
+                cleanupOnCancel(partFile, journalFile);
                 return false;
             }
-            if (progress.isChunkComplete(i)) continue;
-
-            boolean ok = downloadChunk(host, port, fileName, i, meta, partFile, control);
-            if (!ok) {
-                System.err.println("[ChunkedFileClient] Failed to download chunk " + i);
-                return false;
-            }
-
-            progress.markChunkComplete(i);
-            progress.saveBitmap(bitmapFile);
-
-            if (progressCallback != null) {
-                progressCallback.accept(progress.getProgressPercent() / 100.0);
-            }
+        } finally {
+            if (session != null) session.close();
+            if (seedingHash != null) PartialSeedRegistry.unregister(seedingHash, partFile);
+            if (digest != null) digest.releaseHeld();
         }
 
-        // 7) Verify whole file hash (final integrity)
+        // 6) Verify whole file hash (final integrity)
         try {
             if (control != null) control.checkpoint(); //  trước khi verify
         } catch (InterruptedException e) {
-            cleanupOnCancel(partFile, bitmapFile, metaFile);
+            cleanupOnCancel(partFile, journalFile);
             return false;
         }
-        String actualHash = FileHashUtil.sha256(partFile);
+        // Kể cả Merkle: fileSha256 của server là danh tính file (LocalChunkStore, swarm, partial seeding)
+        // -> phải khớp nội dung thật. Digest tính dần nên thường không phải đọc lại file.
+        if (actualHash == null) actualHash = FileHashUtil.sha256(partFile); // digest dở dang -> đọc lại
         if (!actualHash.equals(meta.getFileSha256())) {
             System.err.println("[ChunkedFileClient] File hash mismatch! expected=" + meta.getFileSha256()
                     + " actual=" + actualHash);
             return false;
         }
 
-        // 8) Rename & cleanup
+        // 7) Rename & cleanup
         Files.move(partFile, saveTo, StandardCopyOption.REPLACE_EXISTING);
-        safeDelete(bitmapFile);
-        safeDelete(metaFile);
+        safeDelete(journalFile);
+        if (useStore) indexDownloaded(saveTo, meta, hashes);
 
         System.out.println("[ChunkedFileClient] Download complete: " + saveTo);
         return true;
@@ -184,10 +304,11 @@ public class ChunkedFileClient {
      *   - type = ERROR
      *   - reason (UTF)
      */
-    private static boolean downloadChunk(String host, int port, String fileName, int chunkIndex,
-                                         FileMetadata meta, Path partFile,
-                                         DownloadControl control) {
+    static boolean downloadChunk(String host, int port, String fileName, int chunkIndex,
+                                 FileMetadata meta, PartFileWriter part,
+                                 DownloadControl control) {
 
+        int busyWaits = 0;
         for (int retry = 1; retry <= MAX_RETRIES; retry++) {
             try {
                 // checkpoint trước khi request (đúng yêu cầu)
@@ -196,13 +317,15 @@ public class ChunkedFileClient {
                 try (Socket socket = new Socket(host, port)) {
                     socket.setSoTimeout(SOCKET_TIMEOUT_MS);
 
-                    try (DataInputStream in = new DataInputStream(socket.getInputStream());
+                    try (DataInputStream in = new DataInputStream(BandwidthLimiter.download().wrap(
+                                 socket.getInputStream(), socket.getInetAddress().getHostAddress()));
                          DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
                         // checkpoint trước khi request (lần nữa cũng OK)
                         if (control != null) control.checkpoint();
 
-                        String request = FileTransferProtocol.buildChunkRequest(fileName, chunkIndex);
+                        String request = FileTransferProtocol.withChunkSize(
+                                FileTransferProtocol.buildChunkRequest(fileName, chunkIndex), meta.getChunkSize());
                         out.writeUTF(request);
                         out.flush();
 
@@ -211,6 +334,16 @@ public class ChunkedFileClient {
 
                         if ("ERROR".equals(type)) {
                             String reason = in.readUTF();
+                            if (FileTransferProtocol.isGoingAway(reason)) {
+                                // server đang dừng: thử lại cũng vô ích
+                                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + ": server going away");
+                                return false;
+                            }
+                            if (FileTransferProtocol.isBusy(reason) && busyWaits < MAX_BUSY_WAITS) {
+                                Thread.sleep(TransferSession.ServerBusyException.of(reason).backoffMs(busyWaits++));
+                                retry--; // quá tải không phải lỗi chunk
+                                continue;
+                            }
                             System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " error: " + reason);
                             continue;
                         }
@@ -227,23 +360,30 @@ public class ChunkedFileClient {
                         //  checkpoint trước khi readFully (đúng yêu cầu)
                         if (control != null) control.checkpoint();
 
-                        byte[] chunkData = new byte[dataLen];
-                        in.readFully(chunkData);
-
-                        String actualHash = FileHashUtil.sha256(chunkData);
-                        if (!actualHash.equals(expectedHash)) {
-                            System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " hash mismatch (retry "
-                                    + retry + "/" + MAX_RETRIES + ")");
-                            continue;
-                        }
-
-                        //  checkpoint trước khi write (đúng yêu cầu)
-                        if (control != null) control.checkpoint();
-
-                        long offset = (long) chunkIndex * meta.getChunkSize();
-                        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
-                            raf.seek(offset);
-                            raf.write(chunkData);
+                        BufferPool pool = BufferPool.shared();
+                        ByteBuffer chunkData = pool.acquire(dataLen, SOCKET_TIMEOUT_MS);
+                        try {
+                            ReadableByteChannel ch = Channels.newChannel(in);
+                            while (chunkData.hasRemaining()) {
+                                if (ch.read(chunkData) < 0) throw new EOFException("Connection closed");
+                            }
+                            chunkData.flip();
+
+                            MessageDigest md = FileHashUtil.newSha256();
+                            md.update(chunkData.duplicate());
+                            String actualHash = FileHashUtil.toHex(md.digest());
+                            if (!actualHash.equals(expectedHash)) {
+                                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " hash mismatch (retry "
+                                        + retry + "/" + MAX_RETRIES + ")");
+                                continue;
+                            }
+
+                            //  checkpoint trước khi write (đúng yêu cầu)
+                            if (control != null) control.checkpoint();
+
+                            part.write((long) chunkIndex * meta.getChunkSize(), chunkData);
+                        } finally {
+                            pool.release(chunkData);
                         }
 
                         return true;
@@ -261,70 +401,157 @@ public class ChunkedFileClient {
         return false;
     }
 
-    // ---------------- helpers: meta/bitmap/part ----------------
+    // ---------------- helpers: config/resume files ----------------
 
-    private static void ensurePartFileSized(Path partFile, long fileSize) throws IOException {
-        if (!Files.exists(partFile)) {
-            try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
-                raf.setLength(fileSize);
-            }
-            return;
-        }
-        long current = Files.size(partFile);
-        if (current != fileSize) {
-            System.out.println("[ChunkedFileClient] .part size mismatch (" + current + " != " + fileSize + ") -> reset");
-            safeDelete(partFile);
-            try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
-                raf.setLength(fileSize);
-            }
+    static int connectionsFromConfig() {
+        String value = AppConfig.load(KEY_DOWNLOAD_CONNECTIONS);
+        if (value == null) return DEFAULT_CONNECTIONS;
+        try {
+            return Math.max(1, Math.min(16, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT_CONNECTIONS;
         }
     }
 
-    private static void safeDelete(Path p) {
+    // ---------------- helpers: chunk layout ----------------
+
+    // server cũ không hiểu GET_LAYOUT -> tải mọi chunk như trước; null = server đã đóng kết nối
+    private static ChunkLayout requestLayout(TransferSession session, String fileName, FileMetadata meta)
+            throws IOException {
         try {
-            if (p != null) Files.deleteIfExists(p);
-        } catch (IOException ignored) {}
+            return session.requestLayout(fileName, meta.getTotalChunks());
+        } catch (EOFException e) {
+            return null; // server cũ: 1 request / kết nối
+        } catch (IOException e) {
+            if (e.getMessage() != null && e.getMessage().startsWith("Server error")) return ChunkLayout.NONE;
+            throw e;
+        }
+    }
+
+    /**
+     * Đánh dấu xong (không tải) chunk toàn 0 và bản sao của chunk đã có trên .part; mọi chunk đều verify hash.
+     * Merkle: nạp trước hash của các chunk trong nhóm trùng để downloader verify bản sao khi ghi.
+     */
+    private static void elideChunks(TransferSession metaSession, String fileName, FileMetadata meta,
+                                    ChunkLayout layout, ChunkHashIndex hashes, PartFileWriter part,
+                                    ResumeJournal journal, DownloadProgress progress) throws IOException {
+        MessageDigest sha256 = FileHashUtil.newSha256();
+        byte[] zeroDigest = null;
+        int zeros = 0;
+        for (int i = 0; i < meta.getTotalChunks(); i++) {
+            if (progress.isChunkComplete(i)) continue;
+            int source = layout.sourceOf(i);
+            if (!layout.isZero(i) && source == i) continue;
+
+            hashes.ensure(metaSession, fileName, i, 1);
+            long offset = (long) i * meta.getChunkSize();
+            int len = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+
+            if (layout.isZero(i)) {
+                if (len != meta.getChunkSize()) {
+                    if (!hashes.matches(i, ChunkLayout.zeroDigest(len))) continue;
+                } else {
+                    if (zeroDigest == null) zeroDigest = ChunkLayout.zeroDigest(len);
+                    if (!hashes.matches(i, zeroDigest)) continue;
+                }
+                // vùng chưa từng ghi của .part là lỗ (đọc ra 0); .part cũ thì phải ghi 0 đè dữ liệu cũ
+                if (offset < part.previousSize()) part.write(offset, new byte[len]);
+                zeros++;
+            } else if (source != i && progress.isChunkComplete(source)) {
+                // resume: chunk đầu nhóm đã có trên .part
+                byte[] data = new byte[len];
+                part.readFully(ByteBuffer.wrap(data), (long) source * meta.getChunkSize());
+                if (!hashes.matches(i, sha256.digest(data))) continue;
+                part.write(offset, data);
+            } else {
+                continue; // downloader ghi khi tải xong chunk đầu nhóm
+            }
+            journal.append(i, hashes.bytes(i));
+            progress.markChunkComplete(i);
+        }
+        System.out.println("[ChunkedFileClient] Layout: " + layout.elidedChunks() + "/" + meta.getTotalChunks()
+                + " chunks are zero or duplicates -> not fetched (" + zeros + " zero chunks left as holes)");
     }
 
-    private static void saveMeta(Path metaFile, FileMetadata meta) throws IOException {
-        Properties props = new Properties();
-        props.setProperty("fileName", meta.getFileName());
-        props.setProperty("fileSize", String.valueOf(meta.getFileSize()));
-        props.setProperty("chunkSize", String.valueOf(meta.getChunkSize()));
-        props.setProperty("totalChunks", String.valueOf(meta.getTotalChunks()));
-        props.setProperty("fileSha256", meta.getFileSha256());
+    // ---------------- helpers: local chunk store ----------------
 
-        try (OutputStream os = Files.newOutputStream(metaFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            props.store(os, "P2P download metadata");
+    /** Copy file cùng SHA-256 đã tải trước đó về saveTo (kiểm tra lại hash khi copy) */
+    private static boolean copyFromLocalStore(FileMetadata meta, Path saveTo) {
+        Path local = LocalChunkStore.shared().findFile(meta.getFileSha256(), meta.getFileSize());
+        if (local == null) return false;
+        try {
+            if (Files.exists(saveTo) && Files.isSameFile(local, saveTo)) return true; // đã có đúng file này
+
+            Path tmp = Path.of(saveTo.toString() + ".copy");
+            MessageDigest md = FileHashUtil.newSha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(local), md)) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!FileHashUtil.toHex(md.digest()).equals(meta.getFileSha256())) {
+                safeDelete(tmp);
+                return false;
+            }
+            Files.move(tmp, saveTo, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("[ChunkedFileClient] Same file already downloaded: " + local);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[ChunkedFileClient] Local copy failed: " + e.getMessage());
+            safeDelete(Path.of(saveTo.toString() + ".copy"));
+            return false;
         }
     }
 
-    private static boolean isSameMeta(Path metaFile, FileMetadata meta) {
-        try (InputStream is = Files.newInputStream(metaFile)) {
-            Properties props = new Properties();
-            props.load(is);
+    /** Ghi các chunk còn thiếu lấy được từ LocalChunkStore vào .part (verify hash như chunk tải về) */
+    private static void prefillFromLocalStore(FileMetadata meta, ChunkHashIndex hashes, PartFileWriter part,
+                                              ResumeJournal journal, DownloadProgress progress, DownloadControl control)
+            throws IOException, InterruptedException {
+        LocalChunkStore store = LocalChunkStore.shared();
+        MessageDigest sha256 = FileHashUtil.newSha256();
+        int reused = 0;
+        for (int i = 0; i < meta.getTotalChunks(); i++) {
+            // không tải batch hash chỉ để tra kho (giữ lazy fetch của Merkle)
+            if (progress.isChunkComplete(i) || !hashes.isLoaded(i)) continue;
+            if (control != null) control.checkpoint();
 
-            String fileName = props.getProperty("fileName", "");
-            long fileSize = Long.parseLong(props.getProperty("fileSize", "-1"));
-            int chunkSize = Integer.parseInt(props.getProperty("chunkSize", "-1"));
-            int totalChunks = Integer.parseInt(props.getProperty("totalChunks", "-1"));
-            String fileSha256 = props.getProperty("fileSha256", "");
+            long offset = (long) i * meta.getChunkSize();
+            int len = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+            byte[] data = store.readChunk(hashes.hex(i), len);
+            if (data == null || !hashes.matches(i, sha256.digest(data))) continue;
 
-            return fileName.equals(meta.getFileName())
-                    && fileSize == meta.getFileSize()
-                    && chunkSize == meta.getChunkSize()
-                    && totalChunks == meta.getTotalChunks()
-                    && fileSha256.equals(meta.getFileSha256());
+            part.write(offset, data);
+            journal.append(i, hashes.bytes(i));
+            progress.markChunkComplete(i);
+            reused++;
+        }
+        if (reused > 0) {
+            System.out.println("[ChunkedFileClient] Reused " + reused + "/" + meta.getTotalChunks()
+                    + " chunks from local files");
+        }
+    }
 
-        } catch (Exception e) {
-            return false;
+    /** Đưa file vừa tải xong vào LocalChunkStore (Merkle chưa nạp đủ hash -> chỉ index hash toàn file) */
+    private static void indexDownloaded(Path saveTo, FileMetadata meta, ChunkHashIndex hashes) {
+        List<String> chunkHashes;
+        if (!meta.isMerkle()) {
+            chunkHashes = meta.getChunkHashes();
+        } else if (hashes != null && hashes.isFullyLoaded()) {
+            chunkHashes = hashes.asHexList();
+        } else {
+            chunkHashes = List.of();
         }
+        LocalChunkStore.shared().addFile(saveTo, meta.getFileSha256(), meta.getChunkSize(), chunkHashes);
     }
-    private static void cleanupOnCancel(Path partFile, Path bitmapFile, Path metaFile) {
+
+    private static void safeDelete(Path p) {
+        try {
+            if (p != null) Files.deleteIfExists(p);
+        } catch (IOException ignored) {}
+    }
+
+    private static void cleanupOnCancel(Path partFile, Path journalFile) {
         System.out.println("[ChunkedFileClient] Cancel -> cleanup temp files");
         safeDelete(partFile);
-        safeDelete(bitmapFile);
-        safeDelete(metaFile);
+        safeDelete(journalFile);
     }
 
 }
@@ -1,46 +1,122 @@
 package org.example.p2pfileshare.network.transfer;
 
-import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
-import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.AppConfig;
+import org.example.p2pfileshare.util.ConnectionExecutor;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
 import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ChunkedFileServer {
 
+    /** Key AppConfig: dung lượng cache chunk nóng (MB), "0" = tắt */
+    public static final String KEY_CHUNK_CACHE_MB = "chunk_cache_mb";
+
+    /** Key AppConfig: số request chunk được gửi đồng thời (tổng / mỗi peer), xem UploadScheduler */
+    public static final String KEY_UPLOAD_SLOTS = "upload_slots";
+    public static final String KEY_UPLOAD_PER_PEER = "upload_per_peer";
+
+    /** Key AppConfig: chu kỳ log số đo runtime (giây), "0" = chỉ log khi dừng */
+    public static final String KEY_STATS_LOG_INTERVAL_S = "stats_log_interval_s";
+    static final long DEFAULT_STATS_LOG_INTERVAL_S = 300;
+
+    /** stopServer(): response đang gửi dở được gửi nốt tối đa bấy lâu, quá thì cắt */
+    public static final long DRAIN_TIMEOUT_MS = 5000;
+
+    /** Engine phục vụ kết nối: BLOCKING = 1 thread/kết nối, NIO = selector + disk pool */
+    public enum Engine {
+        BLOCKING, NIO;
+
+        public static Engine fromConfig(String value) {
+            if (value == null) return BLOCKING;
+            try {
+                return Engine.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return BLOCKING;
+            }
+        }
+    }
+
     private final int port;
     private final AtomicReference<Path> shareFolder = new AtomicReference<>();
-    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1 MB
 
-    // Đỡ tạo vô hạn thread
-    private ExecutorService pool = Executors.newFixedThreadPool(32);
+    // NIO: số I/O thread và disk pool (bounded)
+    private static final int NIO_IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int NIO_DISK_THREADS = 8;
+    private static final int NIO_DISK_QUEUE = 256;
+
+    // cache manifest (RAM + đĩa) để FILE_META_REQUEST không phải hash lại cả file
+    private final ManifestStore manifestStore = new ManifestStore();
+    // chunk nhiều người cùng tải giữ trong RAM + đọc trước (null = tắt)
+    private final HotChunkCache hotCache = HotChunkCache.fromConfig();
+    private final ChunkCompressor compressor = new ChunkCompressor();
+    private final TransferRequestHandler handler = new TransferRequestHandler(shareFolder, manifestStore,
+            compressor, hotCache);
+    private final Engine engine;
+    // chia lượt gửi chunk giữa các peer, BUSY khi quá tải
+    private final UploadScheduler scheduler;
+    private NioTransferEngine nioEngine;
+
+    // Handler kết nối (engine blocking): virtual thread trên JDK 21+, không thì pool 32 thread như cũ
+    private static final int PLATFORM_WORKERS = 32;
+    // session rảnh quá lâu thì đóng để trả thread
+    private static final int SESSION_IDLE_TIMEOUT_MS = 60_000;
+    // 1 peer giữ tối đa bấy nhiêu kết nối (thread) -> luôn còn thread cho peer khác;
+    // kết nối vượt nhận BUSY ngay khi accept, 1 thread riêng chờ client đóng (tối đa REJECT_LINGER_MS)
+    private static final int MAX_SESSIONS_PER_PEER = PLATFORM_WORKERS / 2;
+    // platform thread: tổng số session không vượt số worker, kết nối dư nhận BUSY thay vì nằm trong queue không trả lời
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private static final int REJECT_LINGER_MS = 1000;
+    private static final int REJECT_QUEUE = 256;
+    private ThreadPoolExecutor rejectPool;
+    private ConnectionExecutor pool;
+    // kết nối đang mở (engine blocking): drain báo "Going away" cho kết nối rảnh, chờ kết nối đang gửi
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private static final long DRAIN_POLL_MS = 50;
+    // log số đo runtime định kỳ (null = tắt / server đã dừng)
+    private ScheduledExecutorService statsLogger;
 
     // ===== NEW: lifecycle =====
     private volatile boolean running = false;
-    private volatile ServerSocket serverSocket;
+    // đang dừng: request mới nhận "Going away"
+    private volatile boolean draining = false;
+    // ServerSocketChannel để socket client có channel -> gửi chunk bằng transferTo (sendfile)
+    private volatile ServerSocketChannel serverSocket;
     private Thread serverThread;
 
     public ChunkedFileServer(int port, Path initialFolder) {
+        this(port, initialFolder, Engine.BLOCKING);
+    }
+
+    public ChunkedFileServer(int port, Path initialFolder, Engine engine) {
         this.port = port;
         this.shareFolder.set(initialFolder);
+        this.engine = engine == null ? Engine.BLOCKING : engine;
+        // NIO: kết nối không giữ thread -> không giới hạn số kết nối / peer
+        this.scheduler = UploadScheduler.fromConfig(this.engine == Engine.NIO ? 0 : MAX_SESSIONS_PER_PEER);
     }
 
-    /** Cho phép set null để "tắt share" */
+    /**
+     * Cho phép set null để "tắt share".
+     * Download đang chạy từ thư mục cũ vẫn tải tiếp được (TransferRequestHandler.retire), file mới chỉ từ thư mục mới.
+     */
     public void changeFolder(Path newFolder) {
         if (newFolder == null) {
-            shareFolder.set(null);
+            handler.retire(shareFolder.getAndSet(null), null);
+            manifestStore.stopWatching();
             System.out.println("[ChunkedFileServer] Share folder cleared (no sharing)");
             return;
         }
         if (Files.isDirectory(newFolder)) {
-            shareFolder.set(newFolder);
+            handler.retire(shareFolder.getAndSet(newFolder), newFolder);
+            if (running) manifestStore.watch(newFolder, ChunkSizePolicy.AUTO);
             System.out.println("[ChunkedFileServer] Folder changed to: " + newFolder);
         } else {
             System.out.println("[ChunkedFileServer] Ignored changeFolder (not a directory): " + newFolder);
@@ -52,6 +128,19 @@ public class ChunkedFileServer {
         return running;
     }
 
+    /** Số request đang được xử lý (để UI/log theo dõi tải) */
+    public int getActiveHandlers() {
+        NioTransferEngine nio = nioEngine;
+        if (nio != null) return nio.getActiveRequests();
+        ConnectionExecutor p = pool;
+        return p == null ? 0 : p.getInFlight();
+    }
+
+    /** Số đo cache chunk nóng (để UI/log theo dõi); null nếu cache tắt */
+    public HotChunkCache.Stats getChunkCacheStats() {
+        return hotCache == null ? null : hotCache.stats();
+    }
+
     /** Start server (idempotent) */
     public synchronized void start() {
         if (running) {
@@ -60,27 +149,100 @@ public class ChunkedFileServer {
         }
 
         running = true;
+        draining = false;
+        openSessions.set(0);
 
         // Nếu pool đã shutdown từ lần trước, tạo lại
         if (pool == null || pool.isShutdown() || pool.isTerminated()) {
-            pool = Executors.newFixedThreadPool(32);
+            pool = ConnectionExecutor.create("chunked-file-worker", PLATFORM_WORKERS);
+        }
+        if (rejectPool == null || rejectPool.isShutdown()) {
+            rejectPool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(REJECT_QUEUE),
+                    r -> {
+                        Thread t = new Thread(r, "chunked-file-reject");
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        // làm ấm cache manifest (chunk size auto theo từng file) + theo dõi file thay đổi
+        manifestStore.watch(shareFolder.get(), ChunkSizePolicy.AUTO);
+
+        if (engine == Engine.NIO) {
+            nioEngine = new NioTransferEngine(port, handler, scheduler, NIO_IO_THREADS, NIO_DISK_THREADS,
+                    NIO_DISK_QUEUE);
+            try {
+                nioEngine.start();
+            } catch (IOException e) {
+                System.err.println("[ChunkedFileServer] Failed to bind/listen port " + port + ": " + e.getMessage());
+                nioEngine.stop();
+                nioEngine = null;
+                running = false;
+                manifestStore.stopWatching();
+            }
+            if (running) startStatsLogger();
+            return;
         }
 
         serverThread = new Thread(this::runLoop, "chunked-file-server");
         serverThread.setDaemon(true);
         serverThread.start();
+        startStatsLogger();
+    }
+
+    // cùng các số đo in lúc dừng, mỗi KEY_STATS_LOG_INTERVAL_S giây
+    private void startStatsLogger() {
+        long interval = statsLogIntervalFromConfig(AppConfig.load(KEY_STATS_LOG_INTERVAL_S));
+        if (interval <= 0) return;
+        statsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chunked-file-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        statsLogger.scheduleAtFixedRate(() -> logStats("Stats, " + getActiveHandlers() + " active requests"),
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    static long statsLogIntervalFromConfig(String value) {
+        if (value == null) return DEFAULT_STATS_LOG_INTERVAL_S;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_STATS_LOG_INTERVAL_S;
+        }
+    }
+
+    private void stopStatsLogger() {
+        if (statsLogger != null) {
+            statsLogger.shutdownNow();
+            statsLogger = null;
+        }
     }
 
     private void runLoop() {
         try {
-            serverSocket = new ServerSocket(port);
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            serverSocket = ssc;
+            ssc.bind(new InetSocketAddress(port));
             System.out.println("[ChunkedFileServer] Listening on port " + port);
 
             while (running) {
                 try {
-                    Socket client = serverSocket.accept();
-                    pool.submit(() -> handleClient(client));
-                } catch (SocketException se) {
+                    SocketChannel client = ssc.accept();
+                    UploadScheduler.Session session = scheduler.openSession(UploadScheduler.peerOf(client));
+                    if (!session.isAllowed() || !reserveWorker()) {
+                        rejectClient(client, session);
+                        continue;
+                    }
+                    try {
+                        pool.submit(() -> handleClient(client, session));
+                    } catch (RejectedExecutionException ree) {
+                        // pool đã shutdown (server đang dừng)
+                        openSessions.decrementAndGet();
+                        session.close();
+                        client.close();
+                    }
+                } catch (ClosedChannelException | SocketException se) {
                     // thường xảy ra khi stopServer() -> serverSocket.close()
                     if (running) {
                         System.err.println("[ChunkedFileServer] accept() socket error: " + se.getMessage());
@@ -103,8 +265,31 @@ public class ChunkedFileServer {
         }
     }
 
-    /** NEW: Stop server */
-    public synchronized void stopServer() {
+    // virtual thread: không giới hạn; platform: tối đa PLATFORM_WORKERS session cùng lúc
+    private boolean reserveWorker() {
+        if (pool.isVirtual()) {
+            openSessions.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int n = openSessions.get();
+            if (n >= PLATFORM_WORKERS) return false;
+            if (openSessions.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /** NEW: Stop server (drain tối đa DRAIN_TIMEOUT_MS) */
+    public void stopServer() {
+        stopServer(DRAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Dừng server: ngừng accept; response đang gửi dở được gửi nốt (tối đa drainTimeoutMs),
+     * kết nối đang rảnh và request tới sau nhận ERROR "Going away" -> client chuyển sang nguồn khác,
+     * không tính là lỗi. Quá hạn thì cắt như cũ.
+     * @param drainTimeoutMs 0 = dừng ngay
+     */
+    public synchronized void stopServer(long drainTimeoutMs) {
         if (!running) {
             System.out.println("[ChunkedFileServer] Already stopped");
             return;
@@ -112,11 +297,26 @@ public class ChunkedFileServer {
 
         System.out.println("[ChunkedFileServer] Stopping server...");
         running = false;
+        draining = true;
+        manifestStore.stopWatching();
+        stopStatsLogger();
+
+        if (nioEngine != null) {
+            nioEngine.drain(drainTimeoutMs);
+            nioEngine.stop();
+            nioEngine = null;
+            logStats("Stopped");
+            return;
+        }
 
         // 1) Đóng server socket để accept() thoát ngay
         closeServerSocketQuietly();
 
-        // 2) Dừng worker đang xử lý client (tuỳ bạn muốn graceful hay hard-stop)
+        // 2) Drain: kết nối rảnh nhận "Going away", chờ response đang gửi
+        drain(drainTimeoutMs);
+
+        // 3) Dừng worker còn lại (kết nối rảnh chưa gửi request nào / quá hạn drain)
+        if (rejectPool != null) rejectPool.shutdownNow();
         if (pool != null) {
             pool.shutdownNow();
             try {
@@ -126,7 +326,7 @@ public class ChunkedFileServer {
             }
         }
 
-        // 3) Cho thread server kết thúc (không bắt buộc nhưng debug dễ)
+        // 4) Cho thread server kết thúc (không bắt buộc nhưng debug dễ)
         if (serverThread != null && serverThread.isAlive()) {
             try {
                 serverThread.join(1000);
@@ -135,12 +335,40 @@ public class ChunkedFileServer {
             }
         }
 
-        System.out.println("[ChunkedFileServer] Stopped");
+        logStats("Stopped");
+    }
+
+    private void drain(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int active;
+        while (true) {
+            active = 0;
+            for (ClientConnection c : connections) {
+                if (c.goAwayIfIdle()) active++;
+            }
+            if (active == 0 || System.currentTimeMillis() >= deadline) break;
+            try {
+                Thread.sleep(DRAIN_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (active > 0) System.out.println("[ChunkedFileServer] Drain timed out, cutting " + active + " transfers");
+        else System.out.println("[ChunkedFileServer] Drained in-flight transfers");
+    }
+
+    private void logStats(String title) {
+        System.out.println("[ChunkedFileServer] " + title + " (buffer pool: " + BufferPool.shared().stats() + ")");
+        System.out.println("[ChunkedFileServer] Upload scheduler: " + scheduler.stats());
+        if (hotCache != null) System.out.println("[ChunkedFileServer] Chunk cache: " + hotCache.stats());
+        System.out.println("[ChunkedFileServer] Shared work: " + manifestStore.sharedComputations()
+                + " manifest builds, " + compressor.sharedCompressions() + " chunk compressions");
     }
 
     private void closeServerSocketQuietly() {
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null && serverSocket.isOpen()) {
                 serverSocket.close();
             }
         } catch (IOException ignored) {
@@ -149,155 +377,138 @@ public class ChunkedFileServer {
         }
     }
 
-    private void handleClient(Socket socket) {
-        try (Socket s = socket;
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
-
-            // Client gửi writeUTF -> server phải readUTF
-            String request = in.readUTF();
-            if (request == null || request.isBlank()) return;
-
-            FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
-            if (cmd == null) {
-                sendError(out, "Invalid command");
-                return;
-            }
-
-            Path root = shareFolder.get();
-            if (root == null) {
-                sendError(out, "No share folder set");
-                return;
-            }
-
-            if (FileTransferProtocol.FILE_META_REQUEST.equals(cmd.command)) {
-                handleMetaRequest(cmd, root, out);
-            } else if (FileTransferProtocol.GET_CHUNK.equals(cmd.command)) {
-                handleChunkRequest(cmd, root, out);
-            } else {
-                sendError(out, "Unknown command: " + cmd.command);
+    private void handleClient(SocketChannel channel, UploadScheduler.Session peerSession) {
+        ClientConnection conn = new ClientConnection(channel);
+        connections.add(conn);
+        try (SocketChannel ch = channel;
+             UploadScheduler.Session session = peerSession;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()))) {
+
+            // session: client có thể gửi nhiều request (pipeline) trên cùng kết nối;
+            // client cũ gửi 1 request rồi đóng -> readUTF gặp EOF -> thoát
+            ch.socket().setSoTimeout(SESSION_IDLE_TIMEOUT_MS);
+            // giới hạn băng thông upload của peer này (chỉ áp cho response chunk)
+            BandwidthLimiter.Shaper shaper = BandwidthLimiter.upload().forPeer(UploadScheduler.peerOf(ch));
+            while (true) {
+                // Client gửi writeUTF -> server phải readUTF
+                String request = in.readUTF();
+                if (request == null || request.isBlank()) return;
+                // server đang dừng: đã / vừa trả "Going away" thay cho request này
+                if (!conn.begin(draining)) return;
+
+                // request chunk: chờ tới lượt của peer (slot giữ tới khi gửi xong), quá tải -> BUSY
+                UploadScheduler.Permit permit = null;
+                try {
+                    TransferResponse resp;
+                    try {
+                        permit = session.admit(request);
+                        resp = handler.handle(request);
+                        if (permit != null) resp.shapeWith(shaper);
+                    } catch (UploadScheduler.BusyException busy) {
+                        resp = TransferResponse.busy(busy.retryAfterMs);
+                    } catch (IOException e) {
+                        // vd file bị xoá / cắt ngắn sau khi resolve: trả ERROR như engine NIO, session vẫn mở
+                        resp = TransferResponse.error(e.getMessage());
+                    }
+                    try (TransferResponse r = resp) {
+                        r.writeFully(ch);
+                    }
+                } finally {
+                    if (permit != null) permit.close();
+                }
+                if (!conn.end(draining)) return;
             }
 
-        } catch (EOFException eof) {
-            // client đóng sớm
+        } catch (EOFException | SocketTimeoutException eof) {
+            // client đóng kết nối / session rảnh quá lâu
         } catch (IOException e) {
-            System.err.println("[ChunkedFileServer] Client error: " + e.getMessage());
-        } catch (RejectedExecutionException ree) {
-            // xảy ra khi pool đã shutdown mà vẫn có accept/submit
-            System.err.println("[ChunkedFileServer] Rejected client task (server stopping): " + ree.getMessage());
+            if (running) System.err.println("[ChunkedFileServer] Client error: " + e.getMessage());
+        } finally {
+            connections.remove(conn);
+            openSessions.decrementAndGet();
         }
     }
-    // hàm xử lý handleMetaRequest
-    private void handleMetaRequest(FileTransferProtocol.ParsedCommand cmd, Path root, DataOutputStream out) throws IOException {
-        String fileName = cmd.get(1);
-        if (fileName == null) {
-            sendError(out, "Missing filename");
-            return;
-        }
 
-        Path filePath = root.resolve(fileName).normalize();
-        if (!filePath.startsWith(root) || !Files.exists(filePath) || Files.isDirectory(filePath)) {
-            sendError(out, "File not found");
-            return;
-        }
+    /** 1 kết nối engine blocking; drain ghi "Going away" từ thread khác nên trạng thái guarded by this */
+    private static final class ClientConnection {
+        private final SocketChannel ch;
+        private boolean active;   // đang xử lý / gửi response
+        private boolean goneAway; // đã gửi "Going away" + đóng chiều ghi
 
-        long fileSize = Files.size(filePath);
-        int totalChunks = (int) Math.ceil((double) fileSize / DEFAULT_CHUNK_SIZE);
-
-        // hash toàn file
-        String fileSha256 = FileHashUtil.sha256(filePath);
-
-        // hash từng chunk
-        List<String> chunkHashes = new ArrayList<>(totalChunks);
-        // truy cập đến file để đọc từng chunk và băm, randomfile không cần phải đọc
-        // lần lượt từ 1 -> 10 mà có thể nhảy ngay đến 10 để đọc
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
-            for (int i = 0; i < totalChunks; i++) {
-                long offset = (long) i * DEFAULT_CHUNK_SIZE;
-                raf.seek(offset);
-
-                int toRead = (int) Math.min(DEFAULT_CHUNK_SIZE, fileSize - offset);
-                int read = raf.read(buffer, 0, toRead);
-
-                if (read <= 0) {
-                    chunkHashes.add(FileHashUtil.sha256(new byte[0]));
-                } else {
-                    byte[] chunkData = new byte[read];
-                    // copy buffer -> chunkData, chunk cuối có thể có kích thước nhỏ hơn
-                    System.arraycopy(buffer, 0, chunkData, 0, read);
-                    chunkHashes.add(FileHashUtil.sha256(chunkData));
-                }
-            }
+        ClientConnection(SocketChannel ch) {
+            this.ch = ch;
         }
 
-        out.writeUTF(FileTransferProtocol.FILE_META_RESPONSE);
-        out.writeUTF(fileName);
-        out.writeLong(fileSize);
-        out.writeInt(DEFAULT_CHUNK_SIZE);
-        out.writeInt(totalChunks);
-        out.writeUTF(fileSha256);
-        for (int i = 0; i < totalChunks; i++) {
-            out.writeUTF(chunkHashes.get(i));
+        /** Trước khi xử lý request; false = không xử lý (đang drain) */
+        synchronized boolean begin(boolean draining) {
+            if (draining) goAway();
+            if (goneAway) return false;
+            active = true;
+            return true;
         }
-        out.flush();
 
-        System.out.println("[ChunkedFileServer] Sent metadata for " + fileName + " chunks=" + totalChunks);
-    }
-
-    private void handleChunkRequest(FileTransferProtocol.ParsedCommand cmd, Path root, DataOutputStream out) throws IOException {
-        String fileName = cmd.get(1);
-        String indexStr = cmd.get(2);
-
-        if (fileName == null || indexStr == null) {
-            sendError(out, "Missing parameters");
-            return;
+        /** Gửi xong response; false = đang drain, đã báo "Going away" -> đóng */
+        synchronized boolean end(boolean draining) {
+            active = false;
+            if (draining) goAway();
+            return !goneAway;
         }
 
-        int chunkIndex;
-        try {
-            chunkIndex = Integer.parseInt(indexStr);
-        } catch (NumberFormatException e) {
-            sendError(out, "Invalid chunk index");
-            return;
+        /** Drain: kết nối rảnh nhận "Going away" ngay (client đọc được khi gửi request tiếp); true nếu còn đang gửi */
+        synchronized boolean goAwayIfIdle() {
+            if (!active) goAway();
+            return active;
         }
 
-        Path filePath = root.resolve(fileName).normalize();
-        if (!filePath.startsWith(root) || !Files.exists(filePath) || Files.isDirectory(filePath)) {
-            sendError(out, "File not found");
-            return;
+        // guarded by this; ghi thêm chỉ khi không có response nào đang ghi dở
+        private void goAway() {
+            if (goneAway) return;
+            goneAway = true;
+            try (TransferResponse resp = TransferResponse.goingAway()) {
+                resp.writeFully(ch);
+                ch.shutdownOutput();
+            } catch (IOException ignored) {
+                // client đã đóng
+            }
         }
+    }
 
-        long fileSize = Files.size(filePath);
-        long offset = (long) chunkIndex * DEFAULT_CHUNK_SIZE;
-        if (offset >= fileSize || chunkIndex < 0) {
-            sendError(out, "Chunk index out of range");
-            return;
+    // peer đã đủ kết nối: trả BUSY ngay trên thread accept (socket mới, ghi không bị chặn) - client đọc được
+    // khi gửi request, kể cả kết nối mở sẵn chưa gửi gì; rejectPool chỉ chờ client đóng rồi đóng hẳn
+    private void rejectClient(SocketChannel client, UploadScheduler.Session session) {
+        try {
+            try (TransferResponse resp = TransferResponse.busy(session.rejectRetryMs())) {
+                resp.writeFully(client);
+            }
+            client.shutdownOutput();
+            rejectPool.execute(() -> lingerAndClose(client));
+        } catch (IOException | RejectedExecutionException e) {
+            closeQuietly(client);
+        } finally {
+            session.close();
         }
+    }
 
-        int dataLen = (int) Math.min(DEFAULT_CHUNK_SIZE, fileSize - offset);
-
-        byte[] chunkData = new byte[dataLen];
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            raf.seek(offset);
-            raf.readFully(chunkData);
+    // đọc bỏ request tới khi client đóng (tối đa REJECT_LINGER_MS): đóng khi còn byte chưa đọc thì
+    // kernel gửi RST và client có thể mất luôn reply BUSY
+    private static void lingerAndClose(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            ch.socket().setSoTimeout(REJECT_LINGER_MS);
+            InputStream in = ch.socket().getInputStream();
+            byte[] sink = new byte[1024];
+            long deadline = System.currentTimeMillis() + REJECT_LINGER_MS;
+            while (in.read(sink) >= 0 && System.currentTimeMillis() < deadline) {
+                // bỏ qua
+            }
+        } catch (IOException ignored) {
+            // client đã đóng / không gửi gì
         }
-
-        String chunkHash = FileHashUtil.sha256(chunkData);
-
-        out.writeUTF(FileTransferProtocol.CHUNK_DATA);
-        out.writeInt(chunkIndex);
-        out.writeInt(dataLen);
-        out.writeUTF(chunkHash);
-        out.write(chunkData);
-        out.flush();
-
-        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + dataLen);
     }
 
-    private void sendError(DataOutputStream out, String reason) throws IOException {
-        out.writeUTF("ERROR");
-        out.writeUTF(reason);
-        out.flush();
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
     }
 }
@@ -0,0 +1,236 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.BlockSignatures;
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Delta sync kiểu zsync: máy tải đã có bản cũ của file ở đúng chỗ lưu.
+ *
+ * 1) GET_SIGNATURES: server gửi chữ ký (weak rolling + strong) từng block của bản mới
+ * 2) Trượt rolling checksum qua bản cũ từng byte -> block nào của bản mới đã có sẵn ở offset nào
+ * 3) Ghi bản mới vào file tạm theo thứ tự block: block có sẵn copy từ bản cũ,
+ *    các block thiếu liền nhau gom lại xin 1 lần bằng GET_BYTES
+ * 4) SHA-256 toàn file (tính trong lúc ghi) khớp meta -> thay bản cũ
+ *
+ * Bản cũ gần như không dùng được (< MIN_REUSE) thì bỏ, để tải chunk song song như thường.
+ */
+final class DeltaSync {
+
+    private static final double MIN_REUSE = 0.1;
+    private static final int SCAN_BUFFER = 4 * 1024 * 1024;
+
+    private DeltaSync() {}
+
+    /**
+     * @return true nếu đã dựng xong bản mới tại saveTo; false nếu không dùng được delta (gọi tải thường)
+     * @throws InterruptedException khi bị cancel (bản cũ giữ nguyên)
+     */
+    static boolean run(TransferSession session, String fileName, FileMetadata meta, Path saveTo,
+                       Consumer<Double> progressCallback, DownloadControl control) throws InterruptedException {
+        Path tmp = Path.of(saveTo.toString() + ".delta");
+        try {
+            long oldSize = Files.size(saveTo);
+            if (oldSize == 0 || meta.getFileSize() == 0) return false;
+
+            BlockSignatures sigs = session.requestSignatures(fileName, BlockSignatures.suggestBlockSize(meta.getFileSize()));
+            if (sigs.getFileSize() != meta.getFileSize()) return false;
+
+            long[] found = findBlocks(saveTo, sigs, control);
+            long reusable = 0;
+            for (int i = 0; i < found.length; i++) {
+                if (found[i] >= 0) reusable += sigs.blockLength(i);
+            }
+            if (reusable < meta.getFileSize() * MIN_REUSE) {
+                System.out.println("[ChunkedFileClient] Local copy mostly different -> normal download");
+                return false;
+            }
+
+            long fetched = assemble(session, fileName, meta, sigs, found, saveTo, tmp, progressCallback, control);
+            if (fetched < 0) {
+                System.err.println("[ChunkedFileClient] Delta result hash mismatch -> normal download");
+                return false;
+            }
+            Files.move(tmp, saveTo, StandardCopyOption.REPLACE_EXISTING);
+            System.out.printf("[ChunkedFileClient] Delta sync: reused %.1f MB from local copy, fetched %.1f KB%n",
+                    reusable / (1024.0 * 1024.0), fetched / 1024.0);
+            return true;
+        } catch (IOException e) {
+            // server cũ không hiểu GET_SIGNATURES, đọc bản cũ lỗi... -> tải thường
+            System.out.println("[ChunkedFileClient] Delta sync unavailable: " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** found[j] = offset trong bản cũ có nội dung giống block j của bản mới, -1 nếu không có */
+    private static long[] findBlocks(Path oldFile, BlockSignatures sigs, DownloadControl control)
+            throws IOException, InterruptedException {
+        int count = sigs.getBlockCount();
+        int blockSize = sigs.getBlockSize();
+        long[] found = new long[count];
+        Arrays.fill(found, -1);
+
+        // weak -> các block đủ dài có weak đó (block cuối ngắn xét riêng ở dưới)
+        Map<Integer, int[]> byWeak = new HashMap<>();
+        for (int j = 0; j < count; j++) {
+            if (sigs.blockLength(j) != blockSize) continue;
+            int[] prev = byWeak.get(sigs.weakOf(j));
+            int[] next = prev == null ? new int[1] : Arrays.copyOf(prev, prev.length + 1);
+            next[next.length - 1] = j;
+            byWeak.put(sigs.weakOf(j), next);
+        }
+
+        try (FileChannel in = FileChannel.open(oldFile, StandardOpenOption.READ)) {
+            byte[] buf = new byte[Math.max(SCAN_BUFFER, 4 * blockSize)];
+            long bufStart = 0;
+            int bufLen = 0;
+            int pos = 0;
+            boolean eof = false;
+            boolean weakValid = false;
+            int weak = 0;
+
+            while (true) {
+                // cần blockSize + 1 byte từ pos (cửa sổ + byte kế để trượt)
+                if (!eof && pos + blockSize + 1 > bufLen) {
+                    if (control != null) control.checkpoint();
+                    System.arraycopy(buf, pos, buf, 0, bufLen - pos);
+                    bufStart += pos;
+                    bufLen -= pos;
+                    pos = 0;
+                    int n = in.read(ByteBuffer.wrap(buf, bufLen, buf.length - bufLen));
+                    if (n < 0) eof = true;
+                    else bufLen += n;
+                    continue;
+                }
+                if (pos + blockSize > bufLen) break;
+
+                if (!weakValid) {
+                    weak = BlockSignatures.weak(buf, pos, blockSize);
+                    weakValid = true;
+                }
+
+                boolean matched = false;
+                int[] candidates = byWeak.get(weak);
+                if (candidates != null) {
+                    byte[] strong = BlockSignatures.strong(buf, pos, blockSize);
+                    for (int j : candidates) {
+                        if (sigs.strongMatches(j, strong)) {
+                            if (found[j] < 0) found[j] = bufStart + pos;
+                            matched = true;
+                        }
+                    }
+                }
+
+                if (matched) {
+                    pos += blockSize; // nhảy qua block đã khớp
+                    weakValid = false;
+                } else if (pos + blockSize < bufLen) {
+                    weak = BlockSignatures.roll(weak, blockSize, buf[pos], buf[pos + blockSize]);
+                    pos++;
+                } else {
+                    break; // hết file
+                }
+            }
+
+            // block cuối (ngắn): thử đuôi bản cũ - trường hợp hay gặp khi chỉ sửa đoạn giữa
+            int last = count - 1;
+            int lastLen = sigs.blockLength(last);
+            if (lastLen != blockSize && found[last] < 0 && in.size() >= lastLen) {
+                byte[] tail = new byte[lastLen];
+                long at = in.size() - lastLen;
+                readFully(in, tail, lastLen, at);
+                if (sigs.strongMatches(last, BlockSignatures.strong(tail, 0, lastLen))) found[last] = at;
+            }
+        }
+        return found;
+    }
+
+    /** @return số byte phải tải qua mạng; -1 nếu SHA-256 kết quả không khớp meta */
+    private static long assemble(TransferSession session, String fileName, FileMetadata meta, BlockSignatures sigs,
+                                 long[] found, Path oldFile, Path tmp, Consumer<Double> progressCallback,
+                                 DownloadControl control) throws IOException, InterruptedException {
+        int count = sigs.getBlockCount();
+        int blockSize = sigs.getBlockSize();
+        MessageDigest md = FileHashUtil.newSha256();
+        byte[] buf = new byte[Math.max(blockSize, FileTransferProtocol.MAX_BYTES_REQUEST)];
+        long written = 0;
+        long fetched = 0;
+
+        try (FileChannel old = FileChannel.open(oldFile, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            for (int j = 0; j < count; ) {
+                if (control != null) control.checkpoint();
+
+                int len;
+                if (found[j] >= 0) {
+                    len = sigs.blockLength(j);
+                    readFully(old, buf, len, found[j]);
+                    j++;
+                } else {
+                    // gom các block thiếu liền nhau thành 1 GET_BYTES
+                    int end = j;
+                    long bytes = 0;
+                    while (end < count && found[end] < 0
+                            && bytes + sigs.blockLength(end) <= FileTransferProtocol.MAX_BYTES_REQUEST) {
+                        bytes += sigs.blockLength(end);
+                        end++;
+                    }
+                    len = (int) bytes;
+                    requestBytes(session, fileName, (long) j * blockSize, len, buf);
+                    fetched += len;
+                    j = end;
+                }
+
+                md.update(buf, 0, len);
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+                while (bb.hasRemaining()) out.write(bb);
+                written += len;
+                if (progressCallback != null) {
+                    progressCallback.accept((double) written / meta.getFileSize());
+                }
+            }
+        }
+
+        return FileHashUtil.toHex(md.digest()).equals(meta.getFileSha256()) ? fetched : -1;
+    }
+
+    // GET_BYTES, server quá tải thì chờ theo retry-after rồi xin lại (tối đa MAX_BUSY_WAITS lần)
+    private static void requestBytes(TransferSession session, String fileName, long offset, int len, byte[] buf)
+            throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                session.requestBytes(fileName, offset, len, buf);
+                return;
+            } catch (TransferSession.ServerBusyException e) {
+                if (attempt >= ChunkedFileClient.MAX_BUSY_WAITS) throw e;
+                Thread.sleep(e.backoffMs(attempt));
+            }
+        }
+    }
+
+    private static void readFully(FileChannel ch, byte[] buf, int len, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            if (ch.read(bb, position + bb.position()) < 0) throw new IOException("Local copy changed");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileManifest;
+import org.example.p2pfileshare.util.AppConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache chunk "nóng" trong RAM phía file server (cả lớp cùng tải 1 file -> cùng chunk bị đọc hàng chục lần).
+ *
+ * - Key = (SHA-256 file theo manifest, chunk size, index): cùng nội dung dù phục vụ từ file hay từ .part
+ * - Chỉ nhận chunk bị hỏi lần 2 (lần 1 chỉ ghi key vào danh sách "ma"): 1 người tải thì vẫn sendfile
+ *   thẳng như cũ, không tốn RAM / copy
+ * - Chunk N nằm trong cache (đang nóng) -> thread nền đọc trước N+1..N+READ_AHEAD chưa có
+ * - Mỗi chunk chỉ đọc 1 lần dù nhiều request cùng hỏi lúc nó đang được nạp (SingleFlight, kể cả lần nạp
+ *   của read-ahead): request tới sau chờ lần đọc đó thay vì tự sendfile
+ * - LRU giới hạn theo tổng byte (KEY_CHUNK_CACHE_MB, "0" = tắt); buffer direct riêng, không mượn BufferPool
+ *   (response đang gửi giữ bản duplicate, chunk bị evict vẫn an toàn, GC thu hồi sau)
+ * - stats(): hit / miss / số chunk nhận / evict / read-ahead (đọc, được dùng, bỏ phí) / số request chờ chung
+ */
+public final class HotChunkCache {
+
+    static final int DEFAULT_MB = 64;
+    private static final int READ_AHEAD = 4;
+    private static final int GHOST_KEYS = 4096;
+    private static final int READ_AHEAD_QUEUE = 64;
+
+    /** Ảnh chụp số đo của cache */
+    public static final class Stats {
+        public final long capacityBytes;
+        public final long cachedBytes;
+        public final long hits;
+        public final long misses;
+        public final long admitted;
+        public final long evictions;
+        public final long readAheadLoaded;
+        public final long readAheadUsed;
+        public final long readAheadWasted;
+        public final long sharedLoads;
+
+        private Stats(long capacityBytes, long cachedBytes, long hits, long misses, long admitted, long evictions,
+                      long readAheadLoaded, long readAheadUsed, long readAheadWasted, long sharedLoads) {
+            this.capacityBytes = capacityBytes;
+            this.cachedBytes = cachedBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.admitted = admitted;
+            this.evictions = evictions;
+            this.readAheadLoaded = readAheadLoaded;
+            this.readAheadUsed = readAheadUsed;
+            this.readAheadWasted = readAheadWasted;
+            this.sharedLoads = sharedLoads;
+        }
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f/%.0f MB, hit %.1f%% (%d/%d), %d admitted, %d evicted, "
+                            + "read-ahead %d loaded / %d used / %d wasted, %d shared loads",
+                    cachedBytes / (1024.0 * 1024.0), capacityBytes / (1024.0 * 1024.0), hitRatio() * 100,
+                    hits, hits + misses, admitted, evictions, readAheadLoaded, readAheadUsed, readAheadWasted,
+                    sharedLoads);
+        }
+    }
+
+    private static final class Entry {
+        final ByteBuffer data;
+        boolean prefetched;   // do read-ahead nạp, chưa ai hỏi
+
+        Entry(ByteBuffer data, boolean prefetched) {
+            this.data = data;
+            this.prefetched = prefetched;
+        }
+    }
+
+    private final long capacity;
+
+    // guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> ghosts = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > GHOST_KEYS;
+        }
+    };
+    private long cachedBytes = 0;
+    private long hits, misses, admitted, evictions, readAheadLoaded, readAheadUsed, readAheadWasted;
+
+    // key -> lần đọc chunk vào cache đang chạy
+    private final SingleFlight<String, ByteBuffer> loads = new SingleFlight<>();
+    private final ThreadPoolExecutor readAheadPool;
+
+    HotChunkCache(long capacityBytes) {
+        this.capacity = capacityBytes;
+        AtomicInteger n = new AtomicInteger();
+        this.readAheadPool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), r -> {
+                    Thread t = new Thread(r, "chunk-read-ahead-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        readAheadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /** Từ AppConfig (ChunkedFileServer.KEY_CHUNK_CACHE_MB); null nếu tắt */
+    static HotChunkCache fromConfig() {
+        String value = AppConfig.load(ChunkedFileServer.KEY_CHUNK_CACHE_MB);
+        long mb = DEFAULT_MB;
+        if (value != null && !value.isBlank()) {
+            try {
+                mb = Long.parseLong(value.trim());
+            } catch (NumberFormatException ignored) {
+                // giữ mặc định
+            }
+        }
+        return mb > 0 ? new HotChunkCache(mb * 1024 * 1024) : null;
+    }
+
+    /**
+     * Bytes chunk để gửi (bản duplicate, position 0); null -> gửi thẳng từ fc như cũ.
+     * Miss mà key đã nằm trong danh sách ma (bị hỏi lần 2) -> đọc vào cache luôn;
+     * chunk đang được nạp (request khác / read-ahead) -> chờ lần nạp đó (tính là hit).
+     */
+    ByteBuffer lookup(FileManifest manifest, int chunkIndex, FileChannel fc, long offset, int len) throws IOException {
+        String key = keyOf(manifest, chunkIndex);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                markUsed(e);
+                return e.data.duplicate();
+            }
+            if (loads.isRunning(key)) {
+                hits++;
+            } else {
+                misses++;
+                if (ghosts.remove(key) == null) {
+                    ghosts.put(key, Boolean.TRUE);
+                    return null;
+                }
+                if (len > capacity) return null;
+            }
+        }
+
+        ByteBuffer data = load(key, fc, offset, len, false);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) markUsed(e);
+        }
+        return data.duplicate();
+    }
+
+    /** Chunk (lastIndex) vừa gửi đang nằm trong cache -> đọc trước các chunk sau nó ở thread nền */
+    void readAhead(Path file, FileManifest manifest, int lastIndex) {
+        int end = Math.min(manifest.getTotalChunks(), lastIndex + 1 + READ_AHEAD);
+        if (lastIndex + 1 >= end) return;
+        synchronized (this) {
+            if (!entries.containsKey(keyOf(manifest, lastIndex))) return;
+        }
+        readAheadPool.execute(() -> {
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (int i = lastIndex + 1; i < end; i++) {
+                    String key = keyOf(manifest, i);
+                    synchronized (this) {
+                        if (entries.containsKey(key) || loads.isRunning(key)) continue;
+                    }
+                    long offset = (long) i * manifest.getChunkSize();
+                    int len = (int) Math.min(manifest.getChunkSize(), manifest.getFileSize() - offset);
+                    load(key, fc, offset, len, true);
+                }
+            } catch (IOException e) {
+                // file đổi / bị xoá: bỏ qua, request thật sẽ báo lỗi
+            }
+        });
+    }
+
+    synchronized Stats stats() {
+        return new Stats(capacity, cachedBytes, hits, misses, admitted, evictions,
+                readAheadLoaded, readAheadUsed, readAheadWasted, loads.shared());
+    }
+
+    // đọc chunk vào cache, mỗi key 1 lần đọc tại 1 thời điểm; lần đọc vừa xong thì dùng luôn
+    private ByteBuffer load(String key, FileChannel fc, long offset, int len, boolean prefetched) throws IOException {
+        return loads.run(key, () -> {
+            synchronized (this) {
+                Entry e = entries.get(key);
+                if (e != null) return e.data;
+            }
+            ByteBuffer data = read(fc, offset, len);
+            put(key, data, prefetched);
+            return data;
+        });
+    }
+
+    // guarded by this
+    private void markUsed(Entry e) {
+        if (e.prefetched) {
+            e.prefetched = false;
+            readAheadUsed++;
+        }
+    }
+
+    private synchronized void put(String key, ByteBuffer data, boolean prefetched) {
+        Entry old = entries.put(key, new Entry(data, prefetched));
+        if (old != null) cachedBytes -= old.data.capacity();
+        cachedBytes += data.capacity();
+        if (prefetched) readAheadLoaded++;
+        else admitted++;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cachedBytes > capacity && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            cachedBytes -= eldest.getValue().data.capacity();
+            if (eldest.getValue().prefetched) readAheadWasted++;
+            evictions++;
+            it.remove();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel fc, long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(len);
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) < 0) throw new IOException("File truncated while caching");
+        }
+        return buf.flip();
+    }
+
+    private static String keyOf(FileManifest manifest, int chunkIndex) {
+        return manifest.getFileSha256() + ":" + manifest.getChunkSize() + ":" + chunkIndex;
+    }
+}
@@ -0,0 +1,128 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 toàn file tính dần trong lúc tải (thay cho đọc lại cả .part ở cuối).
+ *
+ * Chunk được đưa vào digest theo đúng thứ tự index khi phần đầu liền mạch dài ra;
+ * chunk về sớm (out-of-order) được chép vào buffer mượn BufferPool, giữ tới khi lấp đủ khoảng trống.
+ * Vượt MAX_HELD_BYTES (hoặc pool đang hết) thì không giữ: chunk đó đã nằm trên đĩa (bitmap), tới lượt thì đọc lại.
+ * Resume: phần đầu đã có được đọc từ .part đúng 1 lần lúc tạo.
+ */
+final class IncrementalFileDigest {
+
+    private static final long MAX_HELD_BYTES = 64L * 1024 * 1024;
+
+    private final MessageDigest md = FileHashUtil.newSha256();
+    private final PartFileWriter part;
+    private final DownloadProgress progress;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int totalChunks;
+
+    private static final long READ_WAIT_MS = 1000;
+
+    private final BufferPool pool = BufferPool.shared();
+    private final Map<Integer, ByteBuffer> held = new HashMap<>();
+    private long heldBytes;
+    private int next;          // chunk kế tiếp cần đưa vào digest
+    private boolean failed;    // lỗi đọc đĩa -> bỏ, client quay về đọc lại cả file
+
+    private IncrementalFileDigest(PartFileWriter part, FileMetadata meta, DownloadProgress progress) {
+        this.part = part;
+        this.progress = progress;
+        this.fileSize = meta.getFileSize();
+        this.chunkSize = meta.getChunkSize();
+        this.totalChunks = meta.getTotalChunks();
+    }
+
+    static IncrementalFileDigest resume(PartFileWriter part, FileMetadata meta, DownloadProgress progress) {
+        IncrementalFileDigest digest = new IncrementalFileDigest(part, meta, progress);
+        synchronized (digest) {
+            digest.advance();
+        }
+        return digest;
+    }
+
+    /** Chunk đã ghi xong + đã đánh dấu trong bitmap; data == null -> đọc lại từ đĩa khi tới lượt */
+    synchronized void accept(int chunkIndex, ByteBuffer data) {
+        if (failed || chunkIndex < next) return;
+        if (chunkIndex == next) {
+            if (data != null) {
+                md.update(data.duplicate());
+                next++;
+            }
+            advance();
+            return;
+        }
+        if (data != null && heldBytes + data.remaining() <= MAX_HELD_BYTES && !held.containsKey(chunkIndex)) {
+            ByteBuffer copy = pool.tryAcquire(data.remaining());
+            if (copy == null) return;
+            copy.put(data.duplicate()).flip();
+            held.put(chunkIndex, copy);
+            heldBytes += copy.remaining();
+        }
+    }
+
+    /** Hex SHA-256 khi đã đủ mọi chunk; null nếu chưa đủ hoặc đã hỏng */
+    synchronized String resultHex() {
+        advance(); // chunk còn chờ vì pool hết buffer lúc trước
+        if (failed || next < totalChunks) return null;
+        return FileHashUtil.toHex(md.digest());
+    }
+
+    /** Trả mọi buffer đang giữ về pool (download kết thúc / bị huỷ) */
+    synchronized void releaseHeld() {
+        held.values().forEach(pool::release);
+        held.clear();
+        heldBytes = 0;
+    }
+
+    // đưa tiếp các chunk liền mạch: ưu tiên bản giữ trong RAM, không có thì đọc .part
+    private void advance() {
+        while (!failed && next < totalChunks) {
+            ByteBuffer data = held.remove(next);
+            if (data != null) {
+                heldBytes -= data.remaining();
+            } else if (progress.isChunkComplete(next)) {
+                data = readChunk(next);
+                if (data == null) return;
+            } else {
+                return;
+            }
+            md.update(data);
+            pool.release(data);
+            next++;
+        }
+    }
+
+    private ByteBuffer readChunk(int chunkIndex) {
+        long offset = (long) chunkIndex * chunkSize;
+        int len = (int) Math.min(chunkSize, fileSize - offset);
+        ByteBuffer buf;
+        try {
+            buf = pool.acquire(len, READ_WAIT_MS);
+        } catch (BufferPool.BusyException e) {
+            return null; // thử lại lần accept() / resultHex() sau
+        }
+        try {
+            part.readFully(buf, offset);
+        } catch (IOException e) {
+            pool.release(buf);
+            System.err.println("[ChunkedFileClient] Incremental hash disabled: " + e.getMessage());
+            failed = true;
+            releaseHeld();
+            return null;
+        }
+        return buf.flip();
+    }
+}
@@ -0,0 +1,264 @@
+package org.example.p2pfileshare.network.transfer;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Kho nội dung phía client, đánh địa chỉ theo hash: những file đã tải xong (thư mục Downloads).
+ *
+ * - fileSha256 -> file đã tải: tải lại file giống hệt (dù khác tên / khác peer) = copy local
+ * - chunkSha256 -> (file, index): chunk trùng giữa các file lấy từ đĩa thay vì qua mạng
+ *
+ * Không chép dữ liệu ra chỗ khác: kho chỉ trỏ vào file đã tải. File bị sửa/xoá (size, mtime khác)
+ * thì entry tự hết hạn; chunk đọc ra luôn được client kiểm tra hash trước khi dùng.
+ * Giới hạn theo tổng số chunk được index, evict file ít dùng nhất (LRU).
+ * Index lưu mỗi file 1 JSON trong STORE_DIR, sống qua các lần restart.
+ */
+final class LocalChunkStore {
+
+    private static final String STORE_DIR = "local_store";
+    private static final int MAX_INDEXED_CHUNKS = 500_000;
+
+    /** 1 file đã tải (Gson) */
+    static final class Entry {
+        String path;
+        long fileSize;
+        long lastModified;
+        int chunkSize;
+        String fileSha256;
+        List<String> chunkHashes; // có thể rỗng (Merkle chưa nạp đủ hash)
+    }
+
+    private static final class ChunkRef {
+        final String fileSha256;
+        final int index;
+
+        ChunkRef(String fileSha256, int index) {
+            this.fileSha256 = fileSha256;
+            this.index = index;
+        }
+    }
+
+    private static volatile LocalChunkStore shared;
+
+    private final Path dir;
+    private final int maxIndexedChunks;
+    private final Gson gson = new Gson();
+
+    // LRU theo file (accessOrder = true), guarded by this
+    private final LinkedHashMap<String, Entry> files = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, ChunkRef> chunks = new HashMap<>();
+    private int indexedChunks = 0;
+
+    LocalChunkStore(Path dir, int maxIndexedChunks) {
+        this.dir = dir;
+        this.maxIndexedChunks = maxIndexedChunks;
+        load();
+    }
+
+    static LocalChunkStore shared() {
+        LocalChunkStore s = shared;
+        if (s == null) {
+            synchronized (LocalChunkStore.class) {
+                s = shared;
+                if (s == null) {
+                    s = new LocalChunkStore(Paths.get(STORE_DIR), MAX_INDEXED_CHUNKS);
+                    shared = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    synchronized boolean hasChunks() {
+        return !chunks.isEmpty();
+    }
+
+    /** File đã tải có đúng SHA-256 này (và chưa bị sửa), null nếu không có */
+    synchronized Path findFile(String fileSha256, long fileSize) {
+        Entry e = files.get(fileSha256);
+        if (e == null || e.fileSize != fileSize) return null;
+        Path p = Paths.get(e.path);
+        if (!isUnchanged(e, p)) {
+            drop(e);
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Đọc bytes của chunk có hash này từ file đã tải; null nếu không có / độ dài khác.
+     * Caller phải tự verify hash (file có thể bị sửa mà mtime không đổi).
+     */
+    byte[] readChunk(String chunkSha256, int expectedLength) {
+        Entry e;
+        int index;
+        synchronized (this) {
+            ChunkRef ref = chunks.get(chunkSha256);
+            if (ref == null) return null;
+            e = files.get(ref.fileSha256);
+            index = ref.index;
+            if (e == null) return null;
+        }
+
+        long offset = (long) index * e.chunkSize;
+        int len = (int) Math.min(e.chunkSize, e.fileSize - offset);
+        if (len != expectedLength) return null;
+
+        Path p = Paths.get(e.path);
+        if (!isUnchanged(e, p)) {
+            synchronized (this) {
+                drop(e);
+            }
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) return null;
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        return buf.array();
+    }
+
+    /** Ghi nhận 1 file vừa tải xong (chunkHashes rỗng -> chỉ index theo hash toàn file) */
+    void addFile(Path file, String fileSha256, int chunkSize, List<String> chunkHashes) {
+        // hash do peer gửi (Merkle download không kiểm hash toàn file) và dùng làm tên file index
+        if (!isSha256Hex(fileSha256)) {
+            System.err.println("[LocalChunkStore] Ignored file with invalid hash: " + file);
+            return;
+        }
+        Entry e = new Entry();
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            e.path = file.toAbsolutePath().toString();
+            e.fileSize = attrs.size();
+            e.lastModified = attrs.lastModifiedTime().toMillis();
+        } catch (IOException ex) {
+            return;
+        }
+        e.chunkSize = chunkSize;
+        e.fileSha256 = fileSha256;
+        e.chunkHashes = new ArrayList<>(chunkHashes);
+
+        synchronized (this) {
+            Entry old = files.get(fileSha256);
+            if (old != null) drop(old);
+            put(e);
+            evict(fileSha256);
+        }
+        writeToDisk(e);
+    }
+
+    // ---------------- index ----------------
+
+    // guarded by this
+    private void put(Entry e) {
+        files.put(e.fileSha256, e);
+        for (int i = 0; i < e.chunkHashes.size(); i++) {
+            chunks.put(e.chunkHashes.get(i), new ChunkRef(e.fileSha256, i));
+        }
+        indexedChunks += e.chunkHashes.size();
+    }
+
+    // guarded by this
+    private void drop(Entry e) {
+        if (files.get(e.fileSha256) != e) return;
+        files.remove(e.fileSha256);
+        for (String h : e.chunkHashes) {
+            ChunkRef ref = chunks.get(h);
+            if (ref != null && ref.fileSha256.equals(e.fileSha256)) chunks.remove(h);
+        }
+        indexedChunks -= e.chunkHashes.size();
+        try {
+            Files.deleteIfExists(indexFile(e.fileSha256));
+        } catch (IOException ignored) {}
+    }
+
+    // LRU: bỏ file ít dùng nhất tới khi dưới ngưỡng (giữ file vừa thêm)
+    private void evict(String keep) {
+        Iterator<Entry> it = new ArrayList<>(files.values()).iterator();
+        while (indexedChunks > maxIndexedChunks && files.size() > 1 && it.hasNext()) {
+            Entry eldest = it.next();
+            if (!eldest.fileSha256.equals(keep)) drop(eldest);
+        }
+    }
+
+    private static boolean isUnchanged(Entry e, Path p) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            return attrs.isRegularFile() && attrs.size() == e.fileSize
+                    && attrs.lastModifiedTime().toMillis() == e.lastModified;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // ---------------- disk ----------------
+
+    private void load() {
+        if (!Files.isDirectory(dir)) return;
+        List<Entry> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : ds) {
+                try (Reader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+                    Entry e = gson.fromJson(reader, Entry.class);
+                    if (e != null && isSha256Hex(e.fileSha256) && e.path != null) {
+                        if (e.chunkHashes == null) e.chunkHashes = new ArrayList<>();
+                        loaded.add(e);
+                    }
+                } catch (Exception ex) {
+                    // entry hỏng -> bỏ qua
+                }
+            }
+        } catch (IOException | DirectoryIteratorException ex) {
+            System.err.println("[LocalChunkStore] Cannot load index: " + ex.getMessage());
+        }
+
+        // file ghi index sớm hơn coi như dùng lâu hơn
+        loaded.sort(Comparator.comparingLong(e -> e.lastModified));
+        synchronized (this) {
+            for (Entry e : loaded) put(e);
+            evict(null);
+        }
+    }
+
+    // file index của 1 entry; fileSha256 đã qua isSha256Hex -> không thoát ra ngoài dir
+    private Path indexFile(String fileSha256) {
+        return dir.resolve(fileSha256 + ".json");
+    }
+
+    static boolean isSha256Hex(String s) {
+        if (s == null || s.length() != 64) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F')) return false;
+        }
+        return true;
+    }
+
+    private void writeToDisk(Entry e) {
+        try {
+            Files.createDirectories(dir);
+            Path target = indexFile(e.fileSha256);
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                gson.toJson(e, writer);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("[LocalChunkStore] Cannot persist index: " + ex.getMessage());
+        }
+    }
+}
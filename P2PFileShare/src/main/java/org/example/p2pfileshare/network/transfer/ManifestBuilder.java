@@ -0,0 +1,159 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Tính hash toàn file + hash từng chunk trong MỘT lượt đọc tuần tự.
+ *
+ * - SEQUENTIAL: 1 buffer dùng lại, mỗi chunk vừa đọc xong được đưa vào cả
+ *   digest toàn file lẫn digest của chunk.
+ * - PARALLEL: vòng buffer nhỏ; thread đọc stream digest toàn file, còn hash
+ *   từng chunk chạy trên ForkJoinPool. Dùng cho file lớn, máy nhiều core.
+ *
+ * Buffer mượn BufferPool (chờ tối đa BUFFER_WAIT_MS, không có thì BusyException).
+ */
+public final class ManifestBuilder {
+
+    public enum Mode { SEQUENTIAL, PARALLEL, AUTO }
+
+    // file nhỏ hơn ngưỡng này thì song song không đáng (chi phí điều phối > lợi ích)
+    private static final long PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+    private static final long BUFFER_WAIT_MS = 5000;
+
+    private static final ThreadLocal<MessageDigest> CHUNK_DIGEST =
+            ThreadLocal.withInitial(FileHashUtil::newSha256);
+
+    private ManifestBuilder() {}
+
+    /** Kết quả build: size đọc được, hash toàn file, hash từng chunk */
+    public static final class Result {
+        public final long fileSize;
+        public final String fileSha256;
+        public final List<String> chunkHashes;
+
+        Result(long fileSize, String fileSha256, List<String> chunkHashes) {
+            this.fileSize = fileSize;
+            this.fileSha256 = fileSha256;
+            this.chunkHashes = chunkHashes;
+        }
+    }
+
+    public static Result build(Path file, int chunkSize) throws IOException {
+        return build(file, chunkSize, Mode.AUTO);
+    }
+
+    public static Result build(Path file, int chunkSize, Mode mode) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            boolean parallel = mode == Mode.PARALLEL
+                    || (mode == Mode.AUTO && size >= PARALLEL_THRESHOLD
+                        && Runtime.getRuntime().availableProcessors() > 1);
+            return parallel ? buildParallel(ch, size, chunkSize) : buildSequential(ch, size, chunkSize);
+        }
+    }
+
+    private static Result buildSequential(FileChannel ch, long size, int chunkSize) throws IOException {
+        int totalChunks = (int) ((size + chunkSize - 1) / chunkSize);
+        MessageDigest fileDigest = FileHashUtil.newSha256();
+        MessageDigest chunkDigest = CHUNK_DIGEST.get();
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buf = pool.acquire(chunkSize, BUFFER_WAIT_MS);
+        List<String> hashes = new ArrayList<>(totalChunks);
+
+        try {
+            long pos = 0;
+            for (int i = 0; i < totalChunks; i++) {
+                int len = (int) Math.min(chunkSize, size - pos);
+                fill(ch, buf, pos, len);
+                fileDigest.update(buf.duplicate());
+                chunkDigest.update(buf);
+                hashes.add(FileHashUtil.toHex(chunkDigest.digest()));
+                pos += len;
+            }
+        } finally {
+            pool.release(buf);
+        }
+        return new Result(size, FileHashUtil.toHex(fileDigest.digest()), hashes);
+    }
+
+    private static Result buildParallel(FileChannel ch, long size, int chunkSize) throws IOException {
+        int totalChunks = (int) ((size + chunkSize - 1) / chunkSize);
+        int workers = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), 8));
+
+        // vòng buffer: đọc tối đa (workers + 1) chunk trước khi phải chờ hash xong
+        // (pool không đủ thì vòng nhỏ hơn, tối thiểu 1 buffer)
+        BufferPool pool = BufferPool.shared();
+        List<ByteBuffer> ring = new ArrayList<>(workers + 1);
+        ring.add(pool.acquire(chunkSize, BUFFER_WAIT_MS));
+        for (int i = 0; i < workers; i++) {
+            ByteBuffer b = pool.tryAcquire(chunkSize);
+            if (b == null) break;
+            ring.add(b);
+        }
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(ring.size(), false, ring);
+
+        MessageDigest fileDigest = FileHashUtil.newSha256();
+        String[] hashes = new String[totalChunks];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(totalChunks);
+
+        try {
+            long pos = 0;
+            for (int i = 0; i < totalChunks; i++) {
+                int len = (int) Math.min(chunkSize, size - pos);
+                ByteBuffer buf = free.take();
+                fill(ch, buf, pos, len);
+                fileDigest.update(buf.duplicate());
+
+                final int index = i;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    try {
+                        MessageDigest d = CHUNK_DIGEST.get();
+                        d.update(buf);
+                        hashes[index] = FileHashUtil.toHex(d.digest());
+                    } finally {
+                        free.add(buf);
+                    }
+                }));
+                pos += len;
+            }
+            for (ForkJoinTask<?> t : tasks) t.join();
+        } catch (InterruptedException e) {
+            tasks.forEach(t -> t.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Manifest build interrupted", e);
+        } finally {
+            // task bị cancel giữa chừng không trả buffer vào free -> trả theo ring
+            for (ForkJoinTask<?> t : tasks) {
+                try {
+                    t.join();
+                } catch (RuntimeException ignored) {
+                    // cancelled
+                }
+            }
+            ring.forEach(pool::release);
+        }
+        return new Result(size, FileHashUtil.toHex(fileDigest.digest()), Arrays.asList(hashes));
+    }
+
+    // đọc đủ len byte tại pos vào đầu buffer (positional read, không seek)
+    // -> buf sẵn sàng đọc (position 0, limit len)
+    private static void fill(FileChannel ch, ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + buf.position());
+            if (n < 0) throw new IOException("File shrank while hashing");
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,317 @@
+package org.example.p2pfileshare.network.transfer;
+
+import com.google.gson.Gson;
+import org.example.p2pfileshare.model.FileManifest;
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Cache manifest (hash toàn file + hash từng chunk) cho ChunkedFileServer.
+ *
+ * - RAM: LRU, giới hạn theo tổng số chunk hash đang giữ
+ * - Đĩa: mỗi manifest 1 file JSON trong thư mục cache, sống qua các lần restart
+ * - Key: (relativePath, size, mtime, fileKey) -> file đổi thì manifest tự hết hạn
+ * - Nền: theo dõi share folder (WatchService), file nào đổi thì tính lại manifest
+ * - Index fileSha256 -> relativePath để peer khác hỏi file theo hash (swarm download)
+ * - Nhiều request cùng tính 1 manifest cùng lúc (SingleFlight): chỉ hash file 1 lần, các request khác chờ kết quả
+ */
+public class ManifestStore {
+
+    private static final String CACHE_DIR = "manifest_cache";
+    private static final int MAX_CACHED_HASHES = 500_000; // ~ 500k chunk (~500 GB dữ liệu với chunk 1 MB)
+    private static final long REFRESH_DEBOUNCE_MS = 2000;
+
+    private final Path cacheDir;
+    private final int maxCachedHashes;
+    private final Gson gson = new Gson();
+
+    // LRU trong RAM: accessOrder = true
+    private final LinkedHashMap<String, FileManifest> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private int cachedHashes = 0;
+
+    // Thread nền: tính lại manifest khi file đổi
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "manifest-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<Path, ScheduledFuture<?>> pendingRefresh = new ConcurrentHashMap<>();
+
+    // fileSha256 -> relativePath (không bị LRU evict, chỉ vài chục byte / file)
+    private final Map<String, String> byHash = new ConcurrentHashMap<>();
+
+    // cacheKey -> lần tính đang chạy
+    private final SingleFlight<String, FileManifest> computing = new SingleFlight<>();
+
+    private volatile WatchService watchService;
+    private volatile Path watchedRoot;
+    private volatile int watchedChunkSize;
+    private Thread watchThread;
+
+    public ManifestStore() {
+        this(Paths.get(CACHE_DIR), MAX_CACHED_HASHES);
+    }
+
+    public ManifestStore(Path cacheDir, int maxCachedHashes) {
+        this.cacheDir = cacheDir;
+        this.maxCachedHashes = maxCachedHashes;
+    }
+
+    /**
+     * Lấy manifest cho file (đã validate nằm trong root).
+     * Hit RAM/đĩa -> trả ngay; miss hoặc file đã đổi -> tính lại và lưu.
+     */
+    public FileManifest getOrCompute(Path root, Path file, int chunkSize) throws IOException {
+        FileManifest cached = lookup(root, file, chunkSize);
+        if (cached != null) return cached;
+        return compute(root, file, chunkSize);
+    }
+
+    /** Chỉ tra cache (RAM -> đĩa), không tính. Null nếu chưa có hoặc đã cũ. */
+    public FileManifest lookup(Path root, Path file, int chunkSize) throws IOException {
+        String rel = relativeKey(root, file);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        String fileKey = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+        String key = cacheKey(rel, chunkSize);
+
+        synchronized (memory) {
+            FileManifest m = memory.get(key);
+            if (m != null && m.matches(size, mtime, fileKey, chunkSize)) return m;
+        }
+
+        FileManifest onDisk = readFromDisk(key);
+        if (onDisk != null && onDisk.matches(size, mtime, fileKey, chunkSize)) {
+            remember(key, onDisk);
+            return onDisk;
+        }
+        return null;
+    }
+
+    /**
+     * Tra cache manifest của file với chunk size bất kỳ trong [minChunkSize, maxChunkSize] (lũy thừa 2),
+     * thử preferred trước. Null nếu chưa có size nào.
+     */
+    public FileManifest lookupAny(Path root, Path file, int preferred, int minChunkSize, int maxChunkSize)
+            throws IOException {
+        FileManifest m = lookup(root, file, preferred);
+        if (m != null) return m;
+        for (long size = minChunkSize; size <= maxChunkSize; size <<= 1) {
+            if (size == preferred) continue;
+            m = lookup(root, file, (int) size);
+            if (m != null) return m;
+        }
+        return null;
+    }
+
+    /**
+     * Tính manifest mới cho file rồi lưu vào RAM + đĩa.
+     * Đang có lần tính cùng file + chunk size -> chờ và dùng chung kết quả; lần tính vừa xong -> dùng luôn.
+     */
+    public FileManifest compute(Path root, Path file, int chunkSize) throws IOException {
+        return computing.run(cacheKey(relativeKey(root, file), chunkSize), () -> {
+            FileManifest fresh = lookup(root, file, chunkSize);
+            return fresh != null ? fresh : computeNow(root, file, chunkSize);
+        });
+    }
+
+    /** Số lần tính manifest được gộp vào lần tính đang chạy */
+    public long sharedComputations() {
+        return computing.shared();
+    }
+
+    private FileManifest computeNow(Path root, Path file, int chunkSize) throws IOException {
+        String rel = relativeKey(root, file);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        String fileKey = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+
+        long start = System.nanoTime();
+        // 1 lượt đọc: hash toàn file + hash từng chunk
+        ManifestBuilder.Result built = ManifestBuilder.build(file, chunkSize);
+        int totalChunks = built.chunkHashes.size();
+
+        FileManifest m = new FileManifest(rel, built.fileSize, mtime, fileKey, chunkSize,
+                built.fileSha256, built.chunkHashes);
+        String key = cacheKey(rel, chunkSize);
+        remember(key, m);
+        writeToDisk(key, m);
+
+        System.out.println("[ManifestStore] Computed manifest for " + rel + " chunks=" + totalChunks
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return m;
+    }
+
+    /**
+     * Tìm file trong root có SHA-256 toàn file = fileSha256 (chỉ những file đã có manifest,
+     * watch() đã làm ấm sẵn cho share folder). Null nếu không có hoặc file đã đổi.
+     */
+    public FileManifest findByHash(Path root, String fileSha256, int chunkSize) throws IOException {
+        String rel = byHash.get(fileSha256);
+        if (rel == null) return null;
+
+        Path file = root.resolve(rel).normalize();
+        if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+            byHash.remove(fileSha256, rel);
+            return null;
+        }
+
+        FileManifest m = getOrCompute(root, file, chunkSize);
+        if (!fileSha256.equals(m.getFileSha256())) {
+            byHash.remove(fileSha256, rel);
+            return null;
+        }
+        return m;
+    }
+
+    // ---------------- background refresh ----------------
+
+    /**
+     * Theo dõi share folder: quét 1 lượt để làm ấm cache, sau đó chỉ tính lại
+     * những file bị tạo mới / sửa. Gọi lại với folder khác sẽ đổi folder theo dõi.
+     * chunkSize = ChunkSizePolicy.AUTO -> mỗi file dùng size auto theo kích thước file.
+     */
+    public synchronized void watch(Path root, int chunkSize) {
+        stopWatching();
+        if (root == null || !Files.isDirectory(root)) return;
+
+        watchedRoot = root;
+        watchedChunkSize = chunkSize;
+
+        refresher.submit(() -> prewarm(root, chunkSize));
+
+        try {
+            WatchService ws = root.getFileSystem().newWatchService();
+            root.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchService = ws;
+            watchThread = new Thread(() -> watchLoop(ws, root), "manifest-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException e) {
+            System.err.println("[ManifestStore] Cannot watch " + root + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void stopWatching() {
+        watchedRoot = null;
+        WatchService ws = watchService;
+        watchService = null;
+        if (ws != null) {
+            try { ws.close(); } catch (IOException ignored) {}
+        }
+        pendingRefresh.values().forEach(f -> f.cancel(false));
+        pendingRefresh.clear();
+    }
+
+    private void watchLoop(WatchService ws, Path root) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+                    Path changed = root.resolve((Path) event.context());
+                    scheduleRefresh(root, changed);
+                }
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // stopWatching() đóng WatchService
+        }
+    }
+
+    // debounce: file đang được ghi sẽ bắn nhiều event MODIFY liên tiếp
+    private void scheduleRefresh(Path root, Path file) {
+        ScheduledFuture<?> old = pendingRefresh.remove(file);
+        if (old != null) old.cancel(false);
+        pendingRefresh.put(file, refresher.schedule(() -> {
+            pendingRefresh.remove(file);
+            if (!root.equals(watchedRoot)) return;
+            refreshIfStale(root, file, watchedChunkSize);
+        }, REFRESH_DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void prewarm(Path root, int chunkSize) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+            for (Path f : ds) {
+                if (!root.equals(watchedRoot)) return;
+                refreshIfStale(root, f, chunkSize);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            System.err.println("[ManifestStore] Prewarm failed: " + e.getMessage());
+        }
+    }
+
+    private void refreshIfStale(Path root, Path file, int chunkSize) {
+        try {
+            if (!Files.isRegularFile(file)) return;
+            int size = chunkSize == ChunkSizePolicy.AUTO ? ChunkSizePolicy.auto(Files.size(file)) : chunkSize;
+            if (lookup(root, file, size) == null) {
+                compute(root, file, size);
+            }
+        } catch (IOException e) {
+            System.err.println("[ManifestStore] Refresh failed for " + file + ": " + e.getMessage());
+        }
+    }
+
+    // ---------------- memory / disk ----------------
+
+    private void remember(String key, FileManifest m) {
+        byHash.put(m.getFileSha256(), m.getRelativePath());
+        synchronized (memory) {
+            FileManifest old = memory.put(key, m);
+            if (old != null) cachedHashes -= old.getTotalChunks();
+            cachedHashes += m.getTotalChunks();
+
+            // LRU evict: bỏ manifest ít dùng nhất cho tới khi dưới ngưỡng (giữ lại ít nhất 1)
+            Iterator<Map.Entry<String, FileManifest>> it = memory.entrySet().iterator();
+            while (cachedHashes > maxCachedHashes && memory.size() > 1 && it.hasNext()) {
+                Map.Entry<String, FileManifest> eldest = it.next();
+                if (eldest.getKey().equals(key)) continue;
+                cachedHashes -= eldest.getValue().getTotalChunks();
+                it.remove();
+            }
+        }
+    }
+
+    private FileManifest readFromDisk(String key) {
+        Path p = cacheDir.resolve(key + ".json");
+        if (!Files.exists(p)) return null;
+        try (Reader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, FileManifest.class);
+        } catch (Exception e) {
+            // file cache hỏng -> coi như miss
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, FileManifest m) {
+        try {
+            Files.createDirectories(cacheDir);
+            Path tmp = cacheDir.resolve(key + ".json.tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                gson.toJson(m, writer);
+            }
+            Files.move(tmp, cacheDir.resolve(key + ".json"),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[ManifestStore] Cannot persist manifest: " + e.getMessage());
+        }
+    }
+
+    private static String relativeKey(Path root, Path file) {
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+
+    private static String cacheKey(String relativePath, int chunkSize) {
+        return FileHashUtil.sha256((relativePath + "|" + chunkSize).getBytes(StandardCharsets.UTF_8));
+    }
+}
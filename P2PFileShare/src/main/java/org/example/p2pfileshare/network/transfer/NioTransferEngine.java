@@ -0,0 +1,528 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine non-blocking cho ChunkedFileServer: vài I/O thread (mỗi thread 1 Selector)
+ * phục vụ hàng nghìn kết nối chunk cùng lúc.
+ *
+ * - I/O thread: accept, đọc request (frame writeUTF), ghi response (header + transferTo),
+ *   ghi thiếu thì chờ OP_WRITE rồi ghi tiếp -> client Wi-Fi chậm không giữ thread nào
+ * - Disk pool (bounded): TransferRequestHandler (tính manifest, mở file...).
+ *   Queue đầy -> trả ERROR "Server busy" thay vì xếp hàng vô hạn
+ * - Request chunk xin slot ở UploadScheduler trước (không chặn I/O thread), giữ slot tới khi gửi xong;
+ *   request metadata / hash chạy trên pool riêng (META_THREADS) -> không phải xếp sau dòng chunk
+ * - Response chunk đi qua BandwidthLimiter: hết token thì tạm bỏ OP_WRITE, loop hẹn giờ ghi tiếp
+ * - drain(): ngừng accept, kết nối rảnh / request mới nhận "Going away", chờ response đang dở gửi xong
+ */
+final class NioTransferEngine {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int META_THREADS = 2;
+    private static final int META_QUEUE = 256;
+    private static final long DRAIN_POLL_MS = 50;
+    private static final long ACCEPT_BACKOFF_MS = 200;
+
+    private final int port;
+    private final TransferRequestHandler handler;
+    private final UploadScheduler scheduler;
+    private final IoLoop[] loops;
+    private final ThreadPoolExecutor diskPool;
+    private final ThreadPoolExecutor metaPool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private volatile boolean draining = false;
+    private ServerSocketChannel server;
+    // request đã nhận mà response chưa gửi xong (drain chờ về 0)
+    private final AtomicInteger activeResponses = new AtomicInteger();
+
+    NioTransferEngine(int port, TransferRequestHandler handler, UploadScheduler scheduler, int ioThreads,
+                      int diskThreads, int diskQueue) {
+        this.port = port;
+        this.handler = handler;
+        this.scheduler = scheduler;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        this.diskPool = boundedPool("chunked-file-disk-", diskThreads, diskQueue);
+        this.metaPool = boundedPool("chunked-file-meta-", META_THREADS, META_QUEUE);
+    }
+
+    private static ThreadPoolExecutor boundedPool(String name, int threads, int queue) {
+        AtomicInteger n = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, name + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(port));
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+        }
+        // loop 0 kiêm accept, kết nối mới chia round-robin cho các loop
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (IoLoop loop : loops) loop.thread.start();
+
+        System.out.println("[ChunkedFileServer] NIO engine listening on port " + port
+                + " (io=" + loops.length + ", disk=" + diskPool.getMaximumPoolSize() + ")");
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+
+        for (IoLoop loop : loops) {
+            if (loop == null) continue;
+            loop.selector.wakeup();
+            try {
+                loop.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        diskPool.shutdownNow();
+        metaPool.shutdownNow();
+    }
+
+    /**
+     * Dừng nhẹ nhàng: ngừng accept, kết nối đang rảnh nhận "Going away" ngay, request tới sau cũng vậy;
+     * response đang xử lý / gửi dở được gửi nốt, tối đa timeoutMs. Sau đó gọi stop().
+     */
+    void drain(long timeoutMs) {
+        draining = true;
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+        for (IoLoop loop : loops) {
+            if (loop != null) loop.execute(loop::goAwayIdle);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (activeResponses.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int left = activeResponses.get();
+        if (left > 0) System.out.println("[ChunkedFileServer] Drain timed out, cutting " + left + " transfers");
+        else System.out.println("[ChunkedFileServer] Drained in-flight transfers");
+    }
+
+    /** Số request đang chạy trên disk pool + pool metadata */
+    int getActiveRequests() {
+        return diskPool.getActiveCount() + metaPool.getActiveCount();
+    }
+
+    // ---------------- per-connection state ----------------
+
+    private static final class Connection {
+        final SocketChannel ch;
+        final IoLoop loop;
+        final String peer;
+        final BandwidthLimiter.Shaper shaper;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE); // write mode
+        TransferResponse out;       // response đang ghi dở
+        UploadScheduler.Permit permit; // slot của response đang ghi (request chunk)
+        boolean pending;            // request đang chờ slot / disk pool
+        long resumeAt;              // hết token băng thông: ghi tiếp lúc này (nanoTime), 0 = không chờ
+        boolean active;             // đang tính trong activeResponses
+        boolean goneAway;           // đã gửi "Going away": bỏ qua request sau, chờ client đóng
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel ch, IoLoop loop) {
+            this.ch = ch;
+            this.loop = loop;
+            this.peer = UploadScheduler.peerOf(ch);
+            this.shaper = BandwidthLimiter.upload().forPeer(peer);
+        }
+    }
+
+    // ---------------- I/O loop ----------------
+
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // kết nối đang chờ token băng thông (chỉ thread của loop đụng tới)
+        final List<Connection> throttled = new ArrayList<>();
+        // accept() lỗi (vd hết file descriptor): tạm bỏ OP_ACCEPT tới lúc này (nanoTime), 0 = không chờ
+        SelectionKey acceptKey;
+        long acceptResumeAt;
+        long lastSweep = System.currentTimeMillis();
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chunked-file-io-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /** Chạy task trên thread của loop (mọi thay đổi SelectionKey phải ở đây) */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(selectTimeoutMs());
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    resumeThrottled();
+                    resumeAccept();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            accept(key);
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) onRead(conn);
+                            if (key.isValid() && key.isWritable()) onWrite(conn);
+                        } catch (IOException | CancelledKeyException e) {
+                            close(conn);
+                        }
+                    }
+                    sweepIdle();
+                }
+            } catch (IOException e) {
+                if (running) System.err.println("[ChunkedFileServer] I/O loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) close((Connection) key.attachment());
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        // lỗi chỉ ảnh hưởng kết nối đó; server.accept() lỗi thì nghỉ ACCEPT_BACKOFF_MS rồi accept tiếp
+        private void accept(SelectionKey key) {
+            while (true) {
+                SocketChannel ch;
+                try {
+                    ch = server.accept();
+                } catch (IOException e) {
+                    if (!running || draining || !server.isOpen()) return;
+                    System.err.println("[ChunkedFileServer] Accept error: " + e.getMessage() + " -> retry in " + ACCEPT_BACKOFF_MS + " ms");
+                    acceptKey = key;
+                    acceptResumeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_BACKOFF_MS);
+                    key.interestOps(0);
+                    return;
+                }
+                if (ch == null) return;
+                try {
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    // client reset ngay sau khi kết nối
+                    System.err.println("[ChunkedFileServer] Dropped new connection: " + e.getMessage());
+                    try { ch.close(); } catch (IOException ignored) {}
+                    continue;
+                }
+                IoLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = ch;
+                target.execute(() -> target.register(accepted));
+            }
+        }
+
+        private void resumeAccept() {
+            if (acceptResumeAt == 0 || acceptResumeAt - System.nanoTime() > 0) return;
+            acceptResumeAt = 0;
+            if (acceptKey.isValid()) acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+
+        private void register(SocketChannel ch) {
+            Connection conn = new Connection(ch, this);
+            try {
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                close(conn);
+            }
+        }
+
+        /** Chờ token: ngừng OP_WRITE tới resumeAt */
+        void throttle(Connection conn, long waitNanos) {
+            conn.resumeAt = System.nanoTime() + waitNanos;
+            conn.key.interestOps(0);
+            throttled.add(conn);
+        }
+
+        // select không ngủ quá lúc kết nối chờ token sớm nhất được ghi tiếp
+        private long selectTimeoutMs() {
+            long timeout = SELECT_TIMEOUT_MS;
+            long now = System.nanoTime();
+            if (acceptResumeAt != 0) {
+                timeout = Math.min(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(acceptResumeAt - now) + 1));
+            }
+            for (Connection c : throttled) {
+                timeout = Math.min(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(c.resumeAt - now) + 1));
+            }
+            return timeout;
+        }
+
+        private void resumeThrottled() {
+            if (throttled.isEmpty()) return;
+            long now = System.nanoTime();
+            List<Connection> due = new ArrayList<>();
+            Iterator<Connection> it = throttled.iterator();
+            while (it.hasNext()) {
+                Connection c = it.next();
+                if (c.resumeAt - now > 0) continue;
+                it.remove();
+                c.resumeAt = 0;
+                due.add(c);
+            }
+            // onWrite có thể hẹn giờ lại (thêm vào throttled)
+            for (Connection c : due) {
+                if (!c.key.isValid()) continue;
+                try {
+                    onWrite(c);
+                } catch (IOException | CancelledKeyException e) {
+                    close(c);
+                }
+            }
+        }
+
+        /** Drain: kết nối không có request dở nhận "Going away" ngay */
+        void goAwayIdle() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection c = (Connection) key.attachment();
+                    if (!c.pending && c.out == null && !c.goneAway) goAway(c);
+                }
+            }
+        }
+
+        private void sweepIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SELECT_TIMEOUT_MS) return;
+            lastSweep = now;
+            scheduler.expire();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection c = (Connection) key.attachment();
+                    if (!c.pending && now - c.lastActive > IDLE_TIMEOUT_MS) close(c);
+                }
+            }
+        }
+    }
+
+    // ---------------- read / dispatch / write ----------------
+
+    private void onRead(Connection conn) throws IOException {
+        int n = conn.ch.read(conn.in);
+        if (n < 0) {
+            close(conn);
+            return;
+        }
+        conn.lastActive = System.currentTimeMillis();
+        processInput(conn);
+    }
+
+    /** Lấy 1 request hoàn chỉnh trong buffer (nếu có) và gửi sang disk pool */
+    private void processInput(Connection conn) throws IOException {
+        if (conn.pending || conn.out != null) return;
+        if (conn.goneAway) {
+            conn.in.clear();
+            return;
+        }
+
+        String request = nextFrame(conn);
+        if (request == null) {
+            conn.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        if (draining) {
+            goAway(conn);
+            return;
+        }
+
+        // xử lý lần lượt từng request trên 1 kết nối: ngừng đọc tới khi trả lời xong
+        conn.pending = true;
+        conn.active = true;
+        activeResponses.incrementAndGet();
+        conn.key.interestOps(0);
+
+        FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
+        if (!UploadScheduler.isBulk(cmd)) {
+            execute(metaPool, conn, request, null);
+            return;
+        }
+        // request chunk: chờ tới lượt của peer (callback chạy trên thread trả slot)
+        scheduler.submit(conn.peer, UploadScheduler.costOf(cmd), new UploadScheduler.Callback() {
+            @Override
+            public void granted(UploadScheduler.Permit permit) {
+                if (!conn.ch.isOpen()) {
+                    permit.close();
+                    return;
+                }
+                execute(diskPool, conn, request, permit);
+            }
+
+            @Override
+            public void rejected(long retryAfterMs) {
+                conn.loop.execute(() -> startWrite(conn, TransferResponse.busy(retryAfterMs), null));
+            }
+        });
+    }
+
+    // chạy handler trên pool rồi trả response về I/O thread của kết nối; pool đầy -> BUSY
+    private void execute(ThreadPoolExecutor pool, Connection conn, String request, UploadScheduler.Permit permit) {
+        try {
+            pool.execute(() -> {
+                TransferResponse resp;
+                try {
+                    resp = handler.handle(request);
+                } catch (IOException e) {
+                    resp = TransferResponse.error(e.getMessage());
+                }
+                TransferResponse r = resp;
+                conn.loop.execute(() -> startWrite(conn, r, permit));
+            });
+        } catch (RejectedExecutionException e) {
+            conn.loop.execute(() -> startWrite(conn, TransferResponse.busy(TransferRequestHandler.BUSY_RETRY_MS),
+                    permit));
+        }
+    }
+
+    // frame của writeUTF: 2 byte độ dài (unsigned) + modified UTF-8
+    private static String nextFrame(Connection conn) throws IOException {
+        ByteBuffer in = conn.in;
+        if (in.position() < 2) return null;
+        int len = ((in.get(0) & 0xFF) << 8) | (in.get(1) & 0xFF);
+        if (in.position() < 2 + len) {
+            if (in.capacity() < 2 + len) {
+                ByteBuffer bigger = ByteBuffer.allocate(2 + len);
+                in.flip();
+                bigger.put(in);
+                conn.in = bigger;
+            }
+            return null;
+        }
+        byte[] frame = new byte[2 + len];
+        in.flip();
+        in.get(frame);
+        in.compact();
+        return new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+    }
+
+    private void startWrite(Connection conn, TransferResponse resp, UploadScheduler.Permit permit) {
+        conn.pending = false;
+        if (!conn.ch.isOpen()) {
+            resp.close();
+            if (permit != null) permit.close();
+            finished(conn);
+            return;
+        }
+        conn.out = resp;
+        conn.permit = permit;
+        if (permit != null) resp.shapeWith(conn.shaper);
+        try {
+            onWrite(conn);
+        } catch (IOException | CancelledKeyException e) {
+            close(conn);
+        }
+    }
+
+    private void onWrite(Connection conn) throws IOException {
+        if (conn.out == null) return;
+        conn.lastActive = System.currentTimeMillis();
+
+        if (!conn.out.writeTo(conn.ch)) {
+            long wait = conn.out.throttledNanos();
+            if (wait > 0) {
+                // hết token băng thông: hẹn giờ ghi tiếp
+                conn.loop.throttle(conn, wait);
+            } else {
+                // socket đầy: chờ OP_WRITE rồi ghi tiếp phần còn lại
+                conn.key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        conn.out.close();
+        conn.out = null;
+        releasePermit(conn);
+        finished(conn);
+        if (conn.goneAway) {
+            // "Going away" đã gửi: đóng chiều ghi, đọc tiếp tới khi client đóng (đóng hẳn lúc còn byte chưa đọc
+            // thì client nhận RST, có thể mất reply)
+            conn.ch.shutdownOutput();
+            conn.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        if (draining) {
+            goAway(conn);
+            return;
+        }
+        // client có thể đã gửi sẵn request tiếp theo
+        processInput(conn);
+    }
+
+    // trả "Going away" thay cho request tiếp theo (client đọc được kể cả khi chưa gửi request)
+    private void goAway(Connection conn) {
+        conn.goneAway = true;
+        startWrite(conn, TransferResponse.goingAway(), null);
+    }
+
+    private void finished(Connection conn) {
+        if (conn.active) {
+            conn.active = false;
+            activeResponses.decrementAndGet();
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn.key != null) conn.key.cancel();
+        try { conn.ch.close(); } catch (IOException ignored) {}
+        if (conn.out != null) {
+            conn.out.close();
+            conn.out = null;
+        }
+        releasePermit(conn);
+        finished(conn);
+    }
+
+    private static void releasePermit(Connection conn) {
+        if (conn.permit != null) {
+            conn.permit.close();
+            conn.permit = null;
+        }
+    }
+}
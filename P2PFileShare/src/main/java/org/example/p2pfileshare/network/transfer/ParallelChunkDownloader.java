@@ -0,0 +1,784 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.AppConfig;
+import org.example.p2pfileshare.util.ChunkLayout;
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Tải song song nhiều chunk của 1 file: N worker, mỗi worker 1 session riêng,
+ * lần lượt "nhận" (claim) 1 dải chunk còn thiếu rồi tải bằng GET_RANGE.
+ *
+ * - Ghi positional vào .part qua 1 PartFileWriter dùng chung (an toàn khi nhiều thread ghi)
+ * - DownloadProgress (bitmap) và DownloadControl (pause/cancel) giữ nguyên ngữ nghĩa:
+ *   mọi worker dừng ở checkpoint khi pause, thoát khi cancel
+ * - Mỗi chunk được thử tối đa MAX_RETRIES lần (x số nguồn); quá số lần -> cả job thất bại
+ *
+ * Swarm: có thể tải từ nhiều peer cùng giữ file (cùng SHA-256). Mỗi nguồn có worker riêng,
+ * nguồn nhanh claim dải dài hơn (theo throughput đo được); nguồn rớt kết nối hoặc gửi chunk
+ * sai hash bị loại, phần việc của nó được nguồn khác nhận lại.
+ * Peer đang tải dở cùng file (partial seeding) chỉ được giao những chunk nó đã có;
+ * danh sách đó được hỏi lại định kỳ vì peer vẫn đang tải thêm.
+ *
+ * Hash chunk lấy từ ChunkHashIndex: với Merkle manifest, worker của nguồn có file hoàn chỉnh
+ * tải batch hash (GET_HASHES) trước dải chunk; nguồn partial chỉ nhận chunk đã có hash.
+ *
+ * Mạng chập chờn: kết nối rớt giữa 1 chunk thì phần đã nhận được giữ lại, lần thử sau xin phần còn lại
+ * bằng GET_BYTES theo từng mẩu SUB_CHUNK byte (rớt nữa chỉ mất 1 mẩu) thay vì tải lại cả chunk.
+ *
+ * Chunk trùng nội dung (ChunkLayout): chỉ chunk đầu nhóm được tải, xong thì ghi luôn ra các offset
+ * còn lại; bản sao nào không khớp hash mới được tải riêng.
+ */
+final class ParallelChunkDownloader {
+
+    // mỗi lần claim tối đa bấy nhiêu chunk -> các worker chia đều phần còn lại
+    private static final int CLAIM_CHUNKS = 8;
+    // tổng số worker tối đa cho 1 job (chia đều cho các nguồn)
+    private static final int MAX_WORKERS = 16;
+    // nguồn gửi sai hash bấy nhiêu lần thì bị loại (nếu còn nguồn khác)
+    private static final int MAX_HASH_FAILURES = 2;
+    // nguồn partial không có chunk nào cần: hỏi lại danh sách sau bấy lâu, tối đa bấy nhiêu lần liên tiếp
+    private static final long AVAILABILITY_REFRESH_MS = 1000;
+    private static final int MAX_IDLE_REFRESHES = 30;
+
+    // tải tiếp chunk bị cắt ngang: mỗi GET_BYTES bấy nhiêu byte (rớt mà không nhận thêm được gì
+    // thì giảm một nửa, tối thiểu MIN_SUB_CHUNK); giữ tối đa bấy nhiêu chunk dở
+    private static final int SUB_CHUNK = 256 * 1024;
+    private static final int MIN_SUB_CHUNK = 16 * 1024;
+    private static final int MAX_RESUMABLE = 16;
+
+    // claim(): còn chunk thiếu nhưng nguồn này không có -> hỏi lại danh sách chunk của nguồn
+    private static final int[] NO_WORK = new int[0];
+
+    /** 1 nguồn tải (peer) + số đo throughput của nó */
+    static final class Source {
+        final String host;
+        final int port;
+        // tên file phía peer; null = chưa hỏi FILE_META_BY_HASH
+        volatile String remoteName;
+        volatile boolean legacy = false;
+        volatile boolean dead = false;
+        // chunk nguồn đang có; null = có đủ (file hoàn chỉnh)
+        volatile BitSet available;
+
+        // guarded by downloader
+        int connectFailures = 0;
+        int hashFailures = 0;
+
+        private long bytes = 0;
+        private long nanos = 0;
+        private volatile double rate = 0; // bytes / ms, trung bình trượt
+
+        Source(String host, int port, String remoteName) {
+            this.host = host;
+            this.port = port;
+            this.remoteName = remoteName;
+        }
+
+        synchronized void record(long n, long elapsedNanos) {
+            bytes += n;
+            nanos += elapsedNanos;
+            double sample = n / Math.max(1.0, elapsedNanos / 1_000_000.0);
+            rate = rate == 0 ? sample : rate * 0.7 + sample * 0.3;
+        }
+
+        String label() {
+            return host + ":" + port;
+        }
+
+        boolean has(int chunkIndex) {
+            BitSet a = available;
+            return a == null || a.get(chunkIndex);
+        }
+    }
+
+    /** Chunk nhận dở (kết nối rớt giữa chừng) */
+    private static final class PartialChunk {
+        final byte[] data;
+        int received;
+        boolean gained = true; // có thêm byte từ lần thử trước
+        int pieceSize = SUB_CHUNK;
+
+        PartialChunk(byte[] data, int received) {
+            this.data = data;
+            this.received = received;
+        }
+    }
+
+    private final List<Source> sources;
+    private final FileMetadata meta;
+    private final ChunkHashIndex hashes;
+    private final PartFileWriter part;
+    private final DownloadProgress progress;
+    private final ResumeJournal journal;
+    private final Consumer<Double> progressCallback;
+    private final DownloadControl control;
+    private final int connections;
+    private final boolean compression = !"false".equalsIgnoreCase(AppConfig.load(ChunkedFileClient.KEY_COMPRESSION));
+    // bytes chunk đã ghi / bytes thực nhận qua mạng (khác nhau khi server nén)
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    // chunk đang có worker tải (guarded by this)
+    private final BitSet claimed = new BitSet();
+    private final int[] failures;
+    private final int maxChunkFailures;
+    private final Map<Integer, PartialChunk> resumable = new ConcurrentHashMap<>();
+
+    private volatile boolean failed = false;
+    private volatile boolean cancelled = false;
+
+    private TransferSession firstSession;
+    private IncrementalFileDigest digest;
+    private ChunkLayout layout = ChunkLayout.NONE;
+    // Merkle: chunk trùng với file đã tải, tra khi batch hash của dải vừa nạp (null = không tra)
+    private LocalChunkStore localStore;
+    private final AtomicInteger localChunks = new AtomicInteger();
+
+    /**
+     * @param sources nguồn đầu tiên là peer đã trả metadata (remoteName có sẵn),
+     *                các nguồn sau được xác minh bằng FILE_META_BY_HASH khi worker kết nối
+     */
+    ParallelChunkDownloader(List<Source> sources, FileMetadata meta, ChunkHashIndex hashes, PartFileWriter part,
+                            DownloadProgress progress, ResumeJournal journal, Consumer<Double> progressCallback,
+                            DownloadControl control, int connections) {
+        this.sources = List.copyOf(sources);
+        this.meta = meta;
+        this.hashes = hashes;
+        this.part = part;
+        this.progress = progress;
+        this.journal = journal;
+        this.progressCallback = progressCallback;
+        this.control = control;
+        this.connections = Math.max(1, connections);
+        this.failures = new int[meta.getTotalChunks()];
+        this.maxChunkFailures = ChunkedFileClient.MAX_RETRIES * this.sources.size();
+    }
+
+    /** Tái dùng session đã mở để lấy metadata cho worker đầu tiên của nguồn đầu (nhận quyền đóng) */
+    void reuseSession(TransferSession session) {
+        this.firstSession = session;
+    }
+
+    /** Đưa chunk vừa xong vào SHA-256 toàn file (theo thứ tự index) */
+    void trackDigest(IncrementalFileDigest digest) {
+        this.digest = digest;
+    }
+
+    /** Nhóm chunk trùng: chỉ tải chunk đầu nhóm (hash các chunk trong nhóm phải đã nạp) */
+    void useLayout(ChunkLayout layout) {
+        this.layout = layout;
+    }
+
+    /** Merkle: chunk có hash trùng chunk của file đã tải thì đọc từ đĩa, tra lúc tải tới dải đó */
+    void useLocalStore(LocalChunkStore store) {
+        this.localStore = store;
+    }
+
+    /**
+     * @return true nếu mọi chunk đã tải xong
+     * @throws InterruptedException nếu bị cancel
+     */
+    boolean run() throws InterruptedException {
+        int missing = meta.getTotalChunks() - progress.getCompletedChunks();
+        int perSource = Math.max(1, Math.min(connections, MAX_WORKERS / sources.size()));
+        perSource = Math.max(1, Math.min(perSource, (missing + CLAIM_CHUNKS - 1) / CLAIM_CHUNKS));
+
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(perSource * sources.size(), r -> {
+            Thread t = new Thread(r, "download-" + meta.getFileName() + "-w" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (Source source : sources) {
+            for (int w = 0; w < perSource; w++) {
+                TransferSession s = futures.isEmpty() ? firstSession : null;
+                if (s != null) s.useCompression(compression);
+                futures.add(pool.submit(() -> workerLoop(source, s)));
+            }
+        }
+        firstSession = null;
+
+        try {
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    System.err.println("[ChunkedFileClient] Worker crashed: " + e.getCause());
+                    failed = true;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (sources.size() > 1) logSwarmSummary();
+        if (localChunks.get() > 0) {
+            System.out.println("[ChunkedFileClient] Reused " + localChunks.get() + "/" + meta.getTotalChunks()
+                    + " chunks from local files");
+        }
+        if (wireBytes.get() < rawBytes.get()) {
+            System.out.printf("[ChunkedFileClient] Compression: %.1f MB of chunks in %.1f MB%n",
+                    rawBytes.get() / (1024.0 * 1024.0), wireBytes.get() / (1024.0 * 1024.0));
+        }
+        if (cancelled) throw new InterruptedException("Download cancelled");
+        return !failed && progress.isComplete();
+    }
+
+    private void workerLoop(Source source, TransferSession session) {
+        int idleRefreshes = 0;
+        int busyStreak = 0;
+        try {
+            while (!failed && !cancelled && !source.dead) {
+                if (control != null) control.checkpoint();
+
+                if (session == null && !source.legacy) {
+                    try {
+                        session = TransferSession.open(source.host, source.port, ChunkedFileClient.SOCKET_TIMEOUT_MS);
+                        session.useChunkSize(meta.getChunkSize());
+                        session.useCompression(compression);
+                        if (source.remoteName == null) handshake(source, session);
+                    } catch (IOException e) {
+                        if (session != null) session.close();
+                        session = null;
+                        if (e instanceof TransferSession.ServerBusyException busy) {
+                            // như nhánh chunk: BUSY quá MAX_BUSY_WAITS lần liền -> tính 1 lần nguồn lỗi
+                            if (++busyStreak % ChunkedFileClient.MAX_BUSY_WAITS == 0) connectFailed(source);
+                            Thread.sleep(busy.backoffMs(busyStreak - 1));
+                            continue;
+                        }
+                        if (e instanceof TransferSession.GoingAwayException) {
+                            sourceGoingAway(source);
+                            continue;
+                        }
+                        System.err.println("[ChunkedFileClient] " + source.label() + " connect error: " + e.getMessage());
+                        connectFailed(source);
+                        Thread.sleep(200L * source.connectFailures); // lùi lại trước khi nối lại
+                        continue;
+                    }
+                    if (source.dead) return;
+                }
+
+                int[] run = claim(source);
+                if (run == null) return; // hết việc
+                if (run == NO_WORK) {
+                    // nguồn partial chưa có chunk nào còn thiếu -> chờ nó tải thêm
+                    if (++idleRefreshes > MAX_IDLE_REFRESHES) return;
+                    Thread.sleep(AVAILABILITY_REFRESH_MS);
+                    try {
+                        refreshAvailability(source, session);
+                    } catch (IOException e) {
+                        if (session != null) session.close();
+                        session = null;
+                        if (e instanceof TransferSession.GoingAwayException) sourceGoingAway(source);
+                        else connectFailed(source);
+                    }
+                    continue;
+                }
+                idleRefreshes = 0;
+                int start = run[0];
+                int count = run[1];
+
+                boolean countFailures = true;
+                int attempted = count; // chunk đã gửi tới (kết nối rớt giữa dải -> các chunk sau chưa hề được thử)
+                try {
+                    if (source.legacy) {
+                        fetchLegacy(source, start, count);
+                        continue;
+                    }
+                    long t0 = System.nanoTime();
+                    int got = count == 1 && source.available == null && resumable.containsKey(start)
+                            ? fetchRemainder(source, session, start)
+                            : fetchRange(source, session, start, count);
+                    busyStreak = 0;
+                    if (got > 0) {
+                        source.record((long) got * meta.getChunkSize(), System.nanoTime() - t0);
+                        synchronized (this) {
+                            source.connectFailures = 0;
+                        }
+                    }
+                } catch (TransferSession.ServerBusyException e) {
+                    // server quá tải: nhả dải, chờ theo retry-after rồi nối lại (kết nối vượt quota của server
+                    // chỉ nhận BUSY) - không tính là lỗi chunk; BUSY mãi thì mới tính nguồn lỗi
+                    countFailures = false;
+                    if (session != null) session.close();
+                    session = null;
+                    if (++busyStreak % ChunkedFileClient.MAX_BUSY_WAITS == 0) connectFailed(source);
+                    Thread.sleep(e.backoffMs(busyStreak - 1));
+                } catch (TransferSession.GoingAwayException e) {
+                    // server đang dừng: nhả dải cho nguồn khác, không tính là lỗi chunk
+                    countFailures = false;
+                    if (session != null) session.close();
+                    session = null;
+                    sourceGoingAway(source);
+                } catch (LegacyServerException e) {
+                    System.out.println("[ChunkedFileClient] Server does not support sessions -> one connection per chunk");
+                    source.legacy = true;
+                    countFailures = false; // không phải lỗi của chunk
+                    session.close();
+                    session = null;
+                } catch (IOException e) {
+                    System.err.println("[ChunkedFileClient] " + source.label() + " range " + start + "+" + count
+                            + " error: " + e.getMessage());
+                    if (session != null) session.close();
+                    session = null;
+                    boolean progressed = false;
+                    if (e instanceof TransferSession.TruncatedChunkException t && t.index >= start && t.index < start + count) {
+                        attempted = t.index - start + 1;
+                        progressed = t.index > start; // các chunk trước đó đã ghi xong
+                    }
+                    // nhận thêm được chunk / 1 phần chunk dở -> mạng chập chờn nhưng vẫn tiến, không tính lỗi
+                    if (takeGain(start, attempted) | progressed) {
+                        countFailures = false;
+                    } else {
+                        connectFailed(source);
+                        Thread.sleep(200L * source.connectFailures);
+                    }
+                } finally {
+                    release(start, attempted, countFailures);
+                    if (attempted < count) release(start + attempted, count - attempted, false);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } finally {
+            if (session != null) session.close();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    // nguồn phụ: xác minh peer giữ đúng file (cùng hash toàn file + cùng danh sách hash chunk)
+    private void handshake(Source source, TransferSession session) throws IOException {
+        synchronized (source) {
+            if (source.remoteName != null || source.dead) return;
+
+            FileMetadata theirs;
+            BitSet available = new BitSet();
+            try {
+                theirs = session.requestMetadataByHash(meta.getFileSha256(), available);
+            } catch (IOException e) {
+                // "File not found" / server cũ không hiểu FILE_META_BY_HASH: không phải lỗi mạng
+                if (e.getMessage() != null && e.getMessage().startsWith("Server error")) {
+                    source.dead = true;
+                    return;
+                }
+                throw e;
+            }
+
+            // cùng Merkle root = cùng toàn bộ hash chunk
+            String theirRoot = theirs.isMerkle() ? theirs.getMerkleRoot() : ChunkHashIndex.of(theirs).rootHex();
+            if (theirs.getFileSize() != meta.getFileSize()
+                    || theirs.getChunkSize() != meta.getChunkSize()
+                    || !theirRoot.equals(hashes.rootHex())) {
+                System.out.println("[ChunkedFileClient] " + source.label() + " has a different layout -> skip");
+                source.dead = true;
+                return;
+            }
+
+            boolean partial = available.cardinality() < meta.getTotalChunks();
+            source.available = partial ? available : null;
+            source.remoteName = theirs.getFileName();
+            System.out.println("[ChunkedFileClient] Swarm source " + source.label() + " joined (" + source.remoteName
+                    + (partial ? ", " + available.cardinality() + "/" + meta.getTotalChunks() + " chunks" : "") + ")");
+        }
+    }
+
+    private void refreshAvailability(Source source, TransferSession session) throws IOException {
+        if (session == null || source.available == null) return;
+        BitSet available = new BitSet();
+        session.requestMetadataByHash(meta.getFileSha256(), available);
+        source.available = available.cardinality() < meta.getTotalChunks() ? available : null;
+    }
+
+    private synchronized void connectFailed(Source source) {
+        if (++source.connectFailures >= ChunkedFileClient.MAX_RETRIES && !source.dead) {
+            System.err.println("[ChunkedFileClient] Source " + source.label() + " unreachable -> dropped");
+            source.dead = true;
+        }
+    }
+
+    // server báo đang dừng: bỏ nguồn ngay (không chờ đủ MAX_RETRIES lần lỗi), dải của nó chia cho nguồn khác
+    private synchronized void sourceGoingAway(Source source) {
+        if (source.dead) return;
+        System.out.println("[ChunkedFileClient] Source " + source.label() + " is going away -> switching sources");
+        source.dead = true;
+        notifyAll();
+    }
+
+    // chunk sai hash: nguồn bị hạ khi sai quá MAX_HASH_FAILURES lần và còn nguồn khác
+    private synchronized void hashFailed(Source source, int index) {
+        System.err.println("[ChunkedFileClient] Chunk " + index + " hash mismatch from " + source.label());
+        if (++source.hashFailures >= MAX_HASH_FAILURES && !source.dead && aliveSources() > 1) {
+            System.err.println("[ChunkedFileClient] Source " + source.label() + " sent bad data -> dropped");
+            source.dead = true;
+        }
+    }
+
+    private int aliveSources() {
+        int alive = 0;
+        for (Source s : sources) if (!s.dead) alive++;
+        return alive;
+    }
+
+    // ---------------- claim / release ----------------
+
+    /**
+     * Nhận dải chunk còn thiếu và chưa ai nhận. Nếu mọi chunk còn thiếu đều đang được
+     * worker khác tải thì chờ (có thể bị trả lại do lỗi). Null khi không còn gì để tải.
+     */
+    private synchronized int[] claim(Source source) throws InterruptedException {
+        int total = meta.getTotalChunks();
+        while (!failed && !cancelled && !source.dead) {
+            int start = -1;
+            boolean inFlight = false;
+            boolean unavailable = false;
+            for (int i = 0; i < total; i++) {
+                if (progress.isChunkComplete(i)) continue;
+                if (claimed.get(i) || !isFetchable(i)) {
+                    inFlight = true;
+                    continue;
+                }
+                if (!canServe(source, i)) {
+                    unavailable = true;
+                    continue;
+                }
+                start = i;
+                break;
+            }
+            if (start < 0) {
+                if (unavailable) return NO_WORK;
+                if (!inFlight) return null;
+                wait(200);
+                continue;
+            }
+
+            // chunk nhận dở: nhận riêng để tải tiếp phần còn lại
+            int max = resumable.containsKey(start) ? 1 : claimSize(source);
+            int count = 1;
+            while (count < max && start + count < total
+                    && !progress.isChunkComplete(start + count) && !claimed.get(start + count)
+                    && !resumable.containsKey(start + count) && isFetchable(start + count) && canServe(source, start + count)) {
+                count++;
+            }
+            claimed.set(start, start + count);
+            return new int[]{start, count};
+        }
+        return null;
+    }
+
+    // bản sao trong nhóm trùng: chờ chunk đầu nhóm (xong mà bản sao vẫn thiếu -> tải riêng)
+    private boolean isFetchable(int chunkIndex) {
+        int source = layout.sourceOf(chunkIndex);
+        return source == chunkIndex || progress.isChunkComplete(source);
+    }
+
+    // nguồn partial: chunk phải có ở peer và đã có hash (không xin GET_HASHES từ peer đang tải dở)
+    private boolean canServe(Source source, int chunkIndex) {
+        if (source.available == null) return true;
+        return source.has(chunkIndex) && hashes.isLoaded(chunkIndex);
+    }
+
+    // dải dài tỉ lệ với throughput so với nguồn nhanh nhất; nguồn chưa đo được nhận nửa dải
+    private int claimSize(Source source) {
+        if (sources.size() == 1) return CLAIM_CHUNKS;
+        if (source.rate == 0) return CLAIM_CHUNKS / 2;
+        double best = 0;
+        for (Source s : sources) {
+            if (!s.dead) best = Math.max(best, s.rate);
+        }
+        return (int) Math.max(1, Math.round(CLAIM_CHUNKS * source.rate / best));
+    }
+
+    // trả dải về: chunk nào vẫn chưa xong thì tính 1 lần thất bại
+    private synchronized void release(int start, int count, boolean countFailures) {
+        for (int i = start; i < start + count; i++) {
+            claimed.clear(i);
+            if (countFailures && !progress.isChunkComplete(i) && ++failures[i] >= maxChunkFailures) {
+                System.err.println("[ChunkedFileClient] Failed to download chunk " + i);
+                failed = true;
+            }
+        }
+        if (aliveSources() == 0) failed = true;
+        notifyAll();
+    }
+
+    // ---------------- fetch ----------------
+
+    /**
+     * Tải [start, start + count) bằng GET_RANGE trên session của worker.
+     * Chunk sai hash bị bỏ qua (stream vẫn đúng vị trí) -> release() tính thất bại, tải lại sau.
+     * Có localStore: chunk lấy được từ đĩa thì bỏ khỏi dải, phần còn lại tải theo từng đoạn liên tiếp.
+     *
+     * @return số chunk ghi được từ mạng
+     */
+    private int fetchRange(Source source, TransferSession session, int start, int count)
+            throws IOException, InterruptedException {
+        hashes.ensure(session, source.remoteName, start, count);
+        if (localStore == null || !fillFromStore(start, count)) {
+            return fetchRun(source, session, start, count);
+        }
+
+        int written = 0;
+        int i = start;
+        int end = start + count;
+        while (i < end) {
+            if (progress.isChunkComplete(i)) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < end && !progress.isChunkComplete(i)) i++;
+            int got = fetchRun(source, session, runStart, i - runStart);
+            written += got;
+            if (got < i - runStart) break; // chunk lỗi: để release() tính thất bại như GET_RANGE thường
+        }
+        return written;
+    }
+
+    // chunk trong dải có trong LocalChunkStore (hash đã nạp, verify lại sau khi đọc); true nếu lấy được ít nhất 1
+    private boolean fillFromStore(int start, int count) throws IOException, InterruptedException {
+        MessageDigest sha = null;
+        boolean any = false;
+        for (int i = start; i < start + count; i++) {
+            if (progress.isChunkComplete(i)) continue;
+            long offset = (long) i * meta.getChunkSize();
+            int len = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+            byte[] data = localStore.readChunk(hashes.hex(i), len);
+            if (data == null) continue;
+            if (sha == null) sha = FileHashUtil.newSha256();
+            if (!hashes.matches(i, sha.digest(data))) continue;
+
+            if (control != null) control.checkpoint();
+            part.write(offset, data);
+            completeChunk(i, ByteBuffer.wrap(data));
+            localChunks.incrementAndGet();
+            any = true;
+        }
+        return any;
+    }
+
+    // 1 GET_RANGE cho [start, start + count), hash đã nạp
+    private int fetchRun(Source source, TransferSession session, int start, int count)
+            throws IOException, InterruptedException {
+        session.sendRangeRequest(source.remoteName, start, count);
+
+        int written = 0;
+        for (int k = 0; k < count; k++) {
+            TransferSession.ChunkReply reply;
+            try {
+                reply = session.readChunkReply(meta.getChunkSize());
+            } catch (TransferSession.TruncatedChunkException e) {
+                keepPartial(e, start + k);
+                throw e;
+            }
+            if (reply.isError()) {
+                // server cũ: "Unknown command: GET_RANGE"
+                if (reply.error.startsWith("Unknown command")) throw new LegacyServerException();
+                if (FileTransferProtocol.isBusy(reply.error)) throw TransferSession.ServerBusyException.of(reply.error);
+                if (FileTransferProtocol.isGoingAway(reply.error)) throw new TransferSession.GoingAwayException();
+                System.err.println("[ChunkedFileClient] Range " + start + "+" + count + " error: " + reply.error);
+                return written;
+            }
+
+            try {
+                int index = start + k;
+                if (reply.index != index) throw new IOException("Out of order chunk " + reply.index + " (expected " + index + ")");
+
+                if (!hashes.matches(index, sha256(reply.data))) {
+                    hashFailed(source, index);
+                    if (source.dead) throw new IOException("Source dropped");
+                    continue;
+                }
+
+                //  checkpoint trước khi write
+                if (control != null) control.checkpoint();
+
+                part.write((long) index * meta.getChunkSize(), reply.data);
+                completeChunk(index, reply.data);
+                rawBytes.addAndGet(reply.data.remaining());
+                wireBytes.addAndGet(reply.wireLength);
+                written++;
+            } finally {
+                reply.release();
+            }
+        }
+        return written;
+    }
+
+    private void keepPartial(TransferSession.TruncatedChunkException e, int expectedIndex) {
+        // frame nén bị cắt: lần sau xin chunk đó từng mảnh GET_BYTES (bản gốc, ghép tiếp được)
+        if (e.index != expectedIndex || (e.received == 0 && !e.compressed)) return;
+        PartialChunk old = resumable.get(e.index);
+        if (old != null ? old.received >= e.received : resumable.size() >= MAX_RESUMABLE) return;
+        resumable.put(e.index, new PartialChunk(e.data, e.received));
+    }
+
+    // có chunk dở nào trong dải vừa nhận thêm byte không (đồng thời xoá cờ)
+    private boolean takeGain(int start, int count) {
+        boolean gained = false;
+        for (int i = start; i < start + count; i++) {
+            PartialChunk p = resumable.get(i);
+            if (p != null && p.gained) {
+                p.gained = false;
+                gained = true;
+            }
+        }
+        return gained;
+    }
+
+    /**
+     * Tải nốt chunk nhận dở bằng GET_BYTES từng mẩu (pieceSize); mẩu nào về là giữ luôn.
+     * Server không hỗ trợ GET_BYTES -> bỏ phần dở, lần sau tải cả chunk.
+     *
+     * @return 1 nếu chunk xong, 0 nếu không
+     */
+    private int fetchRemainder(Source source, TransferSession session, int index)
+            throws IOException, InterruptedException {
+        PartialChunk p = resumable.get(index);
+        if (p == null) return 0;
+        long offset = (long) index * meta.getChunkSize();
+        int len = p.data.length;
+        byte[] piece = new byte[Math.min(p.pieceSize, len)];
+
+        hashes.ensure(session, source.remoteName, index, 1);
+        while (p.received < len) {
+            if (control != null) control.checkpoint();
+            int n = Math.min(piece.length, len - p.received);
+            try {
+                session.requestBytes(source.remoteName, offset + p.received, n, piece);
+            } catch (TransferSession.ServerBusyException | TransferSession.GoingAwayException e) {
+                throw e; // giữ phần dở, thử lại sau (hoặc nguồn khác)
+            } catch (IOException e) {
+                if (e.getMessage() != null && e.getMessage().startsWith("Server error")) {
+                    resumable.remove(index);
+                    return 0;
+                }
+                if (!p.gained) p.pieceSize = Math.max(MIN_SUB_CHUNK, p.pieceSize / 2);
+                throw e;
+            }
+            System.arraycopy(piece, 0, p.data, p.received, n);
+            p.received += n;
+            p.gained = true;
+        }
+        resumable.remove(index);
+
+        if (!hashes.matches(index, FileHashUtil.newSha256().digest(p.data))) {
+            hashFailed(source, index);
+            return 0;
+        }
+        if (control != null) control.checkpoint();
+        part.write(offset, p.data);
+        completeChunk(index, ByteBuffer.wrap(p.data));
+        return 1;
+    }
+
+    // server cũ: mỗi chunk 1 kết nối
+    // downloadChunk() chỉ so với hash do chính server đó gửi -> đọc lại, so với ChunkHashIndex như GET_RANGE
+    private void fetchLegacy(Source source, int start, int count) throws IOException, InterruptedException {
+        for (int i = start; i < start + count; i++) {
+            if (!ChunkedFileClient.downloadChunk(source.host, source.port, source.remoteName, i, meta, part, control)) {
+                if (control != null && control.isCancelled()) throw new InterruptedException("Download cancelled");
+                continue;
+            }
+            // server cũ luôn gửi đủ danh sách hash; chưa nạp thì không verify được -> để nguồn khác tải
+            if (!hashes.isLoaded(i)) continue;
+
+            ByteBuffer data = readBack(i);
+            try {
+                if (!hashes.matches(i, sha256(data))) {
+                    hashFailed(source, i);
+                    if (source.dead) throw new IOException("Source dropped");
+                    continue;
+                }
+                completeChunk(i, data);
+            } finally {
+                BufferPool.shared().release(data);
+            }
+        }
+    }
+
+    private void completeChunk(int index, ByteBuffer data) throws IOException {
+        // ghi bản sao trước khi đánh dấu chunk đầu nhóm -> claim() không nhận tải lại bản sao
+        int[] copies = layout.copiesOf(index);
+        if (copies.length > 0) writeCopies(copies, data);
+
+        journal.append(index, hashes.bytes(index));
+        progress.markChunkComplete(index);
+        resumable.remove(index);
+        if (digest != null) digest.accept(index, data);
+        if (progressCallback != null) {
+            progressCallback.accept(progress.getProgressPercent() / 100.0);
+        }
+    }
+
+    private void writeCopies(int[] copies, ByteBuffer data) throws IOException {
+        byte[] sha = sha256(data);
+        for (int j : copies) {
+            if (progress.isChunkComplete(j) || !hashes.matches(j, sha)) continue;
+            part.write((long) j * meta.getChunkSize(), data);
+            journal.append(j, hashes.bytes(j));
+            progress.markChunkComplete(j);
+            if (digest != null) digest.accept(j, data);
+        }
+    }
+
+    // buffer mượn BufferPool, caller trả
+    private ByteBuffer readBack(int index) throws IOException {
+        long offset = (long) index * meta.getChunkSize();
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer data = pool.acquire((int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset),
+                ChunkedFileClient.SOCKET_TIMEOUT_MS);
+        try {
+            part.readFully(data, offset);
+        } catch (IOException e) {
+            pool.release(data);
+            throw e;
+        }
+        return data.flip();
+    }
+
+    private static byte[] sha256(ByteBuffer data) {
+        MessageDigest md = FileHashUtil.newSha256();
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    private void logSwarmSummary() {
+        for (Source s : sources) {
+            synchronized (s) {
+                double mb = s.bytes / (1024.0 * 1024.0);
+                double secs = s.nanos / 1e9;
+                System.out.printf("[ChunkedFileClient] Source %s: %.1f MB%s%s%n", s.label(), mb,
+                        secs > 0 ? String.format(" at %.1f MB/s", mb / secs) : "",
+                        s.dead ? " (dropped)" : "");
+            }
+        }
+    }
+
+    /** Server chưa hỗ trợ session/GET_RANGE */
+    private static final class LegacyServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LegacyServerException() {
+            super("Server does not support GET_RANGE");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.AppConfig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File .part của 1 lần tải: mở 1 FileChannel duy nhất cho cả job.
+ *
+ * - Ghi/đọc positional (write/read theo position) -> nhiều worker dùng chung an toàn, không seek
+ * - fsync theo cấu hình (ChunkedFileClient.KEY_DOWNLOAD_FSYNC):
+ *     "never"    : để OS tự flush (kể cả trước journal -> crash máy có thể để lại record sai, hash file bắt được)
+ *     "complete" : (mặc định) force khi tải xong + trước mỗi lô record journal (ResumeJournal)
+ *     "<N>"      : như "complete" + force sau mỗi N MB đã ghi
+ */
+final class PartFileWriter implements Closeable {
+
+    enum SyncPolicy { NEVER, ON_COMPLETE, EVERY_N_MB }
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final long syncEveryBytes;
+    private final long previousSize;
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+
+    private PartFileWriter(FileChannel channel, SyncPolicy policy, long syncEveryBytes, long previousSize) {
+        this.channel = channel;
+        this.policy = policy;
+        this.syncEveryBytes = syncEveryBytes;
+        this.previousSize = previousSize;
+    }
+
+    /** Mở (hoặc tạo) .part đúng fileSize, chính sách fsync lấy từ AppConfig */
+    static PartFileWriter open(Path partFile, long fileSize) throws IOException {
+        String value = AppConfig.load(ChunkedFileClient.KEY_DOWNLOAD_FSYNC);
+        long everyMb = syncEveryMbFromConfig(value);
+        SyncPolicy policy = everyMb > 0 ? SyncPolicy.EVERY_N_MB : policyFromConfig(value);
+        return open(partFile, fileSize, policy, everyMb * 1024 * 1024);
+    }
+
+    static PartFileWriter open(Path partFile, long fileSize, SyncPolicy policy, long syncEveryBytes) throws IOException {
+        FileChannel channel = FileChannel.open(partFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long current;
+        try {
+            current = channel.size();
+            // pre-allocate (sparse) hoặc đổi size nếu lệch - giữ nguyên phần đầu để journal còn cứu được chunk
+            if (current > fileSize) {
+                channel.truncate(fileSize);
+            } else if (current < fileSize) {
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+            if (current != 0 && current != fileSize) {
+                System.out.println("[ChunkedFileClient] .part size changed (" + current + " -> " + fileSize + ")");
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new PartFileWriter(channel, policy, syncEveryBytes, current);
+    }
+
+    static SyncPolicy policyFromConfig(String value) {
+        if (value == null) return SyncPolicy.ON_COMPLETE;
+        return "never".equalsIgnoreCase(value.trim()) ? SyncPolicy.NEVER : SyncPolicy.ON_COMPLETE;
+    }
+
+    // "<N>" -> N (MB), còn lại -> 0
+    static long syncEveryMbFromConfig(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Size của .part trước khi mở (0 = vừa tạo) - journal so với size cũ để biết dữ liệu còn dùng được */
+    long previousSize() {
+        return previousSize;
+    }
+
+    /** Ghi nguyên data tại offset (gọi đồng thời từ nhiều thread được) */
+    void write(long offset, byte[] data) throws IOException {
+        write(offset, ByteBuffer.wrap(data));
+    }
+
+    /** Ghi phần [position, limit) của data tại offset; data không bị đổi position */
+    void write(long offset, ByteBuffer data) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        int first = buf.position();
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position() - first);
+        }
+
+        if (policy == SyncPolicy.EVERY_N_MB && unsyncedBytes.addAndGet(buf.position() - first) >= syncEveryBytes) {
+            unsyncedBytes.set(0);
+            channel.force(false);
+        }
+    }
+
+    /** Đọc đầy buf từ offset (EOF giữa chừng -> IOException) */
+    void readFully(ByteBuffer buf, long offset) throws IOException {
+        int first = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position() - first) < 0) throw new IOException("Unexpected EOF");
+        }
+    }
+
+    /** Đẩy dữ liệu đã ghi xuống đĩa trước khi journal ghi nhận chunk (trừ policy NEVER) */
+    void sync() throws IOException {
+        if (policy == SyncPolicy.NEVER) return;
+        unsyncedBytes.set(0);
+        channel.force(false);
+    }
+
+    /** Tải xong: đẩy dữ liệu xuống đĩa trước khi rename (trừ policy NEVER) */
+    void complete() throws IOException {
+        if (policy != SyncPolicy.NEVER) channel.force(true);
+        unsyncedBytes.set(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
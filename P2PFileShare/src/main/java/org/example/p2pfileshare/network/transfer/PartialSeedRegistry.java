@@ -0,0 +1,89 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.example.p2pfileshare.model.FileManifest;
+import org.example.p2pfileshare.model.FileMetadata;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Các file đang tải dở trên máy này (partial seeding).
+ *
+ * ChunkedFileClient đăng ký .part + DownloadProgress khi bắt đầu tải, huỷ khi xong/huỷ.
+ * File server dùng registry để trả những chunk đã tải và đã verify hash cho peer khác,
+ * dưới tên ảo "partial:<fileSha256>" (peer tìm thấy qua FILE_META_BY_HASH).
+ */
+final class PartialSeedRegistry {
+
+    static final String PARTIAL_PREFIX = "partial:";
+
+    static final class Entry {
+        final FileMetadata meta;
+        final Path partFile;
+        final DownloadProgress progress;
+        final ChunkHashIndex hashes;
+        private volatile FileManifest manifest;
+
+        private Entry(FileMetadata meta, Path partFile, DownloadProgress progress, ChunkHashIndex hashes) {
+            this.meta = meta;
+            this.partFile = partFile;
+            this.progress = progress;
+            this.hashes = hashes;
+        }
+
+        String servedName() {
+            return PARTIAL_PREFIX + meta.getFileSha256();
+        }
+
+        boolean has(int chunkIndex) {
+            return progress.isChunkComplete(chunkIndex);
+        }
+
+        BitSet available() {
+            return progress.snapshot();
+        }
+
+        // manifest "ảo" để handler dùng chung code gửi chunk với file hoàn chỉnh
+        // (hash chunk đọc từ ChunkHashIndex: chunk đã có thì hash chắc chắn đã nạp)
+        FileManifest manifest() {
+            FileManifest m = manifest;
+            if (m == null) {
+                m = new FileManifest(servedName(), meta.getFileSize(), 0, null, meta.getChunkSize(),
+                        meta.getFileSha256(), hashes.asHexList());
+                manifest = m;
+            }
+            return m;
+        }
+    }
+
+    // fileSha256 -> download đang chạy
+    private static final Map<String, Entry> ACTIVE = new ConcurrentHashMap<>();
+
+    private PartialSeedRegistry() {}
+
+    static void register(FileMetadata meta, Path partFile, DownloadProgress progress, ChunkHashIndex hashes) {
+        // cùng file tải 2 chỗ cùng lúc -> giữ bản đăng ký đầu
+        ACTIVE.putIfAbsent(meta.getFileSha256(), new Entry(meta, partFile, progress, hashes));
+    }
+
+    static void unregister(String fileSha256, Path partFile) {
+        ACTIVE.computeIfPresent(fileSha256, (k, e) -> e.partFile.equals(partFile) ? null : e);
+    }
+
+    static Entry byHash(String fileSha256) {
+        return fileSha256 == null ? null : ACTIVE.get(fileSha256);
+    }
+
+    /** "partial:<sha>" -> entry; null nếu không phải tên partial hoặc download đã kết thúc */
+    static Entry byServedName(String fileName) {
+        if (!isPartialName(fileName)) return null;
+        return ACTIVE.get(fileName.substring(PARTIAL_PREFIX.length()));
+    }
+
+    static boolean isPartialName(String fileName) {
+        return fileName != null && fileName.startsWith(PARTIAL_PREFIX);
+    }
+}
@@ -0,0 +1,271 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Journal resume của 1 lần tải (file "<saveTo>.resume"), thay cho .meta.properties + .bitmap.
+ *
+ * Định dạng (binary, big-endian):
+ *   header : MAGIC (int) | VERSION (int) | len (int) | payload | crc32(payload) (int)
+ *            payload = fileName, fileSize, chunkSize, totalChunks, fileSha256, merkleRoot ("" nếu không có)
+ *   record : chunkIndex (int) | sha256 của chunk (32 byte) | crc32(index + hash) (int)
+ *
+ * Mỗi chunk xong chỉ append 1 record (O(1), không ghi lại cả bitmap).
+ * Record được gom theo lô (~JOURNAL_BATCH_BYTES dữ liệu chunk): force .part trước rồi mới ghi cả lô,
+ * nên record nào còn sau crash thì dữ liệu chunk của nó chắc chắn đã xuống đĩa
+ * (crash chỉ mất lô chưa ghi -> tải lại các chunk đó). Trừ fsync "never": không force, người dùng tự chịu.
+ * Khi mở: đọc tới record hỏng/cụt đầu tiên rồi bỏ phần đuôi (crash giữa chừng mất tối đa record cuối),
+ * sau đó compact: ghi lại header + mỗi chunk 1 record vào file tạm rồi rename.
+ *
+ * File bên chia sẻ thay đổi (header khác nhưng cùng chunkSize): record lưu hash của từng chunk,
+ * chunk nào hash mới ở cùng index vẫn y như cũ thì giữ lại, chỉ tải lại chunk đổi/mới.
+ */
+final class ResumeJournal implements Closeable {
+
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final int VERSION = 1;
+    private static final int RECORD_LEN = 4 + MerkleTree.HASH_LEN + 4;
+    private static final long JOURNAL_BATCH_BYTES = 8L * 1024 * 1024;
+
+    /** Hash (raw 32 byte) của chunk trong manifest mới; null nếu không lấy được */
+    interface HashLookup {
+        byte[] hash(int chunkIndex) throws IOException;
+    }
+
+    // nội dung journal đọc từ đĩa
+    private static final class Loaded {
+        byte[] header;
+        long fileSize;
+        int chunkSize;
+        int totalChunks;
+        final BitSet completed = new BitSet();
+        byte[] hashes;
+    }
+
+    private final int totalChunks;
+    private final BitSet completed;
+    private final byte[] chunkHashes; // hash đã ghi cho từng chunk (totalChunks * 32)
+    private final FileChannel channel;
+    private final PartFileWriter part;
+    private final ByteBuffer pending; // record chờ ghi (tới khi .part được force)
+    private final Object flushLock = new Object();
+
+    private ResumeJournal(int totalChunks, BitSet completed, byte[] chunkHashes, FileChannel channel,
+                          PartFileWriter part, int batchRecords) {
+        this.totalChunks = totalChunks;
+        this.completed = completed;
+        this.chunkHashes = chunkHashes;
+        this.channel = channel;
+        this.part = part;
+        this.pending = ByteBuffer.allocate(batchRecords * RECORD_LEN);
+    }
+
+    /**
+     * Mở journal cho meta:
+     * - header khớp + .part đúng size -> giữ các chunk đã ghi
+     * - file đã đổi (cùng chunkSize, .part đúng size cũ) -> giữ chunk có hash mới trùng hash cũ cùng index
+     * - còn lại (hỏng / .part không khớp) -> bắt đầu lại
+     * @param part      .part của job (previousSize để kiểm tra, force trước mỗi lô record)
+     * @param newHashes hash chunk của manifest mới (cho salvage); null = không salvage
+     */
+    static ResumeJournal open(Path file, FileMetadata meta, PartFileWriter part, HashLookup newHashes) throws IOException {
+        long partSize = part.previousSize();
+        int total = meta.getTotalChunks();
+        BitSet completed = new BitSet(total);
+        byte[] hashes = new byte[total * MerkleTree.HASH_LEN];
+
+        Loaded old = partSize > 0 && Files.exists(file) ? load(file) : null;
+        if (old != null) {
+            if (Arrays.equals(old.header, headerPayload(meta)) && partSize == meta.getFileSize()) {
+                completed.or(old.completed);
+                System.arraycopy(old.hashes, 0, hashes, 0, hashes.length);
+            } else if (newHashes != null && old.chunkSize == meta.getChunkSize() && old.fileSize == partSize) {
+                salvage(old, total, newHashes, completed, hashes);
+            } else {
+                System.out.println("[ChunkedFileClient] Resume journal does not match -> start over");
+            }
+        }
+
+        // compact: header + 1 record / chunk, ghi file tạm rồi rename
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            writeHeader(out, meta);
+            for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+                out.write(encodeRecord(i, hashes, i * MerkleTree.HASH_LEN));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        int batchRecords = (int) Math.max(1, Math.min(1024, JOURNAL_BATCH_BYTES / Math.max(1, meta.getChunkSize())));
+        return new ResumeJournal(total, completed, hashes, channel, part, batchRecords);
+    }
+
+    /** Chunk size của lần tải dở ghi trong journal (để xin lại đúng size đó), 0 nếu không có */
+    static int chunkSizeOf(Path file) {
+        if (!Files.exists(file)) return 0;
+        Loaded old = load(file);
+        return old == null ? 0 : old.chunkSize;
+    }
+
+    /** Các chunk đã có trên .part (bản sao) */
+    synchronized BitSet completed() {
+        return (BitSet) completed.clone();
+    }
+
+    /** Ghi nhận 1 chunk đã ghi xong + verify (record xuống đĩa theo lô, sau khi .part được force) */
+    void append(int chunkIndex, byte[] chunkHash) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= totalChunks) return;
+        byte[] batch;
+        synchronized (this) {
+            System.arraycopy(chunkHash, 0, chunkHashes, chunkIndex * MerkleTree.HASH_LEN, MerkleTree.HASH_LEN);
+            completed.set(chunkIndex);
+            pending.put(encodeRecord(chunkIndex, chunkHashes, chunkIndex * MerkleTree.HASH_LEN));
+            if (pending.hasRemaining()) return;
+            batch = drainPending();
+        }
+        // fsync ngoài lock chính -> worker khác vẫn append được trong lúc chờ đĩa
+        writeBatch(batch);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            byte[] batch;
+            synchronized (this) {
+                batch = drainPending();
+            }
+            writeBatch(batch);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private byte[] drainPending() {
+        byte[] batch = Arrays.copyOf(pending.array(), pending.position());
+        pending.clear();
+        return batch;
+    }
+
+    // .part force trước, record ghi sau: record trên đĩa không bao giờ đi trước dữ liệu của nó
+    private void writeBatch(byte[] batch) throws IOException {
+        if (batch.length == 0) return;
+        synchronized (flushLock) {
+            part.sync();
+            ByteBuffer buf = ByteBuffer.wrap(batch);
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    // ---------------- đọc / ghi ----------------
+
+    // chunk cũ nào có hash trùng hash mới ở cùng index thì giữ
+    private static void salvage(Loaded old, int total, HashLookup newHashes, BitSet completed, byte[] hashes) {
+        int kept = 0;
+        try {
+            for (int i = old.completed.nextSetBit(0); i >= 0 && i < total; i = old.completed.nextSetBit(i + 1)) {
+                byte[] h = newHashes.hash(i);
+                int off = i * MerkleTree.HASH_LEN;
+                if (h != null && Arrays.equals(h, Arrays.copyOfRange(old.hashes, off, off + MerkleTree.HASH_LEN))) {
+                    System.arraycopy(h, 0, hashes, off, MerkleTree.HASH_LEN);
+                    completed.set(i);
+                    kept++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ChunkedFileClient] Salvage failed: " + e.getMessage() + " -> start over");
+            completed.clear();
+            return;
+        }
+        System.out.println("[ChunkedFileClient] File changed -> kept " + kept + "/" + old.completed.cardinality()
+                + " downloaded chunks, " + (total - kept) + " to fetch");
+    }
+
+    // null nếu không phải journal hoặc header hỏng
+    private static Loaded load(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            int len = in.readInt();
+            if (len <= 0 || len > 64 * 1024) return null;
+            byte[] payload = new byte[len];
+            in.readFully(payload);
+            if (in.readInt() != crc(payload, 0, payload.length)) return null;
+
+            Loaded loaded = new Loaded();
+            loaded.header = payload;
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(payload));
+            header.readUTF(); // fileName
+            loaded.fileSize = header.readLong();
+            loaded.chunkSize = header.readInt();
+            loaded.totalChunks = header.readInt();
+            if (loaded.totalChunks < 0) return null;
+            loaded.hashes = new byte[loaded.totalChunks * MerkleTree.HASH_LEN];
+
+            byte[] rec = new byte[RECORD_LEN];
+            int total = loaded.totalChunks;
+            byte[] hashes = loaded.hashes;
+            BitSet completed = loaded.completed;
+            while (true) {
+                int n = in.readNBytes(rec, 0, RECORD_LEN);
+                if (n < RECORD_LEN) break; // hết file hoặc record cuối bị cụt
+                ByteBuffer buf = ByteBuffer.wrap(rec);
+                int index = buf.getInt();
+                if (buf.getInt(RECORD_LEN - 4) != crc(rec, 0, RECORD_LEN - 4)) break; // record hỏng -> bỏ từ đây
+                if (index < 0 || index >= total) break;
+                System.arraycopy(rec, 4, hashes, index * MerkleTree.HASH_LEN, MerkleTree.HASH_LEN);
+                completed.set(index);
+            }
+            return loaded;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, FileMetadata meta) throws IOException {
+        byte[] payload = headerPayload(meta);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(crc(payload, 0, payload.length));
+    }
+
+    private static byte[] headerPayload(FileMetadata meta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(meta.getFileName());
+            out.writeLong(meta.getFileSize());
+            out.writeInt(meta.getChunkSize());
+            out.writeInt(meta.getTotalChunks());
+            out.writeUTF(meta.getFileSha256());
+            out.writeUTF(meta.isMerkle() ? meta.getMerkleRoot() : "");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRecord(int chunkIndex, byte[] hashes, int hashOffset) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_LEN);
+        buf.putInt(chunkIndex);
+        buf.put(hashes, hashOffset, MerkleTree.HASH_LEN);
+        buf.putInt(crc(buf.array(), 0, RECORD_LEN - 4));
+        return buf.array();
+    }
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,75 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gộp các lời gọi đồng thời cùng key (thundering herd phía file server):
+ * lời gọi đầu tiên chạy thật, các lời gọi tới trong lúc nó đang chạy chờ và nhận chung kết quả
+ * (hoặc chung exception). Chạy xong thì quên key - giữ kết quả là việc của cache phía caller.
+ */
+final class SingleFlight<K, V> {
+
+    interface Call<V> {
+        V run() throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    V run(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.incrementAndGet();
+            return await(running);
+        }
+
+        executed.incrementAndGet();
+        try {
+            V value = call.run();
+            mine.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** Key đang có lời gọi chạy dở */
+    boolean isRunning(K key) {
+        return inFlight.containsKey(key);
+    }
+
+    /** Số lần chạy thật */
+    long executed() {
+        return executed.get();
+    }
+
+    /** Số lời gọi được gộp vào lời gọi đang chạy (không phải chạy lại) */
+    long shared() {
+        return shared.get();
+    }
+
+    private static <V> V await(CompletableFuture<V> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shared result");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof RuntimeException re) throw re;
+            if (cause instanceof Error err) throw err;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileManifest;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.BlockSignatures;
+import org.example.p2pfileshare.util.ChunkLayout;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Xử lý 1 request của file server (FILE_META_REQUEST / FILE_META_BY_HASH / GET_HASHES / GET_CHUNK / GET_RANGE
+ * / GET_SIGNATURES / GET_BYTES / GET_LAYOUT)
+ * -> TransferResponse.
+ * Không đụng tới socket nên engine blocking và engine NIO dùng chung.
+ *
+ * Có thể chạm đĩa (tính manifest, mở file) -> engine NIO phải gọi trên disk pool.
+ *
+ * Đổi thư mục share (retire): metadata chỉ lấy từ thư mục mới, còn request của download đang chạy
+ * (chunk, hash, layout, bytes...) mà file không có ở thư mục mới thì vẫn lấy từ thư mục cũ,
+ * tới khi thư mục cũ không ai dùng quá RETIRED_IDLE_MS.
+ */
+class TransferRequestHandler {
+
+    // tổng byte nén giữ trong RAM cho 1 response; quá thì các chunk còn lại gửi bản gốc (sendfile)
+    private static final int COMPRESS_BUDGET = 8 * 1024 * 1024;
+    // hết buffer: client chờ bấy lâu rồi hỏi lại
+    static final long BUSY_RETRY_MS = 500;
+    // thư mục share cũ không phục vụ request nào trong bấy lâu thì thôi giữ
+    private static final long RETIRED_IDLE_MS = 60_000;
+
+    private final AtomicReference<Path> shareFolder;
+    private final ManifestStore manifestStore;
+    private final ChunkCompressor compressor;
+    private final HotChunkCache hotCache;
+    // thư mục share cũ -> lần cuối phục vụ (ms)
+    private final ConcurrentHashMap<Path, Long> retired = new ConcurrentHashMap<>();
+
+    /** compressor / hotCache null = không nén / không cache chunk */
+    TransferRequestHandler(AtomicReference<Path> shareFolder, ManifestStore manifestStore, ChunkCompressor compressor,
+                           HotChunkCache hotCache) {
+        this.shareFolder = shareFolder;
+        this.manifestStore = manifestStore;
+        this.compressor = compressor;
+        this.hotCache = hotCache;
+    }
+
+    TransferResponse handle(String request) throws IOException {
+        if (request == null || request.isBlank()) return TransferResponse.error("Invalid command");
+
+        FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
+        if (cmd == null) {
+            return TransferResponse.error("Invalid command");
+        }
+
+        Path root = rootFor(cmd, shareFolder.get());
+        if (root == null) {
+            return TransferResponse.error("No share folder set");
+        }
+
+        try {
+            return dispatch(cmd, root);
+        } catch (BufferPool.BusyException e) {
+            // hết buffer (tính manifest...) -> client thử lại sau
+            return TransferResponse.busy(BUSY_RETRY_MS);
+        }
+    }
+
+    /** Thư mục share vừa bị thay (hoặc tắt share): download đang chạy vẫn lấy tiếp được file trong đó */
+    void retire(Path oldFolder, Path newFolder) {
+        if (newFolder != null) retired.remove(newFolder);
+        if (oldFolder != null && !oldFolder.equals(newFolder)) retired.put(oldFolder, System.currentTimeMillis());
+    }
+
+    // request sau metadata: file không còn trong thư mục hiện tại -> thư mục cũ còn giữ file đó
+    private Path rootFor(FileTransferProtocol.ParsedCommand cmd, Path current) {
+        if (retired.isEmpty()
+                || FileTransferProtocol.FILE_META_REQUEST.equals(cmd.command)
+                || FileTransferProtocol.FILE_META_BY_HASH.equals(cmd.command)) {
+            return current;
+        }
+        String fileName = cmd.get(1);
+        if (fileName == null || PartialSeedRegistry.isPartialName(fileName)) return current;
+        if (current != null && resolve(current, fileName) != null) return current;
+
+        long now = System.currentTimeMillis();
+        for (Path old : retired.keySet()) {
+            Long lastUsed = retired.get(old);
+            if (lastUsed == null) continue;
+            if (now - lastUsed > RETIRED_IDLE_MS) {
+                retired.remove(old, lastUsed);
+                System.out.println("[ChunkedFileServer] Stopped serving old folder " + old);
+                continue;
+            }
+            if (resolve(old, fileName) != null) {
+                retired.put(old, now);
+                return old;
+            }
+        }
+        return current;
+    }
+
+    private TransferResponse dispatch(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        if (FileTransferProtocol.FILE_META_REQUEST.equals(cmd.command)) {
+            return handleMetaRequest(cmd, root);
+        } else if (FileTransferProtocol.FILE_META_BY_HASH.equals(cmd.command)) {
+            return handleMetaByHash(cmd, root);
+        } else if (FileTransferProtocol.GET_HASHES.equals(cmd.command)) {
+            return handleHashesRequest(cmd, root);
+        } else if (FileTransferProtocol.GET_CHUNK.equals(cmd.command)) {
+            return handleChunkRequest(cmd, root);
+        } else if (FileTransferProtocol.GET_RANGE.equals(cmd.command)) {
+            return handleRangeRequest(cmd, root);
+        } else if (FileTransferProtocol.GET_SIGNATURES.equals(cmd.command)) {
+            return handleSignaturesRequest(cmd, root);
+        } else if (FileTransferProtocol.GET_BYTES.equals(cmd.command)) {
+            return handleBytesRequest(cmd, root);
+        } else if (FileTransferProtocol.GET_LAYOUT.equals(cmd.command)) {
+            return handleLayoutRequest(cmd, root);
+        } else {
+            return TransferResponse.error("Unknown command: " + cmd.command);
+        }
+    }
+
+    // hàm xử lý handleMetaRequest
+    private TransferResponse handleMetaRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        if (fileName == null) {
+            return TransferResponse.error("Missing filename");
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        int[] range = chunkRangeOf(cmd);
+        if (range == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+
+        // manifest lấy từ cache, chỉ tính lại khi file đã đổi
+        FileManifest manifest = negotiate(root, filePath, range);
+        // client mới chỉ cần Merkle root, hash chunk lấy dần qua GET_HASHES
+        String merkleRoot = cmd.hasOption(2, FileTransferProtocol.OPT_MERKLE) ? manifest.getMerkleTree().rootHex() : null;
+        return metaResponse(fileName, manifest, null, merkleRoot);
+    }
+
+    // swarm: peer khác đang tải file có hash này, hỏi xem mình có giữ bản giống hệt không
+    //        (file hoàn chỉnh trong share folder, hoặc file mình cũng đang tải dở -> partial seeding)
+    private TransferResponse handleMetaByHash(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileSha256 = cmd.get(1);
+        if (fileSha256 == null) {
+            return TransferResponse.error("Missing hash");
+        }
+        boolean withRanges = cmd.hasOption(2, FileTransferProtocol.OPT_RANGES);
+        boolean merkle = cmd.hasOption(2, FileTransferProtocol.OPT_MERKLE);
+
+        int[] range = chunkRangeOf(cmd);
+        if (range == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+
+        // người hỏi đã có metadata (chunk size cố định) -> thường min == max
+        FileManifest manifest = manifestStore.findByHash(root, fileSha256, ChunkSizePolicy.clamp(
+                ChunkSizePolicy.LEGACY, range[0], range[1]));
+        if (manifest != null) {
+            BitSet all = new BitSet();
+            all.set(0, manifest.getTotalChunks());
+            // trả tên phía mình -> client dùng tên này cho GET_RANGE / GET_CHUNK
+            return metaResponse(manifest.getRelativePath(), manifest, withRanges ? all : null,
+                    merkle ? manifest.getMerkleTree().rootHex() : null);
+        }
+
+        PartialSeedRegistry.Entry partial = PartialSeedRegistry.byHash(fileSha256);
+        // download dùng Merkle chưa có đủ danh sách hash -> chỉ trả lời được kiểu MERKLE
+        if (partial == null || (!merkle && !partial.hashes.isFullyLoaded())) {
+            return TransferResponse.error("File not found");
+        }
+        int partialChunkSize = partial.manifest().getChunkSize();
+        if (partialChunkSize < range[0] || partialChunkSize > range[1]) {
+            return TransferResponse.error("File not found");
+        }
+        return metaResponse(partial.servedName(), partial.manifest(), withRanges ? partial.available() : null,
+                merkle ? partial.hashes.rootHex() : null);
+    }
+
+    // GET_HASHES|file|batch: 1 batch hash chunk + proof tới Merkle root
+    private TransferResponse handleHashesRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        int batch;
+        try {
+            batch = Integer.parseInt(cmd.get(2));
+        } catch (NumberFormatException e) {
+            return TransferResponse.error("Invalid batch");
+        }
+        if (fileName == null) {
+            return TransferResponse.error("Missing filename");
+        }
+        // peer đang tải dở chỉ phục vụ chunk, hash lấy từ nguồn có file hoàn chỉnh
+        if (PartialSeedRegistry.isPartialName(fileName)) {
+            return TransferResponse.error("Hashes not available");
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileManifest manifest = manifestFor(cmd, root, filePath);
+        if (manifest == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        int total = manifest.getTotalChunks();
+        int leaves = batch < 0 || batch >= MerkleTree.batchCount(total) ? 0 : MerkleTree.leavesInBatch(total, batch);
+        if (leaves == 0) {
+            return TransferResponse.error("Batch out of range");
+        }
+
+        MerkleTree tree = manifest.getMerkleTree();
+        int first = batch * MerkleTree.batchWidth(total);
+        List<String> chunkHashes = manifest.getChunkHashes();
+
+        TransferResponse resp = new TransferResponse();
+        DataOutputStream out = resp.header();
+        out.writeUTF(FileTransferProtocol.HASHES);
+        out.writeInt(batch);
+        out.writeInt(leaves);
+        for (int i = first; i < first + leaves; i++) {
+            out.write(FileHashUtil.fromHex(chunkHashes.get(i)));
+        }
+        byte[][] proof = tree.proof(batch);
+        out.writeInt(proof.length);
+        for (byte[] sibling : proof) {
+            out.write(sibling);
+        }
+        return resp;
+    }
+
+    // GET_LAYOUT|file: chunk toàn 0 + nhóm chunk trùng hash, client không phải tải lại từng cái
+    private TransferResponse handleLayoutRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        if (fileName == null) {
+            return TransferResponse.error("Missing filename");
+        }
+        if (PartialSeedRegistry.isPartialName(fileName)) {
+            return TransferResponse.error("Layout not available");
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileManifest manifest = manifestFor(cmd, root, filePath);
+        if (manifest == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        ChunkLayout layout = manifest.getChunkLayout();
+
+        TransferResponse resp = new TransferResponse();
+        DataOutputStream out = resp.header();
+        out.writeUTF(FileTransferProtocol.LAYOUT);
+        layout.write(out);
+        return resp;
+    }
+
+    // GET_SIGNATURES|file|blockSize: chữ ký từng block cho delta sync (cache trên manifest tới khi file đổi)
+    private TransferResponse handleSignaturesRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        int blockSize;
+        try {
+            blockSize = Integer.parseInt(cmd.get(2));
+        } catch (NumberFormatException e) {
+            return TransferResponse.error("Invalid block size");
+        }
+        if (fileName == null || blockSize < BlockSignatures.MIN_BLOCK || blockSize > BlockSignatures.MAX_BLOCK) {
+            return TransferResponse.error("Invalid block size");
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileManifest manifest = manifestFor(cmd, root, filePath);
+        if (manifest == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        BlockSignatures sigs = manifest.getBlockSignatures(blockSize);
+        if (sigs == null) {
+            sigs = BlockSignatures.compute(filePath, blockSize);
+            if (sigs.getFileSize() != manifest.getFileSize()) {
+                return TransferResponse.error("File changed");
+            }
+            manifest.setBlockSignatures(sigs);
+        }
+
+        TransferResponse resp = new TransferResponse();
+        DataOutputStream out = resp.header();
+        out.writeUTF(FileTransferProtocol.SIGNATURES);
+        out.writeLong(sigs.getFileSize());
+        out.writeInt(blockSize);
+        out.writeInt(sigs.getBlockCount());
+        for (int i = 0; i < sigs.getBlockCount(); i++) {
+            sigs.writeBlock(i, out);
+        }
+
+        System.out.println("[ChunkedFileServer] Sent signatures for " + fileName + " blocks=" + sigs.getBlockCount());
+        return resp;
+    }
+
+    // GET_BYTES|file|offset|length: 1 đoạn byte tuỳ ý (phần delta client không có)
+    private TransferResponse handleBytesRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        long offset;
+        int length;
+        try {
+            offset = Long.parseLong(cmd.get(2));
+            length = Integer.parseInt(cmd.get(3));
+        } catch (NumberFormatException e) {
+            return TransferResponse.error("Invalid range");
+        }
+        if (fileName == null || offset < 0 || length <= 0 || length > FileTransferProtocol.MAX_BYTES_REQUEST) {
+            return TransferResponse.error("Invalid range");
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ);
+        if (offset + length > fc.size()) {
+            fc.close();
+            return TransferResponse.error("Range out of file");
+        }
+
+        TransferResponse resp = new TransferResponse();
+        DataOutputStream out = resp.header();
+        out.writeUTF(FileTransferProtocol.BYTES);
+        out.writeLong(offset);
+        out.writeInt(length);
+        resp.attachFile(fc, offset, length);
+        return resp;
+    }
+
+    // available != null -> thêm danh sách dải chunk đang có (OPT_RANGES)
+    // merkleRoot != null -> FILE_META_MERKLE: chỉ gửi root thay cho danh sách hash chunk
+    private static TransferResponse metaResponse(String fileName, FileManifest manifest, BitSet available,
+                                                 String merkleRoot) throws IOException {
+        long fileSize = manifest.getFileSize();
+        int totalChunks = manifest.getTotalChunks();
+        String fileSha256 = manifest.getFileSha256();
+        List<String> chunkHashes = manifest.getChunkHashes();
+
+        TransferResponse resp = new TransferResponse();
+        DataOutputStream out = resp.header();
+        out.writeUTF(merkleRoot != null ? FileTransferProtocol.FILE_META_MERKLE : FileTransferProtocol.FILE_META_RESPONSE);
+        out.writeUTF(fileName);
+        out.writeLong(fileSize);
+        out.writeInt(manifest.getChunkSize());
+        out.writeInt(totalChunks);
+        out.writeUTF(fileSha256);
+        if (merkleRoot != null) {
+            out.writeUTF(merkleRoot);
+        } else {
+            for (int i = 0; i < totalChunks; i++) {
+                out.writeUTF(chunkHashes.get(i));
+            }
+        }
+        if (available != null) {
+            List<int[]> ranges = new ArrayList<>();
+            for (int i = available.nextSetBit(0); i >= 0 && i < totalChunks; ) {
+                int end = Math.min(available.nextClearBit(i), totalChunks);
+                ranges.add(new int[]{i, end - i});
+                i = available.nextSetBit(end);
+            }
+            out.writeInt(ranges.size());
+            for (int[] r : ranges) {
+                out.writeInt(r[0]);
+                out.writeInt(r[1]);
+            }
+        }
+
+        System.out.println("[ChunkedFileServer] Sent metadata for " + fileName + " chunks=" + totalChunks);
+        return resp;
+    }
+
+    private TransferResponse handleChunkRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        String indexStr = cmd.get(2);
+
+        if (fileName == null || indexStr == null) {
+            return TransferResponse.error("Missing parameters");
+        }
+
+        int chunkIndex;
+        try {
+            chunkIndex = Integer.parseInt(indexStr);
+        } catch (NumberFormatException e) {
+            return TransferResponse.error("Invalid chunk index");
+        }
+
+        if (PartialSeedRegistry.isPartialName(fileName)) {
+            return servePartial(fileName, chunkIndex, 1, chunkSizeOf(cmd), wantsDeflate(cmd));
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        // hash chunk lấy từ manifest (đã cache), không hash lại mỗi request
+        FileManifest manifest = manifestFor(cmd, root, filePath);
+        if (manifest == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        if (chunkIndex < 0 || chunkIndex >= manifest.getTotalChunks()) {
+            return TransferResponse.error("Chunk index out of range");
+        }
+
+        TransferResponse resp = new TransferResponse();
+        FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ);
+        resp.bindFile(fc);
+        try {
+            appendChunk(resp, fc, manifest, chunkIndex, wantsDeflate(cmd) ? COMPRESS_BUDGET : 0);
+        } catch (IOException | RuntimeException e) {
+            // response chưa trả về nên không ai khác đóng fc
+            resp.close();
+            throw e;
+        }
+        if (hotCache != null) hotCache.readAhead(filePath, manifest, chunkIndex);
+
+        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex);
+        return resp;
+    }
+
+    // GET_RANGE|file|start|count: stream liên tiếp các chunk trên cùng kết nối
+    private TransferResponse handleRangeRequest(FileTransferProtocol.ParsedCommand cmd, Path root) throws IOException {
+        String fileName = cmd.get(1);
+        int start;
+        int count;
+        try {
+            start = Integer.parseInt(cmd.get(2));
+            count = Integer.parseInt(cmd.get(3));
+        } catch (NumberFormatException e) {
+            return TransferResponse.error("Invalid range");
+        }
+        if (fileName == null || count <= 0 || count > FileTransferProtocol.MAX_RANGE_CHUNKS) {
+            return TransferResponse.error("Invalid range");
+        }
+
+        if (PartialSeedRegistry.isPartialName(fileName)) {
+            return servePartial(fileName, start, count, chunkSizeOf(cmd), wantsDeflate(cmd));
+        }
+
+        Path filePath = resolve(root, fileName);
+        if (filePath == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileManifest manifest = manifestFor(cmd, root, filePath);
+        if (manifest == null) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        if (start < 0 || (long) start + count > manifest.getTotalChunks()) {
+            return TransferResponse.error("Chunk index out of range");
+        }
+
+        TransferResponse resp = new TransferResponse();
+        FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ);
+        resp.bindFile(fc);
+        try {
+            appendChunks(resp, fc, manifest, start, count, wantsDeflate(cmd));
+        } catch (IOException | RuntimeException e) {
+            resp.close();
+            throw e;
+        }
+        if (hotCache != null) hotCache.readAhead(filePath, manifest, start + count - 1);
+
+        System.out.println("[ChunkedFileServer] Sent chunks " + start + ".." + (start + count - 1));
+        return resp;
+    }
+
+    // partial seeding: chỉ gửi chunk đã tải + verify xong, đọc thẳng từ .part của download đang chạy
+    private TransferResponse servePartial(String fileName, int start, int count, int chunkSize, boolean deflate)
+            throws IOException {
+        PartialSeedRegistry.Entry partial = PartialSeedRegistry.byServedName(fileName);
+        if (partial == null) {
+            return TransferResponse.error("File not found");
+        }
+
+        FileManifest manifest = partial.manifest();
+        if (manifest.getChunkSize() != chunkSize) {
+            return TransferResponse.error("Invalid chunk size");
+        }
+        if (start < 0 || (long) start + count > manifest.getTotalChunks()) {
+            return TransferResponse.error("Chunk index out of range");
+        }
+        for (int i = start; i < start + count; i++) {
+            if (!partial.has(i)) return TransferResponse.error("Chunk not available");
+        }
+
+        TransferResponse resp = new TransferResponse();
+        FileChannel fc = FileChannel.open(partial.partFile, StandardOpenOption.READ);
+        resp.bindFile(fc);
+        try {
+            appendChunks(resp, fc, manifest, start, count, deflate);
+        } catch (IOException | RuntimeException e) {
+            resp.close();
+            throw e;
+        }
+
+        System.out.println("[ChunkedFileServer] Sent partial chunks " + start + ".." + (start + count - 1));
+        return resp;
+    }
+
+    // GET_RANGE: các chunk liên tiếp chia chung 1 budget nén
+    private void appendChunks(TransferResponse resp, FileChannel fc, FileManifest manifest, int start, int count,
+                             boolean deflate) throws IOException {
+        int budget = deflate ? COMPRESS_BUDGET : 0;
+        for (int i = start; i < start + count; i++) {
+            budget -= appendChunk(resp, fc, manifest, i, budget);
+        }
+    }
+
+    /**
+     * 1 frame CHUNK_DATA: header + bytes chunk đi thẳng file -> socket (sendfile) khi engine ghi.
+     * budget > 0 (client xin DEFLATE): chunk nén được và vừa budget -> CHUNK_DATA_Z, bytes nén nằm trong header.
+     * Chunk nóng (HotChunkCache) gửi từ RAM thay vì đọc file.
+     * @return số byte nén đã dùng (0 nếu gửi bản gốc)
+     */
+    private int appendChunk(TransferResponse resp, FileChannel fc, FileManifest manifest, int chunkIndex, int budget)
+            throws IOException {
+        long offset = (long) chunkIndex * manifest.getChunkSize();
+        int dataLen = (int) Math.min(manifest.getChunkSize(), manifest.getFileSize() - offset);
+        String chunkHash = manifest.getChunkHashes().get(chunkIndex);
+
+        DataOutputStream out = resp.header();
+        byte[] packed = budget > 0 && compressor != null ? compressor.compress(chunkHash, fc, offset, dataLen) : null;
+        if (packed != null && packed.length <= budget) {
+            out.writeUTF(FileTransferProtocol.CHUNK_DATA_Z);
+            out.writeInt(chunkIndex);
+            out.writeInt(dataLen);
+            out.writeUTF(chunkHash);
+            out.writeInt(packed.length);
+            out.write(packed);
+            return packed.length;
+        }
+
+        ByteBuffer cached = hotCache != null ? hotCache.lookup(manifest, chunkIndex, fc, offset, dataLen) : null;
+        out.writeUTF(FileTransferProtocol.CHUNK_DATA);
+        out.writeInt(chunkIndex);
+        out.writeInt(dataLen);
+        out.writeUTF(chunkHash);
+        if (cached != null) {
+            resp.attachBuffer(cached);
+        } else {
+            resp.attachFile(fc, offset, dataLen);
+        }
+        return 0;
+    }
+
+    private static boolean wantsDeflate(FileTransferProtocol.ParsedCommand cmd) {
+        return cmd.hasOption(2, FileTransferProtocol.OPT_DEFLATE);
+    }
+
+    // ---------------- chunk size ----------------
+
+    // FILE_META_*: manifest đã cache có size trong khoảng client chấp nhận -> dùng luôn (không hash lại),
+    // không có thì tính theo auto(fileSize) kẹp vào khoảng
+    private FileManifest negotiate(Path root, Path filePath, int[] range) throws IOException {
+        int preferred = ChunkSizePolicy.clamp(ChunkSizePolicy.auto(Files.size(filePath)), range[0], range[1]);
+        FileManifest cached = manifestStore.lookupAny(root, filePath, preferred, range[0], range[1]);
+        return cached != null ? cached : manifestStore.compute(root, filePath, preferred);
+    }
+
+    // request sau metadata: manifest đúng chunk size đã chọn; null nếu size không hợp lệ
+    private FileManifest manifestFor(FileTransferProtocol.ParsedCommand cmd, Path root, Path filePath)
+            throws IOException {
+        int chunkSize = chunkSizeOf(cmd);
+        return chunkSize < 0 ? null : manifestStore.getOrCompute(root, filePath, chunkSize);
+    }
+
+    // CHUNK=size; không có option -> 1 MB (client cũ); -1 nếu không hợp lệ
+    static int chunkSizeOf(FileTransferProtocol.ParsedCommand cmd) {
+        int[] range = chunkRangeOf(cmd);
+        return range == null || range[0] != range[1] ? -1 : range[0];
+    }
+
+    // CHUNK=min-max hoặc CHUNK=size; không có option -> [1 MB, 1 MB]; null nếu không hợp lệ
+    private static int[] chunkRangeOf(FileTransferProtocol.ParsedCommand cmd) {
+        String value = cmd.optionValue(2, FileTransferProtocol.OPT_CHUNK);
+        if (value == null) return new int[]{ChunkSizePolicy.LEGACY, ChunkSizePolicy.LEGACY};
+        try {
+            int dash = value.indexOf('-');
+            int min = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+            int max = dash < 0 ? min : Integer.parseInt(value.substring(dash + 1));
+            if (!ChunkSizePolicy.isValid(min) || !ChunkSizePolicy.isValid(max) || min > max) return null;
+            return new int[]{min, max};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // file nằm trong root và tồn tại, không thì null
+    private static Path resolve(Path root, String fileName) {
+        Path filePath = root.resolve(fileName).normalize();
+        if (!filePath.startsWith(root) || !Files.exists(filePath) || Files.isDirectory(filePath)) {
+            return null;
+        }
+        return filePath;
+    }
+}
@@ -0,0 +1,198 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 1 response của file server: chuỗi segment, mỗi segment = header (các field
+ * writeUTF/writeInt...) + tuỳ chọn 1 vùng file gửi bằng transferTo hoặc 1 buffer (chunk trong HotChunkCache).
+ * GET_CHUNK có 1 segment, GET_RANGE có 1 segment cho mỗi chunk.
+ *
+ * Dùng chung cho engine blocking và engine NIO: writeTo() ghi được bao nhiêu thì ghi,
+ * trả về true khi đã gửi hết (với channel non-blocking có thể phải gọi nhiều lần).
+ * Có shaper (BandwidthLimiter) thì chỉ ghi số byte được cấp; hết token -> throttledNanos() > 0.
+ */
+final class TransferResponse implements Closeable {
+
+    private static final class Segment {
+        final ByteBuffer header;
+        final ByteBuffer body;
+        long position;
+        long remaining;
+
+        Segment(ByteBuffer header, ByteBuffer body, long position, long remaining) {
+            this.header = header;
+            this.body = body;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    private final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream header = new DataOutputStream(headerBytes);
+    private final List<Segment> segments = new ArrayList<>(1);
+    private int current = 0;
+    private boolean sealed = false;
+
+    private FileChannel file;
+    private BandwidthLimiter.Shaper shaper;
+    private long throttledNanos;
+
+    static TransferResponse error(String reason) {
+        TransferResponse r = new TransferResponse();
+        try {
+            writeError(r.header, reason);
+        } catch (IOException ignored) {
+            // ByteArrayOutputStream không ném IOException
+        }
+        return r;
+    }
+
+    /** ERROR "Server busy" kèm thời gian client nên chờ trước khi thử lại */
+    static TransferResponse busy(long retryAfterMs) {
+        return error(FileTransferProtocol.busyReason(retryAfterMs));
+    }
+
+    /** ERROR "Going away": server đang dừng, client chuyển sang nguồn khác */
+    static TransferResponse goingAway() {
+        return error(FileTransferProtocol.ERR_GOING_AWAY);
+    }
+
+    static void writeError(DataOutputStream out, String reason) throws IOException {
+        out.writeUTF("ERROR");
+        out.writeUTF(reason == null ? "Unknown error" : reason);
+    }
+
+    /** Stream để handler ghi header như ghi vào socket */
+    DataOutputStream header() {
+        return header;
+    }
+
+    /** Giới hạn tốc độ gửi (response chunk); null = không giới hạn */
+    void shapeWith(BandwidthLimiter.Shaper shaper) {
+        this.shaper = shaper;
+    }
+
+    /** writeTo() vừa trả false vì hết token: chờ bấy lâu rồi ghi tiếp; 0 = do socket đầy */
+    long throttledNanos() {
+        return throttledNanos;
+    }
+
+    /** Response nhận quyền đóng fc dù chưa (hoặc không) có segment nào gửi từ file */
+    void bindFile(FileChannel fc) {
+        if (file != null && file != fc) throw new IllegalStateException("Response already bound to another file");
+        this.file = fc;
+    }
+
+    /**
+     * Kết thúc segment hiện tại bằng vùng file [position, position + count).
+     * Mọi segment dùng chung 1 FileChannel; response nhận quyền đóng fc.
+     */
+    void attachFile(FileChannel fc, long position, long count) {
+        if (file != null && file != fc) throw new IllegalStateException("Response already bound to another file");
+        this.file = fc;
+        segments.add(new Segment(ByteBuffer.wrap(headerBytes.toByteArray()), null, position, count));
+        headerBytes.reset();
+    }
+
+    /** Kết thúc segment hiện tại bằng bytes [position, limit) của data (không copy; data không được đổi tới khi gửi xong) */
+    void attachBuffer(ByteBuffer data) {
+        segments.add(new Segment(ByteBuffer.wrap(headerBytes.toByteArray()), data, 0, 0));
+        headerBytes.reset();
+    }
+
+    // header ghi sau vùng file cuối cùng (hoặc response không có file) thành segment cuối
+    private void seal() {
+        if (sealed) return;
+        sealed = true;
+        if (headerBytes.size() > 0) {
+            segments.add(new Segment(ByteBuffer.wrap(headerBytes.toByteArray()), null, 0, 0));
+            headerBytes.reset();
+        }
+    }
+
+    /**
+     * Ghi tiếp phần còn lại vào channel.
+     * @return true nếu đã gửi hết; false nếu socket đầy (non-blocking) -> chờ OP_WRITE rồi gọi lại
+     */
+    boolean writeTo(WritableByteChannel ch) throws IOException {
+        seal();
+        throttledNanos = 0;
+        while (current < segments.size()) {
+            Segment seg = segments.get(current);
+            while (seg.header.hasRemaining()) {
+                if (write(ch, seg.header) == 0) return false;
+            }
+            while (seg.body != null && seg.body.hasRemaining()) {
+                if (write(ch, seg.body) == 0) return false;
+            }
+
+            // zero-copy: file -> socket
+            while (seg.remaining > 0) {
+                long allowed = grant(seg.remaining);
+                if (allowed == 0) return false;
+                long n = file.transferTo(seg.position, allowed, ch);
+                if (shaper != null && n < allowed) shaper.refund(allowed - Math.max(n, 0));
+                if (n <= 0) {
+                    if (seg.position >= file.size()) throw new EOFException("File truncated while sending");
+                    return false;
+                }
+                seg.position += n;
+                seg.remaining -= n;
+            }
+            current++;
+        }
+        return true;
+    }
+
+    private int write(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+        if (shaper == null) return ch.write(buf);
+        int allowed = (int) grant(buf.remaining());
+        if (allowed == 0) return 0;
+        int limit = buf.limit();
+        int n;
+        try {
+            buf.limit(buf.position() + allowed);
+            n = ch.write(buf);
+        } finally {
+            buf.limit(limit);
+        }
+        shaper.refund(allowed - n);
+        return n;
+    }
+
+    // số byte được gửi ngay; 0 -> ghi lại thời gian phải chờ
+    private long grant(long want) {
+        if (shaper == null) return want;
+        long n = shaper.grant(want);
+        if (n == 0) throttledNanos = Math.max(1, shaper.waitNanos(want));
+        return n;
+    }
+
+    /** Cho channel blocking: ghi tới khi hết */
+    void writeFully(WritableByteChannel ch) throws IOException {
+        while (!writeTo(ch)) {
+            if (throttledNanos > 0) LockSupport.parkNanos(throttledNanos);
+            else Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (file != null) {
+            try { file.close(); } catch (IOException ignored) {}
+            file = null;
+        }
+    }
+}
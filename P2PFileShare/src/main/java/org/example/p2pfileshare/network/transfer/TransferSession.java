@@ -0,0 +1,488 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.BlockSignatures;
+import org.example.p2pfileshare.util.ChunkLayout;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 1 kết nối tới file server dùng cho nhiều request (thay vì 1 socket / chunk).
+ *
+ * Request được gửi trước, reply đọc sau -> gửi nhiều GET_CHUNK liên tiếp (pipeline)
+ * hoặc 1 GET_RANGE rồi đọc lần lượt các frame CHUNK_DATA.
+ *
+ * Chunk size: metadata gửi kèm khoảng client chấp nhận (CHUNK=min-max), server chọn size;
+ * sau useChunkSize() mọi request kèm CHUNK=size để server dùng đúng manifest đó.
+ *
+ * Nén: sau useCompression(true) GET_CHUNK / GET_RANGE kèm DEFLATE; frame CHUNK_DATA_Z được giải nén
+ * ngay tại đây -> ChunkReply.data luôn là bytes gốc (hash kiểm tra như thường).
+ *
+ * Bytes chunk nhận vào buffer mượn BufferPool: caller phải ChunkReply.release() sau khi ghi xong.
+ *
+ * ERROR "Server busy" -> ServerBusyException (kèm retry-after nếu server gửi), không phải "Server error".
+ * ERROR "Going away" -> GoingAwayException: server đang dừng, bỏ nguồn này (không tính là lỗi).
+ */
+final class TransferSession implements Closeable {
+
+    /** 1 reply cho chunk: CHUNK_DATA / CHUNK_DATA_Z (đã giải nén) hoặc ERROR */
+    static final class ChunkReply {
+        final int index;
+        final String hash;
+        final ByteBuffer data;  // position 0, limit = độ dài chunk; mượn BufferPool
+        final int wireLength;   // số byte data thực nhận qua mạng (< độ dài chunk nếu nén)
+        final String error;
+
+        private ChunkReply(int index, String hash, ByteBuffer data, int wireLength, String error) {
+            this.index = index;
+            this.hash = hash;
+            this.data = data;
+            this.wireLength = wireLength;
+            this.error = error;
+        }
+
+        boolean isError() {
+            return error != null;
+        }
+
+        /** Trả buffer data về pool (gọi 1 lần) */
+        void release() {
+            BufferPool.shared().release(data);
+        }
+    }
+
+    /** 1 batch hash chunk (raw 32 byte) + proof tới Merkle root */
+    static final class HashBatch {
+        final int batch;
+        final byte[][] leaves;
+        final byte[][] proof;
+
+        private HashBatch(int batch, byte[][] leaves, byte[][] proof) {
+            this.batch = batch;
+            this.leaves = leaves;
+            this.proof = proof;
+        }
+    }
+
+    /** Server quá tải (ERROR "Server busy"): chờ backoffMs() rồi thử lại, không tính là lỗi */
+    static final class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private static final long BASE_BACKOFF_MS = 250;
+        private static final long MAX_BACKOFF_MS = 8000;
+
+        final long retryAfterMs; // -1: server không nói (server cũ)
+
+        ServerBusyException(long retryAfterMs) {
+            super(FileTransferProtocol.ERR_BUSY + (retryAfterMs >= 0 ? " (retry after " + retryAfterMs + " ms)" : ""));
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        static ServerBusyException of(String reason) {
+            return new ServerBusyException(FileTransferProtocol.retryAfterMs(reason));
+        }
+
+        /** Chờ trước lần thử lại thứ attempt (0, 1...): lùi dần theo lũy thừa 2, không ít hơn retry-after, thêm jitter */
+        long backoffMs(int attempt) {
+            long wait = Math.max(retryAfterMs, BASE_BACKOFF_MS << Math.min(attempt, 5));
+            wait = Math.min(MAX_BACKOFF_MS, wait);
+            return wait + ThreadLocalRandom.current().nextLong(wait / 4 + 1);
+        }
+    }
+
+    /** Server đang dừng (ERROR "Going away"): kết nối này không được phục vụ nữa, chuyển sang nguồn khác */
+    static final class GoingAwayException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        GoingAwayException() {
+            super(FileTransferProtocol.ERR_GOING_AWAY);
+        }
+    }
+
+    /**
+     * Kết nối rớt giữa lúc nhận bytes chunk: giữ phần đã nhận để lần sau chỉ xin phần còn lại.
+     * Frame nén (compressed = true) không ghép tiếp được: received = 0, lần sau xin lại từ đầu bằng GET_BYTES.
+     */
+    static final class TruncatedChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        final byte[] data;
+        final int received;
+        final boolean compressed;
+
+        private TruncatedChunkException(int index, byte[] data, int received, boolean compressed, IOException cause) {
+            super("Chunk " + index + " truncated at " + received + "/" + data.length
+                    + (compressed ? " (compressed)" : "") + ": " + cause.getMessage(), cause);
+            this.index = index;
+            this.data = data;
+            this.received = received;
+            this.compressed = compressed;
+        }
+    }
+
+    // chờ buffer trong pool tối đa bằng timeout socket
+    private static final long BUFFER_WAIT_MS = ChunkedFileClient.SOCKET_TIMEOUT_MS;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final ReadableByteChannel inChannel;
+    private final DataOutputStream out;
+
+    // 0 = chưa chọn (request metadata gửi khoảng chấp nhận)
+    private int chunkSize = 0;
+    private int[] chunkRange;
+    private boolean compression = false;
+    private Inflater inflater;
+
+    private TransferSession(Socket socket) throws IOException {
+        this.socket = socket;
+        // đọc qua giới hạn băng thông download (tổng + peer này)
+        InputStream raw = BandwidthLimiter.download().wrap(socket.getInputStream(),
+                socket.getInetAddress().getHostAddress());
+        this.in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024));
+        this.inChannel = Channels.newChannel(in);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    static TransferSession open(String host, int port, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            socket.setTcpNoDelay(true);
+            return new TransferSession(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** Chunk size đã chọn (từ metadata): các request sau kèm CHUNK=size */
+    void useChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** Xin server nén chunk (server cũ bỏ qua option) */
+    void useCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /** Khoảng chunk size gửi kèm request metadata (mặc định lấy từ AppConfig) */
+    void preferChunkSizes(int min, int max) {
+        this.chunkRange = new int[]{min, max};
+    }
+
+    /**
+     * Response:
+     *   - type = FILE_META_RESPONSE, name, fileSize, chunkSize, totalChunks, fileSha256, chunkHash[i] * totalChunks
+     *   - hoặc type = ERROR, reason
+     */
+    FileMetadata requestMetadata(String fileName) throws IOException {
+        sendMeta(FileTransferProtocol.buildMetaRequest(fileName));
+        return readMetadata();
+    }
+
+    /**
+     * Xin metadata kiểu Merkle (chỉ root, không có danh sách hash chunk).
+     * Server cũ bỏ qua option và trả danh sách như requestMetadata().
+     */
+    FileMetadata requestMerkleMetadata(String fileName) throws IOException {
+        sendMeta(FileTransferProtocol.buildMerkleMetaRequest(fileName));
+        return readMetadata();
+    }
+
+    /** Swarm: hỏi peer có file nào trùng SHA-256 không; tên trong kết quả là tên phía peer đó */
+    FileMetadata requestMetadataByHash(String fileSha256) throws IOException {
+        send(FileTransferProtocol.buildMetaByHashRequest(fileSha256));
+        return readMetadata();
+    }
+
+    /**
+     * Như trên, kèm danh sách chunk peer đang có (peer đang tải dở chỉ có 1 phần).
+     * @param available được xoá rồi điền lại bằng các chunk peer có
+     */
+    FileMetadata requestMetadataByHash(String fileSha256, BitSet available) throws IOException {
+        send(FileTransferProtocol.buildMetaByHashRequest(fileSha256, true, true));
+        FileMetadata meta = readMetadata();
+
+        available.clear();
+        int rangeCount = in.readInt();
+        for (int r = 0; r < rangeCount; r++) {
+            int start = in.readInt();
+            int count = in.readInt();
+            if (start < 0 || count < 0 || (long) start + count > meta.getTotalChunks()) {
+                throw new IOException("Invalid range " + start + "+" + count);
+            }
+            available.set(start, start + count);
+        }
+        return meta;
+    }
+
+    private FileMetadata readMetadata() throws IOException {
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            throw serverError(in.readUTF());
+        }
+        boolean merkle = FileTransferProtocol.FILE_META_MERKLE.equals(type);
+        if (!merkle && !FileTransferProtocol.FILE_META_RESPONSE.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        String name = in.readUTF();
+        long fileSize = in.readLong();
+        int chunkSize = in.readInt();
+        int totalChunks = in.readInt();
+        String fileSha256 = in.readUTF();
+        if (merkle) {
+            return new FileMetadata(name, fileSize, chunkSize, totalChunks, fileSha256, List.of(), in.readUTF());
+        }
+
+        List<String> chunkHashes = new ArrayList<>(totalChunks);
+        for (int i = 0; i < totalChunks; i++) {
+            chunkHashes.add(in.readUTF());
+        }
+        return new FileMetadata(name, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes);
+    }
+
+    /**
+     * GET_HASHES: 1 batch hash chunk.
+     * Response: type = HASHES, batch, leafCount, leaf[32] * leafCount, proofLen, sibling[32] * proofLen
+     */
+    HashBatch requestHashes(String fileName, int batch) throws IOException {
+        send(FileTransferProtocol.buildHashesRequest(fileName, batch));
+
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            throw serverError(in.readUTF());
+        }
+        if (!FileTransferProtocol.HASHES.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        int got = in.readInt();
+        int leafCount = in.readInt();
+        if (leafCount < 0 || leafCount > MerkleTree.BATCH) throw new IOException("Invalid leaf count " + leafCount);
+        byte[][] leaves = readHashes(leafCount);
+        int proofLen = in.readInt();
+        if (proofLen < 0 || proofLen > 31) throw new IOException("Invalid proof length " + proofLen);
+        return new HashBatch(got, leaves, readHashes(proofLen));
+    }
+
+    /**
+     * GET_LAYOUT: chunk toàn 0 + nhóm chunk trùng hash của file phía server.
+     * Response: type = LAYOUT, xem ChunkLayout
+     */
+    ChunkLayout requestLayout(String fileName, int totalChunks) throws IOException {
+        send(FileTransferProtocol.buildLayoutRequest(fileName));
+
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            throw serverError(in.readUTF());
+        }
+        if (!FileTransferProtocol.LAYOUT.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        return ChunkLayout.read(in, totalChunks);
+    }
+
+    /**
+     * GET_SIGNATURES: chữ ký từng block của file phía server (delta sync).
+     * Response: type = SIGNATURES, fileSize, blockSize, count, (weak, strong[16]) * count
+     */
+    BlockSignatures requestSignatures(String fileName, int blockSize) throws IOException {
+        send(FileTransferProtocol.buildSignaturesRequest(fileName, blockSize));
+
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            throw serverError(in.readUTF());
+        }
+        if (!FileTransferProtocol.SIGNATURES.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        long fileSize = in.readLong();
+        int gotBlockSize = in.readInt();
+        int count = in.readInt();
+        if (gotBlockSize != blockSize || fileSize < 0 || count != BlockSignatures.blockCount(fileSize, blockSize)) {
+            throw new IOException("Invalid signatures header");
+        }
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * BlockSignatures.STRONG_LEN];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * BlockSignatures.STRONG_LEN, BlockSignatures.STRONG_LEN);
+        }
+        return new BlockSignatures(fileSize, blockSize, weak, strong);
+    }
+
+    /**
+     * GET_BYTES: đọc đúng length byte từ offset của file phía server vào buf[0..length).
+     * Response: type = BYTES, offset, length, bytes[length]
+     */
+    void requestBytes(String fileName, long offset, int length, byte[] buf) throws IOException {
+        send(FileTransferProtocol.buildBytesRequest(fileName, offset, length));
+
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            throw serverError(in.readUTF());
+        }
+        if (!FileTransferProtocol.BYTES.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        if (in.readLong() != offset || in.readInt() != length) {
+            throw new IOException("Unexpected byte range");
+        }
+        in.readFully(buf, 0, length);
+    }
+
+    private static IOException serverError(String reason) {
+        if (FileTransferProtocol.isBusy(reason)) return ServerBusyException.of(reason);
+        if (FileTransferProtocol.isGoingAway(reason)) return new GoingAwayException();
+        return new IOException("Server error: " + reason);
+    }
+
+    private byte[][] readHashes(int n) throws IOException {
+        byte[][] out = new byte[n][MerkleTree.HASH_LEN];
+        for (int i = 0; i < n; i++) in.readFully(out[i]);
+        return out;
+    }
+
+    /** Gửi 1 GET_CHUNK (không chờ reply -> gọi nhiều lần để pipeline) */
+    void sendChunkRequest(String fileName, int chunkIndex) throws IOException {
+        send(withCompression(FileTransferProtocol.buildChunkRequest(fileName, chunkIndex)));
+    }
+
+    /** Gửi GET_RANGE: server sẽ trả count frame CHUNK_DATA liên tiếp */
+    void sendRangeRequest(String fileName, int start, int count) throws IOException {
+        send(withCompression(FileTransferProtocol.buildRangeRequest(fileName, start, count)));
+    }
+
+    /**
+     * Đọc 1 reply chunk:
+     *   - type = CHUNK_DATA, index (int), dataLen (int), chunkSha256 (UTF), bytes[dataLen]
+     *   - type = CHUNK_DATA_Z, index (int), dataLen (int), chunkSha256 (UTF), compressedLen (int), bytes[compressedLen]
+     *   - hoặc type = ERROR, reason (UTF)
+     */
+    ChunkReply readChunkReply(int maxChunkSize) throws IOException {
+        String type = in.readUTF();
+        if (FileTransferProtocol.ERROR.equals(type)) {
+            return new ChunkReply(-1, null, null, 0, in.readUTF());
+        }
+        boolean compressed = FileTransferProtocol.CHUNK_DATA_Z.equals(type);
+        if (!compressed && !FileTransferProtocol.CHUNK_DATA.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        int index = in.readInt();
+        int dataLen = in.readInt();
+        String hash = in.readUTF();
+        if (dataLen < 0 || dataLen > maxChunkSize) {
+            throw new IOException("Invalid chunk length " + dataLen);
+        }
+        if (compressed) {
+            return readCompressed(index, hash, dataLen);
+        }
+
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer data = pool.acquire(dataLen, BUFFER_WAIT_MS);
+        try {
+            while (data.hasRemaining()) {
+                if (inChannel.read(data) < 0) throw new EOFException("Connection closed");
+            }
+        } catch (IOException e) {
+            // giữ phần đã nhận (bản heap) cho lần GET_BYTES sau, trả buffer
+            byte[] kept = new byte[dataLen];
+            int received = data.position();
+            data.flip().get(kept, 0, received);
+            pool.release(data);
+            throw new TruncatedChunkException(index, kept, received, false, e);
+        }
+        data.flip();
+        return new ChunkReply(index, hash, data, dataLen, null);
+    }
+
+    // CHUNK_DATA_Z: rớt giữa chừng thì bỏ phần đã nhận (bytes nén, không ghép tiếp được)
+    private ChunkReply readCompressed(int index, String hash, int dataLen) throws IOException {
+        int compressedLen = in.readInt();
+        if (compressedLen <= 0 || compressedLen > dataLen) {
+            throw new IOException("Invalid compressed length " + compressedLen);
+        }
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer packed = pool.acquire(compressedLen, BUFFER_WAIT_MS);
+        ByteBuffer data = null;
+        try {
+            try {
+                while (packed.hasRemaining()) {
+                    if (inChannel.read(packed) < 0) throw new EOFException("Connection closed");
+                }
+            } catch (IOException e) {
+                if (packed.position() == 0) throw e;
+                throw new TruncatedChunkException(index, new byte[dataLen], 0, true, e);
+            }
+            packed.flip();
+            data = pool.acquire(dataLen, BUFFER_WAIT_MS);
+
+            if (inflater == null) inflater = new Inflater();
+            inflater.reset();
+            inflater.setInput(packed);
+            try {
+                while (data.hasRemaining() && !inflater.finished()) {
+                    int k = inflater.inflate(data);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed chunk " + index, e);
+            }
+            if (data.hasRemaining() || !inflater.finished()) {
+                throw new IOException("Compressed chunk " + index + " inflated to wrong length");
+            }
+            data.flip();
+            ChunkReply reply = new ChunkReply(index, hash, data, compressedLen, null);
+            data = null;
+            return reply;
+        } finally {
+            pool.release(packed);
+            pool.release(data);
+        }
+    }
+
+    private String withCompression(String request) {
+        return compression ? request + "|" + FileTransferProtocol.OPT_DEFLATE : request;
+    }
+
+    private void send(String request) throws IOException {
+        out.writeUTF(chunkSize > 0 ? FileTransferProtocol.withChunkSize(request, chunkSize) : request);
+        out.flush();
+    }
+
+    // metadata: chưa chọn size -> gửi khoảng chấp nhận để server chọn
+    private void sendMeta(String request) throws IOException {
+        if (chunkSize > 0) {
+            send(request);
+            return;
+        }
+        int[] range = chunkRange != null ? chunkRange : ChunkSizePolicy.preferenceFromConfig();
+        out.writeUTF(FileTransferProtocol.withChunkRange(request, range[0], range[1]));
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+        if (inflater != null) inflater.end();
+    }
+}
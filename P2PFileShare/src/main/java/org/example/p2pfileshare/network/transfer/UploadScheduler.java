@@ -0,0 +1,425 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.AppConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chia lượt upload công bằng giữa các peer + báo BUSY khi quá tải (phía file server).
+ *
+ * - Lane INTERACTIVE (metadata, hash, layout, chữ ký delta): không cần slot, không xếp hàng
+ *   -> luôn được phục vụ trước dòng chunk
+ * - Lane BULK (GET_CHUNK, GET_RANGE, GET_BYTES): giữ 1 slot từ lúc xử lý tới khi gửi xong response;
+ *   tổng slots (KEY_UPLOAD_SLOTS), mỗi peer (theo IP) tối đa perPeer slot (KEY_UPLOAD_PER_PEER)
+ * - Hết slot: request chờ trong hàng của peer đó; slot trống thì chọn peer bằng deficit round robin
+ *   (tới lượt được cộng QUANTUM byte, đủ chi phí request đầu hàng = số byte xin thì được chạy)
+ *   -> các peer chia đều số byte, mở nhiều kết nối hay xin range lớn cũng không lấn được peer khác
+ * - Hàng của peer đầy hoặc chờ quá MAX_WAIT_MS -> BUSY kèm retry-after (ước lượng theo thời gian giữ slot)
+ * - Engine blocking: mỗi peer tối đa maxSessions kết nối cùng lúc, kết nối vượt bị trả BUSY ngay khi accept
+ *   (1 peer không giữ hết thread của pool)
+ * - stats(): số request được cấp ngay / phải chờ / bị từ chối, thời gian chờ
+ */
+final class UploadScheduler {
+
+    static final int DEFAULT_SLOTS = 16;
+    static final int DEFAULT_PER_PEER = 4;
+    // byte cộng cho peer mỗi lượt
+    private static final long QUANTUM = ChunkSizePolicy.LEGACY;
+    // hàng của 1 peer: tối đa bấy nhiêu request / slot quota
+    private static final int QUEUE_PER_SLOT = 4;
+    // chờ lâu hơn thì BUSY (phải dưới timeout đọc của client)
+    static final long MAX_WAIT_MS = 3000;
+    private static final long MIN_RETRY_MS = 200;
+    private static final long MAX_RETRY_MS = 5000;
+
+    /** Request BULK bị từ chối: client nên chờ retryAfterMs rồi thử lại */
+    static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMs;
+
+        BusyException(long retryAfterMs) {
+            super(FileTransferProtocol.busyReason(retryAfterMs));
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
+    /** Kết quả submit() (engine NIO); gọi ngoài lock, trên thread xin hoặc thread vừa trả slot */
+    interface Callback {
+        void granted(Permit permit);
+
+        void rejected(long retryAfterMs);
+    }
+
+    /** 1 slot BULK đang giữ; close() trả slot (gọi lại lần nữa không sao) */
+    final class Permit implements AutoCloseable {
+        private final PeerState peer;
+        private final long grantedAt = System.nanoTime();
+        private boolean closed; // guarded by UploadScheduler.this
+
+        private Permit(PeerState peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /** 1 kết nối (engine blocking) của 1 peer; close() khi kết nối đóng */
+    final class Session implements AutoCloseable {
+        private final PeerState peer;
+        private final boolean allowed;
+        private boolean closed; // guarded by UploadScheduler.this
+
+        private Session(PeerState peer, boolean allowed) {
+            this.peer = peer;
+            this.allowed = allowed;
+        }
+
+        /** false: peer đã đủ maxSessions kết nối -> trả BUSY rồi đóng */
+        boolean isAllowed() {
+            return allowed;
+        }
+
+        /** Thời gian client nên chờ khi kết nối bị từ chối */
+        long rejectRetryMs() {
+            synchronized (UploadScheduler.this) {
+                rejected++;
+                return retryAfter(peer);
+            }
+        }
+
+        /** null nếu request không cần slot; BULK thì chờ tới lượt (tối đa MAX_WAIT_MS) */
+        Permit admit(String request) throws BusyException {
+            FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
+            return isBulk(cmd) ? acquire(peer.address, costOf(cmd)) : null;
+        }
+
+        @Override
+        public void close() {
+            synchronized (UploadScheduler.this) {
+                if (closed) return;
+                closed = true;
+                peer.sessions--;
+                forget(peer);
+            }
+        }
+    }
+
+    /** Ảnh chụp số đo */
+    static final class Stats {
+        final int slots;
+        final int perPeer;
+        final long immediate;
+        final long waited;
+        final long rejected;
+        final long waitMillis;
+        final int peakWaiting;
+
+        private Stats(int slots, int perPeer, long immediate, long waited, long rejected, long waitMillis,
+                      int peakWaiting) {
+            this.slots = slots;
+            this.perPeer = perPeer;
+            this.immediate = immediate;
+            this.waited = waited;
+            this.rejected = rejected;
+            this.waitMillis = waitMillis;
+            this.peakWaiting = peakWaiting;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d slots (%d/peer): %d immediate, %d queued (avg %d ms, peak %d waiting), %d busy",
+                    slots, perPeer, immediate, waited, waited == 0 ? 0 : waitMillis / waited, peakWaiting, rejected);
+        }
+    }
+
+    private static final class Ticket {
+        final PeerState peer;
+        final long cost;
+        final Callback callback;   // null = thread đang chờ trong acquire()
+        final long enqueuedAt = System.nanoTime();
+        Permit permit;
+        long retryAfterMs = -1;
+
+        Ticket(PeerState peer, long cost, Callback callback) {
+            this.peer = peer;
+            this.cost = cost;
+            this.callback = callback;
+        }
+    }
+
+    private static final class PeerState {
+        final String address;
+        final ArrayDeque<Ticket> waiting = new ArrayDeque<>();
+        int active;
+        int sessions;
+        long deficit;
+        boolean inRound;
+
+        PeerState(String address) {
+            this.address = address;
+        }
+    }
+
+    private final int slots;
+    private final int perPeer;
+    private final int maxSessions;
+
+    // guarded by this
+    private final Map<String, PeerState> peers = new HashMap<>();
+    // peer có request đang chờ, theo thứ tự lượt
+    private final ArrayDeque<PeerState> round = new ArrayDeque<>();
+    private int active = 0;
+    private int waiting = 0;
+    private double avgHoldMs = MIN_RETRY_MS;
+    private long immediate, waited, rejected, waitNanos;
+    private int peakWaiting;
+
+    /** @param maxSessions số kết nối tối đa / peer được xin chunk; <= 0 = không giới hạn */
+    UploadScheduler(int slots, int perPeer, int maxSessions) {
+        this.slots = Math.max(1, slots);
+        this.perPeer = Math.max(1, Math.min(perPeer, this.slots));
+        this.maxSessions = maxSessions;
+    }
+
+    /** Từ AppConfig (ChunkedFileServer.KEY_UPLOAD_SLOTS, KEY_UPLOAD_PER_PEER) */
+    static UploadScheduler fromConfig(int maxSessions) {
+        return new UploadScheduler(intFromConfig(ChunkedFileServer.KEY_UPLOAD_SLOTS, DEFAULT_SLOTS),
+                intFromConfig(ChunkedFileServer.KEY_UPLOAD_PER_PEER, DEFAULT_PER_PEER), maxSessions);
+    }
+
+    private static int intFromConfig(String key, int fallback) {
+        String value = AppConfig.load(key);
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /** Địa chỉ peer (IP, không tính port) */
+    static String peerOf(SocketChannel ch) {
+        InetAddress address = ch.socket().getInetAddress();
+        return address == null ? "?" : address.getHostAddress();
+    }
+
+    /** GET_CHUNK / GET_RANGE / GET_BYTES: cần slot */
+    static boolean isBulk(FileTransferProtocol.ParsedCommand cmd) {
+        return cmd != null && (FileTransferProtocol.GET_CHUNK.equals(cmd.command)
+                || FileTransferProtocol.GET_RANGE.equals(cmd.command)
+                || FileTransferProtocol.GET_BYTES.equals(cmd.command));
+    }
+
+    /** Số byte request xin (ước lượng, là chi phí trong lượt chia) */
+    static long costOf(FileTransferProtocol.ParsedCommand cmd) {
+        try {
+            if (FileTransferProtocol.GET_CHUNK.equals(cmd.command)) {
+                return chunkSizeOf(cmd);
+            } else if (FileTransferProtocol.GET_RANGE.equals(cmd.command)) {
+                int count = Integer.parseInt(cmd.get(3));
+                return chunkSizeOf(cmd) * Math.max(1, Math.min(FileTransferProtocol.MAX_RANGE_CHUNKS, count));
+            } else if (FileTransferProtocol.GET_BYTES.equals(cmd.command)) {
+                int length = Integer.parseInt(cmd.get(3));
+                return Math.max(1, Math.min(FileTransferProtocol.MAX_BYTES_REQUEST, length));
+            }
+        } catch (NumberFormatException e) {
+            // request hỏng: handler sẽ trả lỗi
+        }
+        return QUANTUM;
+    }
+
+    private static long chunkSizeOf(FileTransferProtocol.ParsedCommand cmd) {
+        int size = TransferRequestHandler.chunkSizeOf(cmd);
+        return size > 0 ? size : ChunkSizePolicy.LEGACY;
+    }
+
+    /** Engine blocking: kết nối mới của peer */
+    synchronized Session openSession(String address) {
+        PeerState p = peers.computeIfAbsent(address, PeerState::new);
+        p.sessions++;
+        return new Session(p, maxSessions <= 0 || p.sessions <= maxSessions);
+    }
+
+    /** Xin slot, chờ tối đa MAX_WAIT_MS (thread đứng chờ) */
+    Permit acquire(String address, long cost) throws BusyException {
+        synchronized (this) {
+            Ticket t = enqueue(address, cost, null);
+            long deadline = t.enqueuedAt + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+            try {
+                while (t.permit == null && t.retryAfterMs < 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        drop(t);
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (t.permit == null) drop(t);
+            }
+            if (t.permit != null) return t.permit;
+            throw new BusyException(t.retryAfterMs);
+        }
+    }
+
+    /** Xin slot không chặn thread (engine NIO): callback khi được cấp / bị từ chối */
+    void submit(String address, long cost, Callback callback) {
+        Ticket t;
+        synchronized (this) {
+            t = enqueue(address, cost, callback);
+        }
+        if (t.permit != null) {
+            callback.granted(t.permit);
+        } else if (t.retryAfterMs >= 0) {
+            callback.rejected(t.retryAfterMs);
+        }
+    }
+
+    /** Từ chối request submit() đã chờ quá MAX_WAIT_MS (engine NIO gọi định kỳ) */
+    void expire() {
+        List<Ticket> expired = new ArrayList<>();
+        synchronized (this) {
+            if (waiting == 0) return;
+            long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+            for (PeerState p : round) {
+                for (Ticket t : p.waiting) {
+                    if (t.callback != null && t.enqueuedAt - limit < 0) expired.add(t);
+                }
+            }
+            for (Ticket t : expired) drop(t);
+        }
+        for (Ticket t : expired) t.callback.rejected(t.retryAfterMs);
+    }
+
+    synchronized Stats stats() {
+        return new Stats(slots, perPeer, immediate, waited, rejected, TimeUnit.NANOSECONDS.toMillis(waitNanos),
+                peakWaiting);
+    }
+
+    // guarded by this: cấp ngay / xếp hàng / từ chối (hàng của peer đầy)
+    private Ticket enqueue(String address, long cost, Callback callback) {
+        PeerState p = peers.computeIfAbsent(address, PeerState::new);
+        Ticket t = new Ticket(p, cost, callback);
+        if (p.waiting.isEmpty() && p.active < perPeer && active < slots) {
+            immediate++;
+            t.permit = grant(p);
+            return t;
+        }
+        if (p.waiting.size() >= perPeer * QUEUE_PER_SLOT) {
+            rejected++;
+            t.retryAfterMs = retryAfter(p);
+            forget(p);
+            return t;
+        }
+        p.waiting.add(t);
+        peakWaiting = Math.max(peakWaiting, ++waiting);
+        if (!p.inRound) {
+            p.inRound = true;
+            round.add(p);
+        }
+        return t;
+    }
+
+    private void release(Permit permit) {
+        List<Ticket> granted;
+        synchronized (this) {
+            if (permit.closed) return;
+            permit.closed = true;
+            active--;
+            permit.peer.active--;
+            double heldMs = (System.nanoTime() - permit.grantedAt) / 1e6;
+            avgHoldMs += (heldMs - avgHoldMs) * 0.2;
+            granted = dispatch();
+            forget(permit.peer);
+        }
+        for (Ticket t : granted) t.callback.granted(t.permit);
+    }
+
+    // guarded by this: còn slot -> chia cho các peer đang chờ (deficit round robin);
+    // trả về ticket có callback vừa được cấp (gọi ngoài lock)
+    private List<Ticket> dispatch() {
+        List<Ticket> granted = new ArrayList<>();
+        boolean wake = false;
+        while (active < slots && hasEligible()) {
+            PeerState p = round.poll();
+            if (p.active >= perPeer) {
+                round.add(p); // đủ quota, giữ deficit tới lượt sau
+                continue;
+            }
+            p.deficit += QUANTUM;
+            while (!p.waiting.isEmpty() && p.active < perPeer && active < slots
+                    && p.deficit >= p.waiting.peek().cost) {
+                Ticket t = p.waiting.poll();
+                waiting--;
+                p.deficit -= t.cost;
+                waited++;
+                waitNanos += System.nanoTime() - t.enqueuedAt;
+                t.permit = grant(p);
+                if (t.callback != null) granted.add(t);
+                else wake = true;
+            }
+            if (p.waiting.isEmpty()) {
+                p.deficit = 0;
+                p.inRound = false;
+            } else {
+                round.add(p);
+            }
+        }
+        if (wake) notifyAll();
+        return granted;
+    }
+
+    // guarded by this
+    private boolean hasEligible() {
+        for (PeerState p : round) {
+            if (p.active < perPeer) return true;
+        }
+        return false;
+    }
+
+    // guarded by this
+    private Permit grant(PeerState p) {
+        active++;
+        p.active++;
+        return new Permit(p);
+    }
+
+    // guarded by this: bỏ ticket khỏi hàng (chờ quá lâu)
+    private void drop(Ticket t) {
+        PeerState p = t.peer;
+        if (p.waiting.remove(t)) waiting--;
+        rejected++;
+        t.retryAfterMs = retryAfter(p);
+        if (p.waiting.isEmpty() && p.inRound) {
+            round.remove(p);
+            p.inRound = false;
+            p.deficit = 0;
+        }
+        forget(p);
+    }
+
+    // guarded by this: request của peer phải chờ ~ (số đang chờ / quota + 1) lượt giữ slot
+    private long retryAfter(PeerState p) {
+        double rounds = 1 + (double) p.waiting.size() / perPeer;
+        return Math.max(MIN_RETRY_MS, Math.min(MAX_RETRY_MS, Math.round(avgHoldMs * rounds)));
+    }
+
+    // guarded by this: peer không còn gì -> bỏ khỏi map
+    private void forget(PeerState p) {
+        if (p.active == 0 && p.sessions == 0 && p.waiting.isEmpty()) peers.remove(p.address, p);
+    }
+}
@@ -3,7 +3,9 @@ package org.example.p2pfileshare.service;
 import org.example.p2pfileshare.network.transfer.DownloadControl;
 import org.example.p2pfileshare.network.transfer.ChunkedFileClient;
 
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
@@ -26,6 +28,7 @@ public class DownloadJob {
     private final int port;
     private final String remotePath;   // fileName / relativePath phía server
     private final Path saveTo;
+    private final List<InetSocketAddress> swarmPeers; // peer khác có thể cùng giữ file (swarm)
 
     private final Consumer<Double> onProgress; // 0..1
     private final Consumer<State> onState;     // notify state change
@@ -41,11 +44,20 @@ public class DownloadJob {
                        Consumer<Double> onProgress,
                        Consumer<State> onState,
                        Consumer<Throwable> onError) {
+        this(host, port, remotePath, saveTo, List.of(), onProgress, onState, onError);
+    }
+
+    public DownloadJob(String host, int port, String remotePath, Path saveTo,
+                       List<InetSocketAddress> swarmPeers,
+                       Consumer<Double> onProgress,
+                       Consumer<State> onState,
+                       Consumer<Throwable> onError) {
 
         this.host = Objects.requireNonNull(host);
         this.port = port;
         this.remotePath = Objects.requireNonNull(remotePath);
         this.saveTo = Objects.requireNonNull(saveTo);
+        this.swarmPeers = swarmPeers == null ? List.of() : List.copyOf(swarmPeers);
 
         this.onProgress = onProgress;
         this.onState = onState;
@@ -66,7 +78,8 @@ public class DownloadJob {
                         p -> {
                             if (onProgress != null) onProgress.accept(p);
                         },
-                        control
+                        control,
+                        swarmPeers
                 );
 
                 if (control.isCancelled()) {
@@ -3,12 +3,16 @@ package org.example.p2pfileshare.service;
 import org.example.p2pfileshare.model.DownloadHistory;
 import org.example.p2pfileshare.model.PeerInfo;
 import org.example.p2pfileshare.model.SharedFileLocal;
+import org.example.p2pfileshare.network.transfer.BandwidthLimiter;
 import org.example.p2pfileshare.network.transfer.ChunkedFileClient;
 import org.example.p2pfileshare.network.transfer.ChunkedFileServer;
+import org.example.p2pfileshare.util.AppConfig;
 import org.example.p2pfileshare.util.DownloadHistoryManager;
 import org.example.p2pfileshare.service.DownloadJob;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.io.File;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
@@ -17,11 +21,17 @@ import java.util.stream.Collectors;
 
 public class FileShareService {
 
+    // engine của file server: "blocking" (mặc định) hoặc "nio"
+    public static final String KEY_TRANSFER_ENGINE = "transfer_engine";
+    // swarm download (tải cùng lúc từ mọi peer giữ file giống hệt): "true" (mặc định) / "false"
+    public static final String KEY_SWARM_DOWNLOAD = "swarm_download";
+
     private final int fileServerPort;
     private File shareFolder;
     private ChunkedFileServer fileServer; // dùng ChunkedFileServer để chia sẻ file
     private HistoryService historyService;
     private String myDisplayName;
+    private volatile Supplier<List<PeerInfo>> swarmPeerSupplier; // peer đang kết nối, dùng cho swarm
 
     public FileShareService(int fileServerPort, HistoryService historyService) {
         this.fileServerPort = fileServerPort;
@@ -31,11 +41,16 @@ public class FileShareService {
     // khởi tạo server từ người share
     public synchronized void startServer() {
         if (fileServer == null && shareFolder != null) {
-            fileServer = new ChunkedFileServer(fileServerPort, shareFolder.toPath());
+            fileServer = createFileServer(shareFolder.toPath());
             fileServer.start();
         }
     }
 
+    private ChunkedFileServer createFileServer(Path folder) {
+        ChunkedFileServer.Engine engine = ChunkedFileServer.Engine.fromConfig(AppConfig.load(KEY_TRANSFER_ENGINE));
+        return new ChunkedFileServer(fileServerPort, folder, engine);
+    }
+
     // dừng server
     public void stopServer() {
         if (fileServer != null) {
@@ -60,7 +75,7 @@ public class FileShareService {
 
         // nếu server chưa chạy → khởi động
         if (fileServer == null) {
-            fileServer = new ChunkedFileServer(fileServerPort, folder.toPath());
+            fileServer = createFileServer(folder.toPath());
             fileServer.start();
         }
         // nếu server đang chạy → đổi folder ngay lập tức không cần restart
@@ -214,6 +229,46 @@ public class FileShareService {
         return myDisplayName;
     }
 
+    // giới hạn băng thông (KB/s, 0 = không giới hạn): lưu cấu hình + áp ngay cho kết nối đang chạy
+    public void setUploadLimit(int totalKbps, int perPeerKbps) {
+        AppConfig.save(BandwidthLimiter.KEY_UPLOAD_KBPS, String.valueOf(Math.max(0, totalKbps)));
+        AppConfig.save(BandwidthLimiter.KEY_UPLOAD_PEER_KBPS, String.valueOf(Math.max(0, perPeerKbps)));
+        BandwidthLimiter.upload().setLimits(totalKbps * 1024L, perPeerKbps * 1024L);
+    }
+
+    public void setDownloadLimit(int totalKbps, int perPeerKbps) {
+        AppConfig.save(BandwidthLimiter.KEY_DOWNLOAD_KBPS, String.valueOf(Math.max(0, totalKbps)));
+        AppConfig.save(BandwidthLimiter.KEY_DOWNLOAD_PEER_KBPS, String.valueOf(Math.max(0, perPeerKbps)));
+        BandwidthLimiter.download().setLimits(totalKbps * 1024L, perPeerKbps * 1024L);
+    }
+
+    // seeding chế độ nền: khi đang tải / có lưu lượng tương tác thì upload chỉ dùng backgroundKbps
+    public void setBackgroundSeeding(boolean enabled, int backgroundKbps) {
+        AppConfig.save(BandwidthLimiter.KEY_BACKGROUND_SEEDING, String.valueOf(enabled));
+        if (backgroundKbps > 0) AppConfig.save(BandwidthLimiter.KEY_BACKGROUND_KBPS, String.valueOf(backgroundKbps));
+        BandwidthLimiter.upload().setBackground(enabled, backgroundKbps * 1024L);
+    }
+
+    public void setSwarmPeerSupplier(Supplier<List<PeerInfo>> swarmPeerSupplier) {
+        this.swarmPeerSupplier = swarmPeerSupplier;
+    }
+
+    // các peer khác (ngoài peer được chọn) để hỏi xem có giữ cùng file không
+    private List<InetSocketAddress> swarmPeersFor(PeerInfo owner) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        Supplier<List<PeerInfo>> supplier = swarmPeerSupplier;
+        if (supplier == null || "false".equalsIgnoreCase(AppConfig.load(KEY_SWARM_DOWNLOAD))) return result;
+
+        List<PeerInfo> peers = supplier.get();
+        if (peers == null) return result;
+        for (PeerInfo p : peers) {
+            if (p == null || p.getIp() == null) continue;
+            if (p.getPeerId() != null && p.getPeerId().equals(owner.getPeerId())) continue;
+            result.add(InetSocketAddress.createUnresolved(p.getIp(), p.getFileServerPort()));
+        }
+        return result;
+    }
+
     public DownloadJob startDownload(PeerInfo peer, String relativePath, Path saveTo,
                                      Consumer<Double> progressCallback,
                                      Consumer<String> statusCallback) {
@@ -224,6 +279,7 @@ public class FileShareService {
                 peer.getFileServerPort(),
                 relativePath,
                 saveTo,
+                swarmPeersFor(peer),
                 p -> {
                     if (progressCallback != null) progressCallback.accept(p);
                 },
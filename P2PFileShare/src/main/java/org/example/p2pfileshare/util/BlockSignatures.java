@@ -0,0 +1,123 @@
+package org.example.p2pfileshare.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Chữ ký từng block của 1 file cho delta sync (kiểu rsync/zsync).
+ *
+ * - weak  : rolling checksum kiểu rsync (a = tổng byte, b = tổng có trọng số, mỗi phần 16 bit),
+ *           trượt từng byte trong O(1) -> dò block ở mọi offset của bản cũ
+ * - strong: STRONG_LEN byte đầu của SHA-256 block, chỉ tính khi weak khớp
+ *
+ * Block cuối có thể ngắn hơn blockSize.
+ */
+public final class BlockSignatures {
+
+    public static final int STRONG_LEN = 16;
+    public static final int MIN_BLOCK = 2 * 1024;
+    public static final int MAX_BLOCK = 1024 * 1024;
+
+    private final long fileSize;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[] strong; // count * STRONG_LEN
+
+    public BlockSignatures(long fileSize, int blockSize, int[] weak, byte[] strong) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /** Block size đề xuất ~ sqrt(fileSize) (lũy thừa 2), trong [MIN_BLOCK, 64 KB] */
+    public static int suggestBlockSize(long fileSize) {
+        long root = (long) Math.sqrt((double) fileSize);
+        long size = Long.highestOneBit(Math.max(1, root));
+        return (int) Math.max(MIN_BLOCK, Math.min(64 * 1024, size));
+    }
+
+    public static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    /** Đọc cả file 1 lượt, tính chữ ký từng block */
+    public static BlockSignatures compute(Path file, int blockSize) throws IOException {
+        long size = Files.size(file);
+        int count = blockCount(size, blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LEN];
+
+        byte[] block = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int i = 0; i < count; i++) {
+                int len = (int) Math.min(blockSize, size - (long) i * blockSize);
+                int n = in.readNBytes(block, 0, len);
+                if (n < len) throw new IOException("File changed while computing signatures");
+                weak[i] = weak(block, 0, len);
+                System.arraycopy(strong(block, 0, len), 0, strong, i * STRONG_LEN, STRONG_LEN);
+            }
+        }
+        return new BlockSignatures(size, blockSize, weak, strong);
+    }
+
+    // ---------------- checksum ----------------
+
+    public static int weak(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return pack(a, b);
+    }
+
+    /** Trượt cửa sổ len byte: bỏ byte out ở đầu, thêm byte in ở cuối */
+    public static int roll(int weak, int len, byte out, byte in) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        a = a - (out & 0xFF) + (in & 0xFF);
+        b = b - len * (out & 0xFF) + a;
+        return pack(a, b);
+    }
+
+    public static byte[] strong(byte[] data, int off, int len) {
+        MessageDigest md = FileHashUtil.newSha256();
+        md.update(data, off, len);
+        return Arrays.copyOf(md.digest(), STRONG_LEN);
+    }
+
+    private static int pack(int a, int b) {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    // ---------------- getters ----------------
+
+    public long getFileSize() { return fileSize; }
+    public int getBlockSize() { return blockSize; }
+    public int getBlockCount() { return weak.length; }
+
+    public int weakOf(int block) {
+        return weak[block];
+    }
+
+    public boolean strongMatches(int block, byte[] candidate) {
+        return Arrays.equals(strong, block * STRONG_LEN, (block + 1) * STRONG_LEN, candidate, 0, STRONG_LEN);
+    }
+
+    public int blockLength(int block) {
+        return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+    }
+
+    /** Chữ ký dạng raw (weak int big-endian + strong) của block, để gửi qua mạng */
+    public void writeBlock(int block, DataOutputStream out) throws IOException {
+        out.writeInt(weak[block]);
+        out.write(strong, block * STRONG_LEN, STRONG_LEN);
+    }
+}
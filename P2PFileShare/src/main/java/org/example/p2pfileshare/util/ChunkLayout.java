@@ -0,0 +1,149 @@
+package org.example.p2pfileshare.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Bố cục nội dung các chunk của 1 file, suy ra từ hash chunk trong manifest:
+ *
+ * - zero  : chunk toàn byte 0 (hash = SHA-256 của toàn 0 cùng độ dài) -> client không cần tải,
+ *           để nguyên lỗ trong .part (sparse)
+ * - nhóm trùng: các chunk (khác 0) có cùng hash -> chỉ tải chunk đầu nhóm, ghi ra mọi offset còn lại
+ *
+ * Định dạng trên dây (LAYOUT): zeroRangeCount (int), (start, count) * zeroRangeCount,
+ *   groupCount (int), (size (int), index * size) * groupCount
+ */
+public final class ChunkLayout {
+
+    public static final ChunkLayout NONE = new ChunkLayout(new BitSet(), new int[0][]);
+
+    private final BitSet zero;
+    private final int[][] groups;          // mỗi nhóm tăng dần, phần tử đầu = chunk được tải
+    private final Map<Integer, int[]> groupOf = new HashMap<>();
+
+    private ChunkLayout(BitSet zero, int[][] groups) {
+        this.zero = zero;
+        this.groups = groups;
+        for (int[] g : groups) {
+            for (int i : g) groupOf.put(i, g);
+        }
+    }
+
+    /** Tính từ danh sách hash chunk (hex) của manifest */
+    public static ChunkLayout of(List<String> chunkHashes, long fileSize, int chunkSize) {
+        int total = chunkHashes.size();
+        if (total == 0) return NONE;
+        String zeroFull = FileHashUtil.toHex(zeroDigest(chunkSize));
+        int lastLen = (int) (fileSize - (long) (total - 1) * chunkSize);
+        String zeroLast = lastLen == chunkSize ? zeroFull : FileHashUtil.toHex(zeroDigest(lastLen));
+
+        BitSet zero = new BitSet(total);
+        Map<String, List<Integer>> byHash = new HashMap<>();
+        for (int i = 0; i < total; i++) {
+            String h = chunkHashes.get(i);
+            if (h.equals(i == total - 1 ? zeroLast : zeroFull)) {
+                zero.set(i);
+            } else {
+                byHash.computeIfAbsent(h, k -> new ArrayList<>(1)).add(i);
+            }
+        }
+
+        List<int[]> groups = new ArrayList<>();
+        for (List<Integer> members : byHash.values()) {
+            if (members.size() > 1) groups.add(members.stream().mapToInt(Integer::intValue).toArray());
+        }
+        groups.sort(Comparator.comparingInt(g -> g[0]));
+        return new ChunkLayout(zero, groups.toArray(new int[0][]));
+    }
+
+    /** SHA-256 (raw) của len byte 0 */
+    public static byte[] zeroDigest(int len) {
+        return FileHashUtil.newSha256().digest(new byte[len]);
+    }
+
+    public boolean isEmpty() {
+        return zero.isEmpty() && groups.length == 0;
+    }
+
+    public boolean isZero(int chunkIndex) {
+        return zero.get(chunkIndex);
+    }
+
+    public BitSet zeroChunks() {
+        return (BitSet) zero.clone();
+    }
+
+    /** Chunk được tải thay cho chunkIndex (chính nó nếu không thuộc nhóm trùng) */
+    public int sourceOf(int chunkIndex) {
+        int[] g = groupOf.get(chunkIndex);
+        return g == null ? chunkIndex : g[0];
+    }
+
+    /** Chunk trùng nội dung chunkIndex cần ghi thêm khi chunkIndex là chunk được tải, không có thì mảng rỗng */
+    public int[] copiesOf(int chunkIndex) {
+        int[] g = groupOf.get(chunkIndex);
+        return g == null || g[0] != chunkIndex ? new int[0] : Arrays.copyOfRange(g, 1, g.length);
+    }
+
+    /** Số chunk không phải tải qua mạng */
+    public int elidedChunks() {
+        int n = zero.cardinality();
+        for (int[] g : groups) n += g.length - 1;
+        return n;
+    }
+
+    // ---------------- wire ----------------
+
+    public void write(DataOutputStream out) throws IOException {
+        List<int[]> ranges = new ArrayList<>();
+        for (int i = zero.nextSetBit(0); i >= 0; ) {
+            int end = zero.nextClearBit(i);
+            ranges.add(new int[]{i, end - i});
+            i = zero.nextSetBit(end);
+        }
+        out.writeInt(ranges.size());
+        for (int[] r : ranges) {
+            out.writeInt(r[0]);
+            out.writeInt(r[1]);
+        }
+        out.writeInt(groups.length);
+        for (int[] g : groups) {
+            out.writeInt(g.length);
+            for (int i : g) out.writeInt(i);
+        }
+    }
+
+    /** Đọc LAYOUT, kiểm tra index nằm trong [0, totalChunks) và mỗi chunk thuộc tối đa 1 nhóm */
+    public static ChunkLayout read(DataInputStream in, int totalChunks) throws IOException {
+        BitSet zero = new BitSet(totalChunks);
+        int rangeCount = in.readInt();
+        if (rangeCount < 0 || rangeCount > totalChunks) throw new IOException("Invalid zero range count");
+        for (int r = 0; r < rangeCount; r++) {
+            int start = in.readInt();
+            int count = in.readInt();
+            if (start < 0 || count <= 0 || (long) start + count > totalChunks) throw new IOException("Invalid zero range");
+            zero.set(start, start + count);
+        }
+
+        BitSet seen = (BitSet) zero.clone();
+        int groupCount = in.readInt();
+        if (groupCount < 0 || groupCount > totalChunks / 2) throw new IOException("Invalid group count");
+        int[][] groups = new int[groupCount][];
+        for (int k = 0; k < groupCount; k++) {
+            int size = in.readInt();
+            if (size < 2 || size > totalChunks) throw new IOException("Invalid group size");
+            int[] g = new int[size];
+            for (int j = 0; j < size; j++) {
+                g[j] = in.readInt();
+                if (g[j] < 0 || g[j] >= totalChunks || seen.get(g[j]) || (j > 0 && g[j] <= g[j - 1])) {
+                    throw new IOException("Invalid group member");
+                }
+                seen.set(g[j]);
+            }
+            groups[k] = g;
+        }
+        return new ChunkLayout(zero, groups);
+    }
+}
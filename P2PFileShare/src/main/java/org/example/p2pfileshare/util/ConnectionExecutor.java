@@ -0,0 +1,123 @@
+package org.example.p2pfileshare.util;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor cho handler kết nối (file server, control server).
+ *
+ * - JDK 21+: mỗi kết nối 1 virtual thread -> burst hàng trăm request gần như không tốn RAM,
+ *   không có trần cứng làm nghẽn LAN
+ * - JDK cũ hơn (hoặc cấu hình "platform"): pool platform thread như trước
+ *
+ * Luôn đếm số handler đang chạy để UI/log xem được tải hiện tại.
+ * Build target là Java 17 nên API virtual thread được gọi qua reflection.
+ */
+public final class ConnectionExecutor extends AbstractExecutorService {
+
+    /** Key AppConfig: "auto" (mặc định), "virtual", "platform" */
+    public static final String KEY_EXECUTOR_MODE = "executor_mode";
+
+    public enum Mode { AUTO, VIRTUAL, PLATFORM }
+
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+
+    private ConnectionExecutor(ExecutorService delegate, boolean virtual) {
+        this.delegate = delegate;
+        this.virtual = virtual;
+    }
+
+    /**
+     * @param name            tiền tố tên thread
+     * @param fallbackThreads số platform thread khi không dùng được virtual thread; <= 0 = không giới hạn (cached pool)
+     */
+    public static ConnectionExecutor create(String name, int fallbackThreads) {
+        Mode mode = modeFromConfig(AppConfig.load(KEY_EXECUTOR_MODE));
+        if (mode != Mode.PLATFORM) {
+            ExecutorService vt = newVirtualThreadExecutor(name);
+            if (vt != null) return new ConnectionExecutor(vt, true);
+            if (mode == Mode.VIRTUAL) {
+                System.out.println("[ConnectionExecutor] Virtual threads need JDK 21+, using platform threads for " + name);
+            }
+        }
+
+        ThreadFactory tf = daemonFactory(name);
+        ExecutorService pool = fallbackThreads > 0
+                ? Executors.newFixedThreadPool(fallbackThreads, tf)
+                : Executors.newCachedThreadPool(tf);
+        return new ConnectionExecutor(pool, false);
+    }
+
+    static Mode modeFromConfig(String value) {
+        if (value == null) return Mode.AUTO;
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Mode.AUTO;
+        }
+    }
+
+    // Thread.ofVirtual().name(name + "-", 0).factory() + Executors.newThreadPerTaskExecutor(factory)
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        delegate.execute(() -> {
+            int now = inFlight.incrementAndGet();
+            peakInFlight.accumulateAndGet(now, Math::max);
+            try {
+                task.run();
+            } finally {
+                inFlight.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /** Số handler đang chạy */
+    public int getInFlight() { return inFlight.get(); }
+
+    /** Đỉnh số handler chạy đồng thời từ lúc tạo */
+    public int getPeakInFlight() { return peakInFlight.get(); }
+
+    public long getCompleted() { return completed.get(); }
+
+    public boolean isVirtual() { return virtual; }
+
+    @Override public void shutdown() { delegate.shutdown(); }
+    @Override public List<Runnable> shutdownNow() { return delegate.shutdownNow(); }
+    @Override public boolean isShutdown() { return delegate.isShutdown(); }
+    @Override public boolean isTerminated() { return delegate.isTerminated(); }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -8,12 +8,23 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class FileHashUtil {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // MessageDigest SHA-256 mới (không thread-safe, mỗi luồng 1 instance)
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
   // băm từng chunck để kiểm tra tính toàn vẹn
     public static String sha256(byte[] data) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
             byte[] hash = digest.digest(data);
-            return bytesToHex(hash);
+            return toHex(hash);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
@@ -29,18 +40,31 @@ public class FileHashUtil {
                     digest.update(buffer, 0, read);
                 }
             }
-            return bytesToHex(digest.digest());
+            return toHex(digest.digest());
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    // bảng tra thay cho String.format: manifest có thể có hàng trăm nghìn hash
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xF];
         }
-        return sb.toString();
+        return new String(out);
     }
-}
 
+    public static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() % 2 != 0) throw new IllegalArgumentException("Invalid hex");
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Invalid hex");
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,157 @@
+package org.example.p2pfileshare.util;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Merkle tree trên hash các chunk của 1 file.
+ *
+ * - Lá = SHA-256 của chunk (32 byte), đệm lá 0 cho đủ lũy thừa 2
+ * - Nút = SHA-256(0x01 || trái || phải)
+ * - Lá chia thành batch BATCH lá liền nhau (mỗi batch là 1 cây con đầy đủ):
+ *   client chỉ cần root lúc đầu, khi cần hash chunk nào thì tải cả batch + proof
+ *   (các nút anh em từ gốc batch lên root) rồi tự kiểm tra với root.
+ *
+ * Server giữ gốc từng batch và các tầng phía trên (nhỏ), lá lấy từ manifest.
+ */
+public final class MerkleTree {
+
+    public static final int HASH_LEN = 32;
+    // số lá / batch (lũy thừa 2): 1024 hash = 32 KB / lần tải
+    public static final int BATCH = 1024;
+
+    // ZERO[k] = gốc cây con toàn lá 0 cao k tầng
+    private static final byte[][] ZERO = new byte[32][];
+
+    static {
+        ZERO[0] = new byte[HASH_LEN];
+        for (int k = 1; k < ZERO.length; k++) ZERO[k] = node(ZERO[k - 1], ZERO[k - 1]);
+    }
+
+    private final int leafCount;
+    // levels[0] = gốc các batch, ..., levels[last] = [root]
+    private final byte[][][] levels;
+
+    private MerkleTree(int leafCount, byte[][][] levels) {
+        this.leafCount = leafCount;
+        this.levels = levels;
+    }
+
+    /** Dựng cây từ hash chunk (hex) của manifest */
+    public static MerkleTree build(List<String> chunkHashesHex) {
+        int leafCount = chunkHashesHex.size();
+        int batchWidth = batchWidth(leafCount);
+        int batchCount = batchCount(leafCount);
+
+        byte[][] batchRoots = new byte[batchCount][];
+        for (int b = 0; b < batchCount; b++) {
+            int first = b * batchWidth;
+            int n = Math.max(0, Math.min(batchWidth, leafCount - first));
+            byte[][] leaves = new byte[n][];
+            for (int i = 0; i < n; i++) leaves[i] = FileHashUtil.fromHex(chunkHashesHex.get(first + i));
+            batchRoots[b] = subtreeRoot(leaves, n, batchWidth);
+        }
+
+        int height = Integer.numberOfTrailingZeros(batchCount);
+        byte[][][] levels = new byte[height + 1][][];
+        levels[0] = batchRoots;
+        for (int lvl = 1; lvl <= height; lvl++) {
+            byte[][] below = levels[lvl - 1];
+            byte[][] cur = new byte[below.length / 2][];
+            for (int i = 0; i < cur.length; i++) cur[i] = node(below[2 * i], below[2 * i + 1]);
+            levels[lvl] = cur;
+        }
+        return new MerkleTree(leafCount, levels);
+    }
+
+    public byte[] root() {
+        return levels[levels.length - 1][0];
+    }
+
+    public String rootHex() {
+        return FileHashUtil.toHex(root());
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /** Các nút anh em từ gốc batch lên tới root (dưới lên trên) */
+    public byte[][] proof(int batch) {
+        byte[][] proof = new byte[levels.length - 1][];
+        int idx = batch;
+        for (int lvl = 0; lvl < proof.length; lvl++) {
+            proof[lvl] = levels[lvl][idx ^ 1];
+            idx >>= 1;
+        }
+        return proof;
+    }
+
+    // ---------------- static: dùng chung cho client ----------------
+
+    /** Số lá mỗi batch: BATCH, hoặc ít hơn nếu cả file nhỏ hơn 1 batch */
+    public static int batchWidth(int leafCount) {
+        return Math.min(BATCH, width(leafCount));
+    }
+
+    public static int batchCount(int leafCount) {
+        return width(leafCount) / batchWidth(leafCount);
+    }
+
+    /** Số lá thật trong batch (batch cuối có thể thiếu) */
+    public static int leavesInBatch(int leafCount, int batch) {
+        int w = batchWidth(leafCount);
+        return Math.max(0, Math.min(w, leafCount - batch * w));
+    }
+
+    /**
+     * Kiểm tra 1 batch lá với root.
+     * @param leaves các lá thật của batch (không gồm lá đệm)
+     */
+    public static boolean verifyBatch(byte[] root, int leafCount, int batch, byte[][] leaves, byte[][] proof) {
+        int batchCount = batchCount(leafCount);
+        if (batch < 0 || batch >= batchCount) return false;
+        if (leaves.length != leavesInBatch(leafCount, batch)) return false;
+        if (proof.length != Integer.numberOfTrailingZeros(batchCount)) return false;
+
+        byte[] h = subtreeRoot(leaves, leaves.length, batchWidth(leafCount));
+        int idx = batch;
+        for (byte[] sibling : proof) {
+            h = (idx & 1) == 0 ? node(h, sibling) : node(sibling, h);
+            idx >>= 1;
+        }
+        return MessageDigest.isEqual(h, root);
+    }
+
+    // gốc cây con `width` lá, n lá đầu là thật, còn lại đệm 0
+    private static byte[] subtreeRoot(byte[][] leaves, int n, int width) {
+        byte[][] cur = leaves;
+        int len = n;
+        int level = 0;
+        while (width > 1) {
+            int nextLen = (len + 1) / 2;
+            byte[][] next = new byte[nextLen][];
+            for (int i = 0; i < nextLen; i++) {
+                byte[] right = 2 * i + 1 < len ? cur[2 * i + 1] : ZERO[level];
+                next[i] = node(cur[2 * i], right);
+            }
+            cur = next;
+            len = nextLen;
+            width >>= 1;
+            level++;
+        }
+        return len == 0 ? ZERO[level] : cur[0];
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = FileHashUtil.newSha256();
+        md.update((byte) 0x01);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private static int width(int leafCount) {
+        return leafCount <= 1 ? 1 : Integer.highestOneBit(leafCount - 1) << 1;
+    }
+}